@@ -1,5 +1,6 @@
 package org.mobicents.charging.server.management.rest;
 
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -8,6 +9,9 @@ import java.sql.SQLException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -15,6 +19,7 @@ import javax.sql.DataSource;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Response;
 
+import org.json.JSONObject;
 import org.mobicents.charging.server.management.rest.json.ResultSetConverter;
 
 @Path("/charging")
@@ -25,6 +30,16 @@ public class ChargingServerManagementAPI {
 	private static final String DS_CONTEXT = "java:/DefaultDS";
 
 	private static final String USERS_TABLE = "CONCHA_USERS";
+	private static final String RESERVATIONS_TABLE = "CONCHA_RESERVATIONS";
+
+	private static final String OVERLOAD_CONTROL_MBEAN = "org.mobicents.charging.server:type=OverloadControl";
+	private static final String[] OVERLOAD_CONTROL_ATTRIBUTES = { "State", "InFlight", "Latency", "MaxInFlight", "MaxLatency", "Admitted", "Shed" };
+
+	private static final String RATE_CACHE_MBEAN = "org.mobicents.charging.server:type=RateCache";
+	private static final String[] RATE_CACHE_ATTRIBUTES = { "Size", "Capacity", "TimeToLive", "NegativeTimeToLive", "Hits", "NegativeHits", "Misses", "HitRatio" };
+
+	// when running with the in-memory ledger, user changes must be made through it, or the next flush overwrites them
+	private static final String BALANCE_LEDGER_MBEAN = "org.mobicents.charging.server:type=BalanceLedger";
 
 	private static DataSource datasource = null;
 
@@ -56,6 +71,26 @@ public class ChargingServerManagementAPI {
 		return connection;
 	}
 
+	/**
+	 * Invokes a user operation on the in-memory ledger, if the Charging Server is running with it.
+	 *
+	 * @return the result of the operation, as a text string, or null if there's no in-memory ledger
+	 */
+	private String invokeBalanceLedger(String operation, Object[] params, String[] signature) {
+		try {
+			MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(BALANCE_LEDGER_MBEAN);
+			if (!mbeanServer.isRegistered(objectName)) {
+				return null;
+			}
+			return Boolean.TRUE.equals(mbeanServer.invoke(objectName, operation, params, signature)) ? "OK" : "FAIL";
+		}
+		catch (Exception e) {
+			logger.error("Unable to invoke in-memory ledger MBean operation '" + operation + "'.", e);
+			return "FAIL";
+		}
+	}
+
     /**
      * Fetch All Users
      * [GET] http://mob-chaser/api/[version]/charging/users[?filter]
@@ -104,6 +139,10 @@ public class ChargingServerManagementAPI {
 		if (logger.isInfoEnabled()) {
 			logger.info("[><] " + result);
 		}
+		result = invokeBalanceLedger("setBalance", new Object[] { msisdn, value }, new String[] { String.class.getName(), long.class.getName() });
+		if (result != null) {
+			return Response.status(200).entity(result).build();
+		}
 		Connection connection = getConnection();
 		try {
             PreparedStatement ps = connection.prepareStatement("UPDATE " + USERS_TABLE + " SET BALANCE = ? WHERE MSISDN = ?");
@@ -143,9 +182,16 @@ public class ChargingServerManagementAPI {
 		if (logger.isInfoEnabled()) {
 			logger.info("[><] " + result);
 		}
+		result = invokeBalanceLedger("setReserved", new Object[] { msisdn, value }, new String[] { String.class.getName(), long.class.getName() });
+		if (result != null) {
+			return Response.status(200).entity(result).build();
+		}
 		Connection connection = getConnection();
 		try {
-			int updated = connection.createStatement().executeUpdate("UPDATE " + USERS_TABLE + " SET RESERVED = " + value + " WHERE MSISDN = " + msisdn);
+			PreparedStatement ps = connection.prepareStatement("UPDATE " + USERS_TABLE + " SET RESERVED = ? WHERE MSISDN = ?");
+			ps.setLong(1, value);
+			ps.setString(2, msisdn);
+			int updated = ps.executeUpdate();
 			result = (updated == 1 ? "OK" : "FAIL");
 		}
 		catch (Exception e) {
@@ -177,13 +223,31 @@ public class ChargingServerManagementAPI {
 		if (logger.isInfoEnabled()) {
 			logger.info("[><] " + result);
 		}
+        result = invokeBalanceLedger("sanitizeUser", new Object[] { msisdn }, new String[] { String.class.getName() });
+        if (result != null) {
+            return Response.status(200).entity(result).build();
+        }
         Connection connection = getConnection();
         try {
-            int updated = connection.createStatement().executeUpdate("UPDATE " + USERS_TABLE + " SET BALANCE = BALANCE + RESERVED, RESERVED = 0 WHERE MSISDN = " + msisdn);
+            // return all the open reservations of the user, and drop them, at once
+            connection.setAutoCommit(false);
+            PreparedStatement ps = connection.prepareStatement("UPDATE " + USERS_TABLE + " SET BALANCE = BALANCE + RESERVED, RESERVED = 0 WHERE MSISDN = ?");
+            ps.setString(1, msisdn);
+            int updated = ps.executeUpdate();
+            ps = connection.prepareStatement("DELETE FROM " + RESERVATIONS_TABLE + " WHERE MSISDN = ?");
+            ps.setString(1, msisdn);
+            ps.executeUpdate();
+            connection.commit();
             result = (updated == 1 ? "OK" : "FAIL");
         }
         catch (Exception e) {
 			logger.error("Unable to execute SQL statement.", e);
+            try {
+                connection.rollback();
+            }
+            catch (Exception f) {
+				logger.error("Failure trying to rollback.", f);
+            }
         }
         finally {
             try {
@@ -211,10 +275,16 @@ public class ChargingServerManagementAPI {
 		if (logger.isInfoEnabled()) {
 			logger.info("[><] " + result);
 		}
+        result = invokeBalanceLedger("deleteUser", new Object[] { msisdn }, new String[] { String.class.getName() });
+        if (result != null) {
+            return Response.status(200).entity(result).build();
+        }
         Connection connection = getConnection();
         try {
             // TODO: SELECT first so that we can return the deleted user information ?
-            int updated = connection.createStatement().executeUpdate("DELETE FROM " + USERS_TABLE + " WHERE MSISDN = " + msisdn);
+            PreparedStatement ps = connection.prepareStatement("DELETE FROM " + USERS_TABLE + " WHERE MSISDN = ?");
+            ps.setString(1, msisdn);
+            int updated = ps.executeUpdate();
             result = (updated == 1 ? "OK" : "FAIL");
         }
         catch (Exception e) {
@@ -260,6 +330,10 @@ public class ChargingServerManagementAPI {
 		if (logger.isInfoEnabled()) {
 			logger.info("[><] " + result);
 		}
+        result = invokeBalanceLedger("createUser", new Object[] { msisdn, balance }, new String[] { String.class.getName(), long.class.getName() });
+        if (result != null) {
+            return Response.status(200).entity(result).build();
+        }
         Connection connection = getConnection();
         try {
             PreparedStatement ps = connection.prepareStatement("INSERT INTO " + USERS_TABLE + " (MSISDN, BALANCE, RESERVED, USER_STATUS) VALUES (?, ?, ?, ?)");
@@ -286,5 +360,151 @@ public class ChargingServerManagementAPI {
         return Response.status(200).entity(result).build();
     }
 
+    /**
+     * Get Overload Control State
+     * [GET] http://mob-chaser/api/[version]/charging/overload
+     *
+     * @return the overload control watermarks, state and counters, as a JSON object
+     */
+    @GET
+    @Path("/overload")
+    public Response getOverloadControl() {
+        String result = "Getting overload control state";
+		if (logger.isInfoEnabled()) {
+			logger.info("[><] " + result);
+		}
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OVERLOAD_CONTROL_MBEAN);
+            JSONObject json = new JSONObject();
+            for (String attribute : OVERLOAD_CONTROL_ATTRIBUTES) {
+                json.put(attribute, mbeanServer.getAttribute(objectName, attribute));
+            }
+            result = json.toString();
+        }
+        catch (Exception e) {
+            logger.error("Unable to read overload control MBean.", e);
+        }
+
+        return Response.status(200).entity(result).build();
+    }
+
+    /**
+     * Set Overload Control Watermark
+     * [POST] http://mob-chaser/api/[version]/charging/overload/{watermark}/{value}
+     *
+	 * @param watermark the watermark to set, MaxInFlight or MaxLatency
+	 * @param value the value to set it to, 0 for no limit
+     * @return the result of the operation, as a text string
+     */
+    @POST
+    @Path("/overload/{watermark}/{value}")
+    public Response setOverloadControlWatermark(@PathParam("watermark") String watermark, @PathParam("value") Long value) {
+        String result = "Setting overload control '" + watermark + "' to " + value;
+		if (logger.isInfoEnabled()) {
+			logger.info("[><] " + result);
+		}
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OVERLOAD_CONTROL_MBEAN);
+            if ("MaxInFlight".equals(watermark)) {
+                mbeanServer.setAttribute(objectName, new Attribute(watermark, value.intValue()));
+                result = "OK";
+            }
+            else if ("MaxLatency".equals(watermark)) {
+                mbeanServer.setAttribute(objectName, new Attribute(watermark, value));
+                result = "OK";
+            }
+            else {
+                result = "FAIL";
+            }
+        }
+        catch (Exception e) {
+            logger.error("Unable to set overload control MBean attribute.", e);
+        }
+
+        return Response.status(200).entity(result).build();
+    }
+
+    /**
+     * Get Rate Cache Metrics
+     * [GET] http://mob-chaser/api/[version]/charging/rates
+     *
+     * @return the rate cache size, times to live and hit counters, as a JSON object
+     */
+    @GET
+    @Path("/rates")
+    public Response getRateCache() {
+        String result = "Getting rate cache metrics";
+		if (logger.isInfoEnabled()) {
+			logger.info("[><] " + result);
+		}
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(RATE_CACHE_MBEAN);
+            JSONObject json = new JSONObject();
+            for (String attribute : RATE_CACHE_ATTRIBUTES) {
+                json.put(attribute, mbeanServer.getAttribute(objectName, attribute));
+            }
+            result = json.toString();
+        }
+        catch (Exception e) {
+            logger.error("Unable to read rate cache MBean.", e);
+        }
+
+        return Response.status(200).entity(result).build();
+    }
+
+    /**
+     * Invalidate All Cached Rates
+     * [DELETE] http://mob-chaser/api/[version]/charging/rates
+     *
+     * @return the number of rates invalidated, as a text string
+     */
+    @DELETE
+    @Path("/rates")
+    public Response invalidateRates() {
+        String result = "Invalidating all cached rates";
+		if (logger.isInfoEnabled()) {
+			logger.info("[><] " + result);
+		}
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(RATE_CACHE_MBEAN);
+            result = String.valueOf(mbeanServer.invoke(objectName, "invalidateAll", null, null));
+        }
+        catch (Exception e) {
+            logger.error("Unable to invalidate cached rates.", e);
+        }
+
+        return Response.status(200).entity(result).build();
+    }
+
+    /**
+     * Invalidate Cached Rates of a Service
+     * [DELETE] http://mob-chaser/api/[version]/charging/rates/service/{serviceId}
+     *
+     * @param serviceId the Service-Id to invalidate the rates of
+     * @return the number of rates invalidated, as a text string
+     */
+    @DELETE
+    @Path("/rates/service/{serviceId}")
+    public Response invalidateServiceRates(@PathParam("serviceId") Long serviceId) {
+        String result = "Invalidating cached rates for Service-Id " + serviceId;
+		if (logger.isInfoEnabled()) {
+			logger.info("[><] " + result);
+		}
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(RATE_CACHE_MBEAN);
+            result = String.valueOf(mbeanServer.invoke(objectName, "invalidateService", new Object[] { serviceId }, new String[] { long.class.getName() }));
+        }
+        catch (Exception e) {
+            logger.error("Unable to invalidate cached rates.", e);
+        }
+
+        return Response.status(200).entity(result).build();
+    }
+
 }
 
@@ -0,0 +1,297 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.slee.facilities.Tracer;
+
+import net.java.slee.resource.diameter.base.events.avp.DiameterAvp;
+import net.java.slee.resource.diameter.base.events.avp.DiameterAvpType;
+import net.java.slee.resource.diameter.base.events.avp.GroupedAvp;
+
+import org.mobicents.charging.server.account.CreditControlInfo;
+
+/**
+ * Plan for extracting the AVPs to pass to the ABMF from a Credit-Control-Request, compiled once from the ABMF_AVPs
+ * env-entry. Each entry is either CODE=NAME, matching that AVP code at any depth, or GROUPED/.../CODE=NAME, matching it
+ * only inside the given grouped AVPs. Codes are looked up in sorted int arrays, grouped AVPs are only descended into
+ * when they can contain what is still missing, and the walk stops once every configured AVP has been found.
+ *
+ * Values are stored typed (String, Integer, Long, Float, Double or byte[]) as the first occurrence of each AVP.
+ *
+ * @author ammendonca
+ */
+public final class AvpExtractionPlan {
+
+	private static final int[] NO_CODES = new int[0];
+
+	private static final Node EMPTY_NODE = new Node();
+
+	/**
+	 * What to look for among the AVPs at one level: codes of the wanted AVPs and of the grouped AVPs to descend into.
+	 */
+	private static final class Node {
+		int[] leafCodes = NO_CODES;
+		int[] leafTargets = NO_CODES;
+		int[] groupCodes = NO_CODES;
+		Node[] groups = new Node[0];
+	}
+
+	private final Tracer tracer;
+
+	private final Node root;
+	// codes wanted at any depth, and their targets
+	private final int[] anyCodes;
+	private final int[] anyTargets;
+
+	// target names and codes, indexed by target
+	private final String[] names;
+	private final int[] codes;
+
+	private AvpExtractionPlan(Node root, int[] anyCodes, int[] anyTargets, String[] names, int[] codes, Tracer tracer) {
+		this.root = root;
+		this.anyCodes = anyCodes;
+		this.anyTargets = anyTargets;
+		this.names = names;
+		this.codes = codes;
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Compiles the extraction plan. Malformed entries are reported and skipped.
+	 *
+	 * @param spec the AVPs to extract, in format CODE=NAME,GROUPED/CODE=NAME,...
+	 * @param tracer the tracer to log to
+	 * @return the extraction plan
+	 */
+	public static AvpExtractionPlan compile(String spec, Tracer tracer) {
+		TreeMap<Integer, Object> rootBuilder = new TreeMap<Integer, Object>();
+		TreeMap<Integer, Integer> anyBuilder = new TreeMap<Integer, Integer>();
+		ArrayList<String> names = new ArrayList<String>();
+		ArrayList<Integer> codes = new ArrayList<Integer>();
+
+		for (String entry : spec.trim().split(",")) {
+			if (entry.trim().length() == 0) {
+				continue;
+			}
+			try {
+				String[] pathName = entry.trim().split("=");
+				String name = pathName[1].trim();
+				String[] path = pathName[0].trim().split("/");
+				int code = Integer.parseInt(path[path.length - 1].trim());
+				int target = names.size();
+				if (path.length == 1) {
+					anyBuilder.put(code, target);
+				}
+				else {
+					TreeMap<Integer, Object> level = rootBuilder;
+					for (int i = 0; i < path.length - 1; i++) {
+						// grouped AVPs are keyed by their negated code + 1, so they don't clash with the leaf ones
+						int groupKey = -Integer.parseInt(path[i].trim()) - 1;
+						@SuppressWarnings("unchecked")
+						TreeMap<Integer, Object> next = (TreeMap<Integer, Object>) level.get(groupKey);
+						if (next == null) {
+							next = new TreeMap<Integer, Object>();
+							level.put(groupKey, next);
+						}
+						level = next;
+					}
+					level.put(code, target);
+				}
+				names.add(name);
+				codes.add(code);
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[><] Mapping AVP with Code " + pathName[0].trim() + " as '" + name + "' on received CCRs for ABMF Data.");
+				}
+			}
+			catch (Exception e) {
+				tracer.warning("[!!] Error reading ABMF Data AVP '" + entry.trim() + "'. Format should be: code=name,grouped/code=name,... It will not be passed.");
+			}
+		}
+
+		int[] anyCodes = new int[anyBuilder.size()];
+		int[] anyTargets = new int[anyBuilder.size()];
+		int i = 0;
+		for (Map.Entry<Integer, Integer> any : anyBuilder.entrySet()) {
+			anyCodes[i] = any.getKey();
+			anyTargets[i++] = any.getValue();
+		}
+		int[] targetCodes = new int[codes.size()];
+		for (i = 0; i < targetCodes.length; i++) {
+			targetCodes[i] = codes.get(i);
+		}
+
+		return new AvpExtractionPlan(compileNode(rootBuilder), anyCodes, anyTargets, names.toArray(new String[names.size()]), targetCodes, tracer);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Node compileNode(TreeMap<Integer, Object> level) {
+		if (level.isEmpty()) {
+			return EMPTY_NODE;
+		}
+		ArrayList<Integer> leafCodes = new ArrayList<Integer>();
+		ArrayList<Integer> leafTargets = new ArrayList<Integer>();
+		TreeMap<Integer, Node> groups = new TreeMap<Integer, Node>();
+		for (Map.Entry<Integer, Object> entry : level.entrySet()) {
+			if (entry.getKey() < 0) {
+				groups.put(-entry.getKey() - 1, compileNode((TreeMap<Integer, Object>) entry.getValue()));
+			}
+			else {
+				leafCodes.add(entry.getKey());
+				leafTargets.add((Integer) entry.getValue());
+			}
+		}
+
+		Node node = new Node();
+		node.leafCodes = new int[leafCodes.size()];
+		node.leafTargets = new int[leafCodes.size()];
+		for (int i = 0; i < node.leafCodes.length; i++) {
+			node.leafCodes[i] = leafCodes.get(i);
+			node.leafTargets[i] = leafTargets.get(i);
+		}
+		node.groupCodes = new int[groups.size()];
+		node.groups = new Node[groups.size()];
+		int i = 0;
+		for (Map.Entry<Integer, Node> group : groups.entrySet()) {
+			node.groupCodes[i] = group.getKey();
+			node.groups[i++] = group.getValue();
+		}
+		return node;
+	}
+
+	/**
+	 * @return true if there's no AVP to extract
+	 */
+	public boolean isEmpty() {
+		return names.length == 0;
+	}
+
+	/**
+	 * Extracts the configured AVPs into the CreditControlInfo service info.
+	 *
+	 * @param avps the top level AVPs of the request
+	 * @param ccInfo the CreditControlInfo object to store the values at
+	 * @param sidString the session identification, for logging
+	 */
+	public void extract(DiameterAvp[] avps, CreditControlInfo ccInfo, String sidString) {
+		if (isEmpty()) {
+			return;
+		}
+		Extraction extraction = new Extraction(ccInfo, sidString);
+		extraction.walk(avps, root, 0);
+	}
+
+	/**
+	 * The state of an extraction from one request.
+	 */
+	private final class Extraction {
+		private final CreditControlInfo ccInfo;
+		private final String sidString;
+		private final boolean[] found = new boolean[names.length];
+		private int remaining = names.length;
+		private int anyRemaining = anyCodes.length;
+
+		Extraction(CreditControlInfo ccInfo, String sidString) {
+			this.ccInfo = ccInfo;
+			this.sidString = sidString;
+		}
+
+		void walk(DiameterAvp[] avps, Node node, int depth) {
+			for (int i = 0; remaining > 0 && i < avps.length; i++) {
+				DiameterAvp avp = avps[i];
+				int code = avp.getCode();
+				if (tracer.isFinerEnabled()) {
+					tracer.finer("[><] " + sidString + " Scanning AVP at depth " + depth + " with code " + code + " and type " + avp.getType() + " ...");
+				}
+				if (avp.getType() == DiameterAvpType.GROUPED) {
+					int index = Arrays.binarySearch(node.groupCodes, code);
+					Node group = index >= 0 ? node.groups[index] : (anyRemaining > 0 ? EMPTY_NODE : null);
+					if (group != null) {
+						walk(((GroupedAvp) avp).getExtensionAvps(), group, depth + 1);
+					}
+				}
+				else {
+					int index = Arrays.binarySearch(node.leafCodes, code);
+					if (index >= 0) {
+						store(node.leafTargets[index], avp);
+					}
+					if (anyRemaining > 0 && (index = Arrays.binarySearch(anyCodes, code)) >= 0 && store(anyTargets[index], avp)) {
+						anyRemaining--;
+					}
+				}
+			}
+		}
+
+		private boolean store(int target, DiameterAvp avp) {
+			if (found[target]) {
+				return false;
+			}
+			Object value = getValue(avp);
+			if (tracer.isFineEnabled()) {
+				tracer.fine("[><] " + sidString + " Storing AVP with code " + codes[target] + " as '" + names[target] + "' with value '" + value + "'");
+			}
+			ccInfo.addServiceInfo(names[target], value);
+			found[target] = true;
+			remaining--;
+			return true;
+		}
+	}
+
+	private static Object getValue(DiameterAvp avp) {
+		switch (avp.getType().getType())
+		{
+			case DiameterAvpType._ADDRESS:
+			case DiameterAvpType._DIAMETER_IDENTITY:
+			case DiameterAvpType._DIAMETER_URI:
+			case DiameterAvpType._IP_FILTER_RULE:
+			case DiameterAvpType._OCTET_STRING:
+			case DiameterAvpType._QOS_FILTER_RULE:
+			case DiameterAvpType._UTF8_STRING:
+				return avp.octetStringValue();
+			case DiameterAvpType._ENUMERATED:
+			case DiameterAvpType._INTEGER_32:
+				return avp.intValue();
+			case DiameterAvpType._FLOAT_32:
+				return avp.floatValue();
+			case DiameterAvpType._FLOAT_64:
+				return avp.doubleValue();
+			case DiameterAvpType._INTEGER_64:
+			case DiameterAvpType._TIME:
+			case DiameterAvpType._UNSIGNED_32:
+			case DiameterAvpType._UNSIGNED_64:
+				return avp.longValue();
+			default:
+				return avp.byteArrayValue();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "AvpExtractionPlan[" + Arrays.toString(names) + "]";
+	}
+
+}
@@ -22,6 +22,8 @@
 
 package org.mobicents.charging.server;
 
+import java.util.HashMap;
+
 import org.mobicents.charging.server.account.CreditControlInfo;
 import org.mobicents.charging.server.ratingengine.RatingInfo;
 
@@ -42,4 +44,13 @@ public interface DiameterChargingServer {
 
 	public void getRateForServiceResult(RatingInfo ratingInfo);
 
+	/**
+	 * Callback for resuming handling of Credit-Control-Request, once its requested units are rated.
+	 * 
+	 * @param params the parameters of each rating, as given to the rating engine
+	 * @param ratingInfos the rating results, in the same order
+	 */
+	@SuppressWarnings("rawtypes")
+	public void getRatesForServicesResult(HashMap[] params, RatingInfo[] ratingInfos);
+
 }
\ No newline at end of file
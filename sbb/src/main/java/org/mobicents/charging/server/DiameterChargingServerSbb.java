@@ -23,7 +23,6 @@
 package org.mobicents.charging.server;
 
 import java.io.IOException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -36,6 +35,7 @@ import javax.slee.ActivityContextInterface;
 import javax.slee.ChildRelation;
 import javax.slee.CreateException;
 import javax.slee.InitialEventSelector;
+import javax.slee.RolledBackContext;
 import javax.slee.SLEEException;
 import javax.slee.Sbb;
 import javax.slee.SbbContext;
@@ -48,13 +48,12 @@ import javax.slee.facilities.Tracer;
 import javax.slee.resource.ResourceAdaptorTypeID;
 import javax.slee.serviceactivity.ServiceStartedEvent;
 
-import net.java.slee.resource.diameter.base.events.avp.DiameterAvp;
-import net.java.slee.resource.diameter.base.events.avp.DiameterAvpType;
 import net.java.slee.resource.diameter.base.events.avp.DiameterResultCode;
-import net.java.slee.resource.diameter.base.events.avp.GroupedAvp;
 import net.java.slee.resource.diameter.cca.events.avp.CcRequestType;
 import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
+import net.java.slee.resource.diameter.cca.events.avp.CreditControlFailureHandlingType;
 import net.java.slee.resource.diameter.cca.events.avp.CreditControlResultCode;
+import net.java.slee.resource.diameter.cca.events.avp.DirectDebitingFailureHandlingType;
 import net.java.slee.resource.diameter.cca.events.avp.FinalUnitActionType;
 import net.java.slee.resource.diameter.cca.events.avp.FinalUnitIndicationAvp;
 import net.java.slee.resource.diameter.cca.events.avp.GrantedServiceUnitAvp;
@@ -74,11 +73,19 @@ import org.mobicents.charging.server.account.AccountBalanceManagement;
 import org.mobicents.charging.server.account.CreditControlInfo;
 import org.mobicents.charging.server.account.CreditControlInfo.ErrorCodeType;
 import org.mobicents.charging.server.account.CreditControlUnit;
+import org.mobicents.charging.server.account.QuotaDimensioning;
 import org.mobicents.charging.server.cdr.CDRGenerator;
+import org.mobicents.charging.server.cdr.CDRWriter;
+import org.mobicents.charging.server.ratingengine.RateCache;
 import org.mobicents.charging.server.ratingengine.RatingEngineClient;
 import org.mobicents.charging.server.ratingengine.RatingInfo;
+import org.mobicents.charging.server.ratingengine.local.LocalRatingEngine;
 import org.mobicents.charging.server.data.DataSource;
+import org.mobicents.charging.server.data.PendingRating;
 import org.mobicents.charging.server.data.UserSessionInfo;
+import org.mobicents.charging.server.session.AnswerCache;
+import org.mobicents.charging.server.session.OverloadControl;
+import org.mobicents.charging.server.session.SessionSupervisor;
 import org.mobicents.slee.ChildRelationExt;
 import org.mobicents.slee.SbbContextExt;
 import org.mobicents.slee.SbbLocalObjectExt;
@@ -93,10 +100,16 @@ import org.mobicents.slee.SbbLocalObjectExt;
 public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb, DiameterChargingServer {
 
 	private static final long DEFAULT_VALIDITY_TIME = 86400;
+	// time (s) a session denied on its initial request is kept for its late reservation, about the client Tx timer
+	private static final long DENIED_SESSION_TIME = 10;
+	// service info marking the Credit Control Info releasing a late reservation
+	private static final String RELEASE_SERVICE_INFO = "Release";
 	private static final TimerOptions DEFAULT_TIMER_OPTIONS = new TimerOptions(0, TimerPreserveMissed.ALL);
 
-	private boolean performRating = false; // true = centralized, false = decentralized (ie, has been done by CTF (eg SIP AS))
-	private boolean generateCDR = false;
+	// configuration, loaded when the service starts and shared by all SBB objects
+	private static boolean performRating = false; // true = centralized, false = decentralized (ie, has been done by CTF (eg SIP AS))
+	private static boolean generateCDR = false;
+	private static boolean sharedRatingEngine = true; // true = local rating engine shared by all sessions, false = RatingEngineManagement child SBB
 
 	private static TimerOptions createDefaultTimerOptions() {
 		TimerOptions timerOptions = new TimerOptions();
@@ -113,13 +126,23 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 	//private RoActivityContextInterfaceFactory roAcif;
 	private RoProvider roProvider;
 
+	// Transient state, resolved once for the SBB entity this object is assigned to, and cleared when it's reassigned
 	private AccountBalanceManagement accountBalanceManagement = null;
 	private RatingEngineClient ratingEngineManagement = null;
 	private CDRGenerator cdrGenerator = null;
+	private ActivityContextInterface serverSessionACI = null;
 
 	private String sidString = "SID<Unknown/?#?>";
 
-	private static HashMap<String, String> abmfAVPs = new HashMap<String, String>();
+	// Time budget (ms) for answering a request (0 for none) and the local decision when it runs out
+	private static long deadlineBudget = 0;
+	private static long deadlineProvisionalUnits = 0;
+	private static CreditControlFailureHandlingType deadlineFailureHandling = CreditControlFailureHandlingType.TERMINATE;
+	private static DirectDebitingFailureHandlingType deadlineDirectDebitingFailureHandling = DirectDebitingFailureHandlingType.TERMINATE_OR_BUFFER;
+
+	private long deadline = 0; // Time by which the request being handled must be answered, 0 if none
+
+	private static AvpExtractionPlan abmfAVPs = null;
 
 	// ---------------------------- SLEE Callbacks ----------------------------
 
@@ -140,6 +163,48 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		this.tracer = null;
 	}
 
+	public void sbbCreate() throws CreateException {
+		clearTransientState();
+	}
+
+	public void sbbActivate() {
+		clearTransientState();
+	}
+
+	public void sbbPassivate() {
+		clearTransientState();
+	}
+
+	public void sbbRemove() {
+		// a request still being handled is never going to be answered now
+		abandonRequest();
+		clearTransientState();
+	}
+
+	public void sbbRolledBack(RolledBackContext context) {
+		// children created or activities attached in the rolled back transaction are gone
+		clearTransientState();
+		// and so is the request handling, which is not going to be answered
+		if (context.getEvent() instanceof RoCreditControlRequest) {
+			RoCreditControlRequest ccr = (RoCreditControlRequest) context.getEvent();
+			AnswerCache answerCache = AnswerCache.getInstance();
+			if (answerCache != null) {
+				answerCache.forget(ccr.getSessionId(), ccr.getCcRequestNumber());
+			}
+		}
+	}
+
+	/**
+	 * Clears the child SBB references and the session ACI cached for the SBB entity, as the SBB object is being
+	 * assigned to another one, or they may no longer be valid.
+	 */
+	private void clearTransientState() {
+		this.accountBalanceManagement = null;
+		this.ratingEngineManagement = null;
+		this.cdrGenerator = null;
+		this.serverSessionACI = null;
+	}
+
 	/**
 	 * Convenience method to retrieve the SbbContext object stored in
 	 * setSbbContext.
@@ -157,8 +222,6 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 
 	public abstract ChildRelation getRatingEngineChildRelation();
 
-	public abstract ChildRelation getCDRGeneratorChildRelation();
-
 	// --------------------------------- IES ----------------------------------
 	public InitialEventSelector onCreditControlRequestInitialEventSelect(InitialEventSelector ies) {
 		RoCreditControlRequest event = (RoCreditControlRequest) ies.getEvent();
@@ -210,17 +273,6 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		return (RatingEngineClient) sbbLocalObject;
 	}
 
-	private static final String CDRGEN_CHILD_NAME = "CDR_GENERATOR";
-	protected CDRGenerator getCDRGenerator() throws IllegalArgumentException, NullPointerException, SLEEException, CreateException {
-		ChildRelationExt cre = (ChildRelationExt) getCDRGeneratorChildRelation();
-		SbbLocalObjectExt sbbLocalObject = cre.get(CDRGEN_CHILD_NAME);
-		if (sbbLocalObject == null) {
-			sbbLocalObject = cre.create(CDRGEN_CHILD_NAME);
-		}
-
-		return (CDRGenerator) sbbLocalObject;
-	}
-
 	/**
 	 * @param errorCodeType
 	 * @return
@@ -236,6 +288,8 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 			return CreditControlResultCode.DIAMETER_END_USER_SERVICE_DENIED;
 		case NotEnoughBalance:
 			return CreditControlResultCode.DIAMETER_CREDIT_LIMIT_REACHED;
+		case DeadlineExceeded:
+			return DiameterResultCode.DIAMETER_TOO_BUSY;
 		case InvalidContent:
 		case MalformedRequest:
 		case AccountingConnectionErr:
@@ -288,22 +342,39 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 			boolean loadUsersFromCSV = (Boolean) loadEnvEntry(ctx, "loadUsersFromCSV", false);
 			performRating = (Boolean) loadEnvEntry(ctx, "performRating", false);
 			generateCDR = (Boolean) loadEnvEntry(ctx, "generateCDR", false);
-			String abmfAVPsProp = (String) loadEnvEntry(ctx, "ABMF_AVPs", "");
-
-
-			try {
-				String[] avps = abmfAVPsProp.trim().split(",");
-				for (String avp : avps) {
-					String[] codeName = avp.trim().split("=");
-					if (tracer.isInfoEnabled()) {
-						tracer.info("[><] Mapping AVP with Code " + codeName[0] + " as '" + codeName[1] + "' on received CCRs for ABMF Data.");
-					}
-					abmfAVPs.put(codeName[0], codeName[1]);
-				}
+			sharedRatingEngine = (Boolean) loadEnvEntry(ctx, "sharedRatingEngine", true);
+			CDRWriter.start(sbbContextExt.getTracer("CS-CDRG"));
+			if (sharedRatingEngine) {
+				LocalRatingEngine.start(sbbContextExt.getTracer("CS-RF-SMPL"));
 			}
-			catch (Exception e) {
-				tracer.warning("[!!] Error reading ABMF Data AVPs. Format should be: code=name,code2=name2,... No custom data will be passed.");
+			long rateCacheTimeToLive = (Long) loadEnvEntry(ctx, "rateCacheTimeToLive", 0L);
+			long rateCacheNegativeTimeToLive = (Long) loadEnvEntry(ctx, "rateCacheNegativeTimeToLive", 0L);
+			int rateCacheSize = (Integer) loadEnvEntry(ctx, "rateCacheSize", 0);
+			String rateCacheTariffBands = (String) loadEnvEntry(ctx, "rateCacheTariffBands", "");
+			RateCache.start(rateCacheTimeToLive, rateCacheNegativeTimeToLive, rateCacheSize, rateCacheTariffBands, tracer);
+			String abmfAVPsProp = (String) loadEnvEntry(ctx, "ABMF_AVPs", "");
+			long sessionSupervisionTick = (Long) loadEnvEntry(ctx, "sessionSupervisionTick", 1000L);
+			if (sessionSupervisionTick > 0) {
+				SessionSupervisor.start(sessionSupervisionTick, tracer);
 			}
+			long quotaTargetInterval = (Long) loadEnvEntry(ctx, "quotaTargetInterval", 0L);
+			long quotaMaxGrantFactor = (Long) loadEnvEntry(ctx, "quotaMaxGrantFactor", 1L);
+			long quotaMaxBalancePercent = (Long) loadEnvEntry(ctx, "quotaMaxBalancePercent", 50L);
+			int quotaTrackedSubscribers = (Integer) loadEnvEntry(ctx, "quotaTrackedSubscribers", 100000);
+			QuotaDimensioning.start(quotaTargetInterval, quotaMaxGrantFactor, quotaMaxBalancePercent, quotaTrackedSubscribers, tracer);
+			long answerCacheTimeToLive = (Long) loadEnvEntry(ctx, "answerCacheTimeToLive", 0L);
+			int answerCacheSize = (Integer) loadEnvEntry(ctx, "answerCacheSize", 0);
+			AnswerCache.start(answerCacheTimeToLive, answerCacheSize, tracer);
+			int overloadMaxInFlight = (Integer) loadEnvEntry(ctx, "overloadMaxInFlight", 0);
+			long overloadMaxLatency = (Long) loadEnvEntry(ctx, "overloadMaxLatency", 0L);
+			OverloadControl.start(overloadMaxInFlight, overloadMaxLatency, tracer);
+			deadlineBudget = (Long) loadEnvEntry(ctx, "requestDeadline", 0L);
+			deadlineProvisionalUnits = (Long) loadEnvEntry(ctx, "deadlineProvisionalUnits", 0L);
+			deadlineFailureHandling = CreditControlFailureHandlingType.valueOf((String) loadEnvEntry(ctx, "deadlineFailureHandling", "TERMINATE"));
+			deadlineDirectDebitingFailureHandling = DirectDebitingFailureHandlingType.valueOf((String) loadEnvEntry(ctx, "deadlineDirectDebitingFailureHandling", "TERMINATE_OR_BUFFER"));
+
+
+			abmfAVPs = AvpExtractionPlan.compile(abmfAVPsProp, tracer);
 
 			if (loadUsersFromCSV) {
 				try {
@@ -356,22 +427,11 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 	}
 
 	public void onCreditControlRequest(RoCreditControlRequest ccr, ActivityContextInterface aci) {
-		String serviceContextId = "Some-Service-Context-Id";
-
 		String sessionId = ccr.getSessionId();
 
-		UserSessionInfo sessionInfo = getSessionInfo();
-		if (sessionInfo == null) {
-			sessionInfo = new UserSessionInfo();
-			sessionInfo.setSessionStartTime(System.currentTimeMillis());
-		}
-		sessionInfo.setCcr(ccr);
-		sessionInfo.setSessionId(sessionId);
-		setSessionInfo(sessionInfo);
-
 		String reqType = ccr.getCcRequestType().toString();
 		long reqNumber = ccr.getCcRequestNumber();
-		sidString = "SID<" + limitString(sessionId, 9, 9, "..") + "/" + reqType.substring(0, 3) + "#" + reqNumber + ">";
+		sidString = toSidString(sessionId, reqType, reqNumber);
 
 		if (tracer.isInfoEnabled()) {
 			tracer.info("[<<] " + sidString + " Received Credit-Control-Request [" + reqType + "]");
@@ -382,6 +442,54 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 
 		// Some common ops. may be moved to proper places to avoid unnecessary ops
 		RoServerSessionActivity ccServerActivity = (RoServerSessionActivity) aci.getActivity();
+		serverSessionACI = aci;
+
+		// Retransmitted or failed over requests are answered as the original, without charging again
+		if (handleDuplicate(ccServerActivity, sessionId, reqNumber)) {
+			return;
+		}
+
+		// When overloaded, new sessions are rejected, so that established ones can still report their usage
+		UserSessionInfo sessionInfo = getSessionInfo();
+		OverloadControl overloadControl = OverloadControl.getInstance();
+		if (overloadControl != null && sessionInfo == null && ccr.getCcRequestType() == CcRequestType.INITIAL_REQUEST && !overloadControl.admitSession()) {
+			rejectSession(ccServerActivity, aci, sessionId, reqNumber);
+			return;
+		}
+
+		if (sessionInfo == null) {
+			sessionInfo = new UserSessionInfo();
+			sessionInfo.setSessionStartTime(System.currentTimeMillis());
+		}
+		sessionInfo.setRequest(ccr);
+		sessionInfo.setSessionId(sessionId);
+		// accounted as handled when answered, in sendCCA
+		long receivedTime = System.currentTimeMillis();
+		deadline = deadlineBudget > 0 ? receivedTime + deadlineBudget : 0;
+		sessionInfo.setRequestReceivedTime(receivedTime);
+		if (overloadControl != null) {
+			overloadControl.requestStarted();
+		}
+		setSessionInfo(sessionInfo);
+
+		boolean pending = false;
+		try {
+			pending = handleCreditControlRequest(ccr, aci, ccServerActivity, sessionInfo);
+		}
+		finally {
+			if (!pending) {
+				abandonRequest();
+			}
+		}
+	}
+
+	/**
+	 * Handles a new Credit-Control-Request, already accounted as being handled.
+	 *
+	 * @return true if it will be answered once the ABMF or the rating engine get back, false otherwise
+	 */
+	private boolean handleCreditControlRequest(RoCreditControlRequest ccr, ActivityContextInterface aci, RoServerSessionActivity ccServerActivity, UserSessionInfo sessionInfo) {
+		String serviceContextId = "Some-Service-Context-Id";
 
 		SubscriptionIdType endUserType = null; 
 		String endUserId = null;
@@ -403,28 +511,31 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		}
 		else {
 			tracer.severe("[xx] " + sidString + " Subscription-Id AVP missing in CCR. Rejecting CCR.");
-			cca = createCCA(ccServerActivity, ccr, null, DiameterResultCode.DIAMETER_MISSING_AVP);
+			cca = createCCA(ccServerActivity, DiameterResultCode.DIAMETER_MISSING_AVP);
 			sendCCA(cca, aci, true);
-			return;
+			return false;
 		}
 
 		if (endUserId == null) {
 			tracer.severe("[xx] " + sidString + " Subscription-Id AVP is present but could not read it's data. Rejecting CCR.");
-			cca = createCCA(ccServerActivity, ccr, null, DiameterResultCode.DIAMETER_MISSING_AVP);
+			cca = createCCA(ccServerActivity, DiameterResultCode.DIAMETER_MISSING_AVP);
 			sendCCA(cca, aci, true);
-			return;
+			return false;
 		}
 
-		// Retrieve child SBBs
+		// Retrieve child SBBs, unless already done for this entity. The stateless rating and CDR generation are shared by all sessions
 		try {
-			accountBalanceManagement = getAccountManager();
-			ratingEngineManagement = getRatingEngineManager();
-			cdrGenerator = getCDRGenerator();
+			if (accountBalanceManagement == null) {
+				accountBalanceManagement = getAccountManager();
+			}
+			if (ratingEngineManagement == null) {
+				ratingEngineManagement = sharedRatingEngine ? LocalRatingEngine.getInstance() : (performRating ? getRatingEngineManager() : null);
+			}
 		}
 		catch (Exception e) {
 			// TODO: By configuration it should be possible to proceed
 			tracer.severe("[xx] " + sidString + " Unable to retrieve Account & Balance Management or Rating Child SBB. Unable to continue.", e);
-			cca = createCCA(ccServerActivity, ccr, new ArrayList<CreditControlInfo>(), DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY);
+			cca = createCCA(ccServerActivity, DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY);
 			sendCCA(cca, aci, true);
 		}
 
@@ -443,22 +554,19 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 				if (serviceContextId == null) {
 					tracer.severe("[xx] " + sidString + " Service-Context-Id AVP missing in CCR. Rejecting CCR.");
 					// TODO: include missing avp - its a "SHOULD"
-					cca = createCCA(ccServerActivity, ccr, null, DiameterResultCode.DIAMETER_MISSING_AVP);
+					cca = createCCA(ccServerActivity, DiameterResultCode.DIAMETER_MISSING_AVP);
 					sendCCA(cca, aci, true);
 				}
 				else {
 					if (serviceContextId.equals("")) {
 						tracer.severe("[xx] " + sidString + " Service-Context-Id AVP is empty in CCR. Rejecting CCR.");
-						cca = createCCA(ccServerActivity, ccr, null, DiameterResultCode.DIAMETER_INVALID_AVP_VALUE);
+						cca = createCCA(ccServerActivity, DiameterResultCode.DIAMETER_INVALID_AVP_VALUE);
 						sendCCA(cca, aci, true);
 					}
 				}
 
 				// TODO: For Ro, support Service-Information AVP
 
-				List<CreditControlInfo> reservations = new ArrayList<CreditControlInfo>();
-				long resultCode = DiameterResultCode.DIAMETER_SUCCESS;
-
 				MultipleServicesCreditControlAvp[] multipleServicesCreditControlAvps = ccr.getMultipleServicesCreditControls();
 				if (multipleServicesCreditControlAvps != null && tracer.isFineEnabled()) {
 					tracer.fine("[--] " + sidString + " Received CCR has Multiple-Services-Credit-Control AVP with length = " + multipleServicesCreditControlAvps.length);
@@ -474,6 +582,17 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 					multipleServicesCreditControlAvps = new MultipleServicesCreditControlAvp[]{fakeMSCC};
 				}
 
+				boolean isUpdate = ccr.getCcRequestType() == CcRequestType.UPDATE_REQUEST;
+				ArrayList<CreditControlUnit> reservedCCUnits = isUpdate ? sessionInfo.getReservedUnits() : null;
+				long lastGrantTime = isUpdate ? sessionInfo.getLastGrantTime() : 0;
+				QuotaDimensioning quotaDimensioning = QuotaDimensioning.getInstance();
+
+				// All MSCCs are collected into a single Credit Control Info, so that ABMF and Datasource handle the
+				// whole CCR at once (one reservation for all rating groups) and the answer has one GSU per MSCC.
+				ArrayList<CreditControlUnit> ccUnits = new ArrayList<CreditControlUnit>();
+				ArrayList<CreditControlUnit> requestedCCUnits = new ArrayList<CreditControlUnit>();
+				long[] allServiceIds = new long[0];
+
 				// RFC4006 / 8.16.  Multiple-Services-Credit-Control AVP
 				// Note that each instance of this AVP carries units related to one or more services or related to a
 				// single rating group.
@@ -487,6 +606,8 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 
 					long ratingGroup = mscc.getRatingGroup();
 					long[] serviceIds = mscc.getServiceIdentifiers();
+					long serviceId = getServiceId(serviceIds);
+					allServiceIds = concat(allServiceIds, serviceIds);
 
 					// The Requested-Service-Unit AVP MAY contain the amount of requested service units [...]. It MUST
 					// be present in the initial interrogation and within the intermediate interrogations in which new
@@ -495,52 +616,46 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 					// service, the server MUST debit the used amount from the user's account but MUST NOT return a new
 					// quota in the corresponding answer.
 
-					RequestedServiceUnitAvp rsu = mscc.getRequestedServiceUnit();
-					ArrayList<CreditControlUnit> ccUnits = getRequestedUnits(ccr, rsu, serviceIds);
-
-					// if its UPDATE, lets first update data
-					if (ccr.getCcRequestType() == CcRequestType.UPDATE_REQUEST) {
-						// update used units for each CC-Type.
-						UsedServiceUnitAvp[] usedUnitsAvps = mscc.getUsedServiceUnits();
-
-						sessionInfo = getSessionInfo();
-						CreditControlInfo reservedInfo = sessionInfo.getReservations().get(sessionInfo.getReservations().size() - 1);
+					// if its UPDATE, lets also update used units for each CC-Type, learning the consumption velocity
+					// before sizing the new grant.
+					ArrayList<CreditControlUnit> usedCCUnits = null;
+					if (isUpdate) {
+						usedCCUnits = collectUsedUnits(mscc.getUsedServiceUnits(), reservedCCUnits, ratingGroup, serviceId);
+						if (quotaDimensioning != null && lastGrantTime > 0) {
+							long elapsed = System.currentTimeMillis() - lastGrantTime;
+							for (CreditControlUnit usedCCUnit : usedCCUnits) {
+								quotaDimensioning.recordUsage(endUserId, ratingGroup, usedCCUnit.getUnitType(), usedCCUnit.getUsedUnits(), elapsed);
+							}
+						}
+					}
 
-						ArrayList<CreditControlUnit> usedCCUnits = collectUsedUnits(usedUnitsAvps, reservedInfo.getCcUnits());
+					RequestedServiceUnitAvp rsu = mscc.getRequestedServiceUnit();
+					ArrayList<CreditControlUnit> msccRequestedCCUnits = getRequestedUnits(ccr, rsu, ratingGroup, serviceId, quotaDimensioning != null ? endUserId : null);
+					ccUnits.addAll(msccRequestedCCUnits);
+					requestedCCUnits.addAll(msccRequestedCCUnits);
 
+					if (isUpdate) {
 						// Merge Requested with Used/Reserved CC Units into a single CCUnits
 						ccUnits.addAll(usedCCUnits);
-
-						// Call ABMF with this Credit Control Info
-						CreditControlInfo ccInfo = buildCCInfo(ccr, endUserId, endUserType, ccUnits);
-						accountBalanceManagement.updateRequest(ccInfo);
 					}
-					else {
-						// Initial Request
-
-						// Call ABMF with this Credit Control Info
-						CreditControlInfo ccInfo = buildCCInfo(ccr, endUserId, endUserType, ccUnits);
-						accountBalanceManagement.initialRequest(ccInfo);
-					}
-
-					// Store Credit Control Info in CMP
-					sessionInfo = getSessionInfo();
-					sessionInfo.setCcr(ccr);
-					sessionInfo.setServiceIds(serviceIds);
-					sessionInfo.setEndUserId(endUserId);
-					sessionInfo.setEndUserType(endUserType);
-					setSessionInfo(sessionInfo);
-
-					return; // we'll continue @ resumeOnCreditControlRequest(..)
 				}
 
-				if (reservations.size() > 0) {
-					cca = createCCA(ccServerActivity, ccr, reservations, resultCode);
+				// Store Credit Control Info in CMP
+				sessionInfo.setRequestedUnits(requestedCCUnits);
+				sessionInfo.setServiceIds(allServiceIds);
+				sessionInfo.setEndUserId(endUserId);
+				sessionInfo.setEndUserType(endUserType);
+				setSessionInfo(sessionInfo);
+
+				// Call ABMF with this Credit Control Info, once the requested units are rated
+				CreditControlInfo ccInfo = buildCCInfo(ccr, endUserId, endUserType, ccUnits);
+				setDeadlineTimer(aci);
+				if (performRating && !rateUnits(ccr, ccInfo, requestedCCUnits)) {
+					return true; // we'll continue @ getRatesForServicesResult(..)
 				}
-				else {
-					cca = createCCA(ccServerActivity, ccr, null, DiameterResultCode.DIAMETER_MISSING_AVP);
-				}
-				sendCCA(cca, aci, false);
+				requestAccountBalance(ccr.getCcRequestType(), ccInfo);
+
+				return true; // we'll continue @ resumeOnCreditControlRequest(..)
 			}
 			catch (Exception e) {
 				tracer.severe("[xx] " + sidString + " Failure processing Credit-Control-Request [" + (ccr.getCcRequestType() == CcRequestType.INITIAL_REQUEST ? "INITIAL" : "UPDATE") + "]", e);
@@ -553,26 +668,31 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 					tracer.info("[>>] " + sidString + " '" + endUserId + "' requested service termination for '" + serviceContextId + "'.");
 				}
 
-				for (MultipleServicesCreditControlAvp mscc : ccr.getMultipleServicesCreditControls()) {
-
-					UsedServiceUnitAvp[] usedUnitsAvps = mscc.getUsedServiceUnits();
-
-					sessionInfo = getSessionInfo();
-					CreditControlInfo reservedInfo = sessionInfo.getReservations().get(sessionInfo.getReservations().size() - 1);
-
-					ArrayList<CreditControlUnit> ccUnits = collectUsedUnits(usedUnitsAvps, reservedInfo.getCcUnits());
+				MultipleServicesCreditControlAvp[] multipleServicesCreditControlAvps = ccr.getMultipleServicesCreditControls();
+				ArrayList<CreditControlUnit> reservedCCUnits = sessionInfo.getReservedUnits();
+
+				// Collect the used units of all MSCCs into a single Credit Control Info. Without MSCCs there's no usage
+				// to report, but the ABMF must still be called, as an empty unit list drops all the session reservations
+				ArrayList<CreditControlUnit> ccUnits = new ArrayList<CreditControlUnit>();
+				if (multipleServicesCreditControlAvps != null) {
+					for (MultipleServicesCreditControlAvp mscc : multipleServicesCreditControlAvps) {
+						long ratingGroup = mscc.getRatingGroup();
+						long serviceId = getServiceId(mscc.getServiceIdentifiers());
+						ccUnits.addAll(collectUsedUnits(mscc.getUsedServiceUnits(), reservedCCUnits, ratingGroup, serviceId));
+					}
+				}
 
-					// Call ABMF with this Credit Control Info
-					CreditControlInfo ccInfo = buildCCInfo(ccr, endUserId, endUserType, ccUnits);
-					accountBalanceManagement.terminateRequest(ccInfo);
+				// Call ABMF with this Credit Control Info
+				CreditControlInfo ccInfo = buildCCInfo(ccr, endUserId, endUserType, ccUnits);
+				setDeadlineTimer(aci);
+				accountBalanceManagement.terminateRequest(ccInfo);
 
-					// No need to Store Credit Control Info in CMP. SLEE Container automatically takes care of garbage collection.
-					// sessionInfo = getSessionInfo();
-					// sessionInfo.getReservations().add(ccInfo);
-					// setSessionInfo(sessionInfo);
+				// No need to Store Credit Control Info in CMP. SLEE Container automatically takes care of garbage collection.
+				// sessionInfo = getSessionInfo();
+				// sessionInfo.getReservations().add(ccInfo);
+				// setSessionInfo(sessionInfo);
 
-					return; // we'll continue @ resumeOnCreditControlRequest(..)
-				}
+				return true; // we'll continue @ resumeOnCreditControlRequest(..)
 
 				// 8.7.  Cost-Information AVP
 				//
@@ -624,11 +744,6 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 
 				// We use no money notion ... maybe later.
 				// AvpSet costInformation = ccaAvps.addGroupedAvp(423);
-
-				// Answer with DIAMETER_SUCCESS, since "4) The default action for failed operations should be to terminate the data session"
-				// its terminated, we cant do much here...
-				cca = createCCA(ccServerActivity, ccr, null, DiameterResultCode.DIAMETER_SUCCESS);
-				sendCCA(cca, aci, true);
 			}
 			catch (Exception e) {
 				tracer.severe("[xx] " + sidString + " Failure processing Credit-Control-Request [TERMINATION]", e);
@@ -648,38 +763,49 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 
 				if (reqAction == null) {
 					tracer.severe("[xx] " + sidString + " Unable to retrieve Requested-Action AVP. Replying with MISSING_AVP.");
-					createCCA(ccServerActivity, ccr, new ArrayList<CreditControlInfo>(), DiameterResultCode.DIAMETER_MISSING_AVP);
+					createCCA(ccServerActivity, DiameterResultCode.DIAMETER_MISSING_AVP);
 					sendCCA(cca, aci, true);
 				}
 				else if (reqAction == RequestedActionType.DIRECT_DEBITING) {
-					for (MultipleServicesCreditControlAvp mscc : ccr.getMultipleServicesCreditControls()) {
-						RequestedServiceUnitAvp rsu = mscc.getRequestedServiceUnit();
-
-						long[] serviceIds = mscc.getServiceIdentifiers();
-
-						ArrayList<CreditControlUnit> ccUnits = getRequestedUnits(ccr, rsu, serviceIds);
-
-						// Call ABMF with this Credit Control Info
-						CreditControlInfo ccInfo = buildCCInfo(ccr, endUserId, endUserType, ccUnits);
-						accountBalanceManagement.eventRequest(ccInfo);
+					MultipleServicesCreditControlAvp[] multipleServicesCreditControlAvps = ccr.getMultipleServicesCreditControls();
+					if (multipleServicesCreditControlAvps.length > 0) {
+						// Collect the requested units of all MSCCs into a single Credit Control Info
+						ArrayList<CreditControlUnit> ccUnits = new ArrayList<CreditControlUnit>();
+						long[] allServiceIds = new long[0];
+						for (MultipleServicesCreditControlAvp mscc : multipleServicesCreditControlAvps) {
+							RequestedServiceUnitAvp rsu = mscc.getRequestedServiceUnit();
+
+							long[] serviceIds = mscc.getServiceIdentifiers();
+							allServiceIds = concat(allServiceIds, serviceIds);
+
+							ccUnits.addAll(getRequestedUnits(ccr, rsu, mscc.getRatingGroup(), getServiceId(serviceIds), null));
+						}
 
 						// Store Credit Control Info in CMP
-						sessionInfo = getSessionInfo();
-						sessionInfo.setCcr(ccr);
+						sessionInfo.setRequestedUnits(ccUnits);
+						sessionInfo.setServiceIds(allServiceIds);
 						sessionInfo.setEndUserId(endUserId);
-						//sessionInfo.getReservations().add(ccInfo);
+						sessionInfo.setEndUserType(endUserType);
 						setSessionInfo(sessionInfo);
 
 						if (tracer.isInfoEnabled()) {
 							tracer.info(sessionInfo.toString());
 						}
 
-						return; // we'll continue @ resumeOnCreditControlRequest(..)
+						// Call ABMF with this Credit Control Info, once the requested units are rated
+						CreditControlInfo ccInfo = buildCCInfo(ccr, endUserId, endUserType, ccUnits);
+						setDeadlineTimer(aci);
+						if (performRating && !rateUnits(ccr, ccInfo, ccUnits)) {
+							return true; // we'll continue @ getRatesForServicesResult(..)
+						}
+						requestAccountBalance(CcRequestType.EVENT_REQUEST, ccInfo);
+
+						return true; // we'll continue @ resumeOnCreditControlRequest(..)
 					}
 				}
 				else {
 					tracer.severe("[xx] " + sidString + " Unsupported Requested-Action AVP (" + reqAction + "). Replying with DIAMETER_UNABLE_TO_COMPLY.");
-					createCCA(ccServerActivity, ccr, new ArrayList<CreditControlInfo>(), DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY);
+					createCCA(ccServerActivity, DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY);
 					sendCCA(cca, aci, true);
 				}
 			}
@@ -691,6 +817,74 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 			tracer.warning("[xx] " + sidString + " Unknown request type found!");
 			break;
 		}
+		return false;
+	}
+
+	/**
+	 * Rejects the request starting a new session with DIAMETER_TOO_BUSY, due to overload. There's no session state
+	 * for this SBB entity yet, so it's just answered and left, not being accounted nor kept in the answer cache.
+	 *
+	 * @param ccServerActivity the session activity
+	 * @param aci the ACI of the session where the request was received
+	 * @param sessionId the Session-Id of the request
+	 * @param reqNumber the CC-Request-Number of the request
+	 */
+	private void rejectSession(RoServerSessionActivity ccServerActivity, ActivityContextInterface aci, String sessionId, long reqNumber) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[xx] " + sidString + " Rejecting new session due to overload.");
+		}
+		AnswerCache answerCache = AnswerCache.getInstance();
+		if (answerCache != null) {
+			answerCache.forget(sessionId, reqNumber);
+		}
+		try {
+			ccServerActivity.sendRoCreditControlAnswer(createCCA(ccServerActivity, DiameterResultCode.DIAMETER_TOO_BUSY));
+		}
+		catch (IOException e) {
+			tracer.severe("[xx] " + sidString + " Error while trying to send Credit-Control-Answer.", e);
+		}
+		aci.detach(this.getSbbContext().getSbbLocalObject());
+	}
+
+	/**
+	 * Checks if the request is a duplicate of one already received, answering it from the answer cache if so.
+	 *
+	 * @param ccServerActivity the session activity
+	 * @param sessionId the Session-Id of the request
+	 * @param reqNumber the CC-Request-Number of the request
+	 * @return true if it was a duplicate and no further handling is needed, false otherwise
+	 */
+	private boolean handleDuplicate(RoServerSessionActivity ccServerActivity, String sessionId, long reqNumber) {
+		AnswerCache answerCache = AnswerCache.getInstance();
+		if (answerCache == null) {
+			return false;
+		}
+		AnswerCache.CachedAnswer cachedAnswer = answerCache.lookup(sessionId, reqNumber);
+		if (cachedAnswer == null) {
+			return false;
+		}
+		if (!cachedAnswer.isAnswered()) {
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[--] " + sidString + " Dropping duplicate Credit-Control-Request, original is still being handled.");
+			}
+			return true;
+		}
+
+		RoCreditControlAnswer cca = ccServerActivity.createRoCreditControlAnswer();
+		cca.setResultCode(cachedAnswer.getResultCode());
+		if (cachedAnswer.getMultipleServicesCreditControls() != null) {
+			cca.setMultipleServicesCreditControls(cachedAnswer.getMultipleServicesCreditControls());
+		}
+		try {
+			ccServerActivity.sendRoCreditControlAnswer(cca);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[>>] " + sidString + " Answered duplicate Credit-Control-Request from cache with Result-Code = " + cca.getResultCode() + ". " + answerCache);
+			}
+		}
+		catch (IOException e) {
+			tracer.severe("[xx] " + sidString + " Error while trying to send cached Credit-Control-Answer.", e);
+		}
+		return true;
 	}
 
 	private CreditControlInfo buildCCInfo(RoCreditControlRequest ccr, String endUserId, SubscriptionIdType endUserType, ArrayList<CreditControlUnit> ccUnits) {
@@ -707,18 +901,30 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		ccInfo.setSubscriptionId(endUserId);
 		ccInfo.setSubscriptionIdType(endUserType);
 		ccInfo.setCcUnits(ccUnits);
+		ccInfo.setDeadline(deadline);
 
 		// Iterate CCR to capture needed AVPs
-		for (DiameterAvp avp : ccr.getAvps()) {
-			fetchDataFromAvp(avp, ccInfo);
+		if (abmfAVPs != null) {
+			abmfAVPs.extract(ccr.getAvps(), ccInfo, sidString);
 		}
 
 		return ccInfo;
 	}
 
 	public void onTimerEvent(TimerEvent timer, ActivityContextInterface aci) {
+		if (timer.getTimerID().equals(getDeadlineTimerID())) {
+			setDeadlineTimerID(null);
+			UserSessionInfo sessionInfo = getSessionInfo();
+			// still not answered? the backends are taking too long, let's answer with the local decision
+			if (sessionInfo != null && sessionInfo.getRequestReceivedTime() > 0) {
+				answerOnDeadline(sessionInfo, aci);
+			}
+			return;
+		}
+
 		// detach from this activity, we don't want to handle any other event on it
 		aci.detach(this.sbbContextExt.getSbbLocalObject());
+		serverSessionACI = null;
 		if (tracer.isInfoEnabled()) {
 			tracer.info("[--] " + sidString + " Forcing Activity Termination '" + aci.getActivity() + "' due to timeout expire.");
 		}
@@ -726,14 +932,25 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		((RoServerSessionActivity) aci.getActivity()).endActivity();
 	}
 
+	/**
+	 * Creates a Credit-Control-Answer with no units, such as for errors.
+	 *
+	 * @param ccServerActivity the session activity
+	 * @param resultCode the Result-Code of the answer
+	 * @return the Credit-Control-Answer
+	 */
+	private RoCreditControlAnswer createCCA(RoServerSessionActivity ccServerActivity, long resultCode) {
+		return createCCA(ccServerActivity, null, null, resultCode);
+	}
+
 	/**
 	 * @param ccServerActivity
-	 * @param request
-	 * @param reservations
+	 * @param sessionInfo the session info, with the MSCCs of the request being answered
+	 * @param ccInfo the Credit Control Info with the units for each MSCC, or null for none
 	 * @param resultCode
 	 * @return
 	 */
-	private RoCreditControlAnswer createCCA(RoServerSessionActivity ccServerActivity, RoCreditControlRequest request, List<CreditControlInfo> reservations, long resultCode) {
+	private RoCreditControlAnswer createCCA(RoServerSessionActivity ccServerActivity, UserSessionInfo sessionInfo, CreditControlInfo ccInfo, long resultCode) {
 		RoCreditControlAnswer answer = ccServerActivity.createRoCreditControlAnswer();
 
 		// <Credit-Control-Answer> ::= < Diameter Header: 272, PXY >
@@ -785,38 +1002,20 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		//                          [ CC-Output-Octets ]
 		//                          [ CC-Service-Specific-Units ]
 		//                         *[ AVP ]
-		if (reservations != null && reservations.size() > 0) {
-			MultipleServicesCreditControlAvp[] reqMSCCs = request.getMultipleServicesCreditControls();
+		if (ccInfo != null) {
+			// dimensioned grants are valid for shorter, so that idle quota is returned in due time
+			QuotaDimensioning quotaDimensioning = QuotaDimensioning.getInstance();
+			long validityTime = quotaDimensioning != null ? Math.min(quotaDimensioning.getValidityTime(), DEFAULT_VALIDITY_TIME) : DEFAULT_VALIDITY_TIME;
+			// All the MSCCs in the request are handled in the same Credit Control Info
+			long[] reqRatingGroups = sessionInfo.getRequestRatingGroups();
+			long[][] reqServiceIds = sessionInfo.getRequestServiceIds();
 			List<MultipleServicesCreditControlAvp> ansMSCCs = new ArrayList<MultipleServicesCreditControlAvp>();
-			for (int index = 0; index < reqMSCCs.length; index++) {
-				MultipleServicesCreditControlAvp reqMSCC = reqMSCCs[index];
+			for (int index = 0; index < reqRatingGroups.length; index++) {
 				MultipleServicesCreditControlAvp ansMscc = avpFactory.createMultipleServicesCreditControl();
-				ansMscc.setRatingGroup(reqMSCC.getRatingGroup());
-				ansMscc.setServiceIdentifiers(reqMSCC.getServiceIdentifiers());
-				// FIXME: Check how to handle this in case of MSCC if anything different is needed
-				CreditControlInfo ccInfo = reservations.get(reservations.size()-1);
+				ansMscc.setRatingGroup(reqRatingGroups[index]);
+				ansMscc.setServiceIdentifiers(reqServiceIds[index]);
 				if (ccInfo.isSuccessful()) {
-					GrantedServiceUnitAvp gsu = avpFactory.createGrantedServiceUnit();
-					ArrayList<CreditControlUnit> ccUnits = ccInfo.getCcUnits();
-					for (int i = 0; i < ccUnits.size(); i++) {
-						CreditControlUnit ccUnit = ccUnits.get(i);
-						if (ccUnit.getUnitType() == CcUnitType.INPUT_OCTETS) {
-							gsu.setCreditControlInputOctets(ccUnit.getReservedUnits());
-						}
-						// TODO: Add CC-Money support if not 3GPP ?
-						if (ccUnit.getUnitType() == CcUnitType.OUTPUT_OCTETS) {
-							gsu.setCreditControlOutputOctets(ccUnit.getReservedUnits());
-						}
-						if (ccUnit.getUnitType() == CcUnitType.SERVICE_SPECIFIC_UNITS) {
-							gsu.setCreditControlServiceSpecificUnits(ccUnit.getReservedUnits());
-						}
-						if (ccUnit.getUnitType() == CcUnitType.TIME) {
-							gsu.setCreditControlTime(ccUnit.getReservedUnits());
-						}
-						if (ccUnit.getUnitType() == CcUnitType.TOTAL_OCTETS) {
-							gsu.setCreditControlTotalOctets(ccUnit.getReservedUnits());
-						}
-					}
+					GrantedServiceUnitAvp gsu = createGrantedServiceUnit(ccInfo.getCcUnits(), reqRatingGroups[index], getServiceId(reqServiceIds[index]));
 					ansMscc.setGrantedServiceUnit(gsu);
 					ansMscc.setResultCode(DiameterResultCode.DIAMETER_SUCCESS);
 
@@ -837,7 +1036,7 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 					ansMscc.setResultCode(resultCode);
 				}
 				ansMSCCs.add(ansMscc);
-				ansMscc.setValidityTime(DEFAULT_VALIDITY_TIME);
+				ansMscc.setValidityTime(validityTime);
 			}
 			answer.setMultipleServicesCreditControls(ansMSCCs.toArray(new MultipleServicesCreditControlAvp[ansMSCCs.size()]));
 		}
@@ -868,6 +1067,64 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		return answer;
 	}
 
+	/**
+	 * Creates the Granted-Service-Unit AVP for a MSCC, with the units reserved for it, per unit type.
+	 *
+	 * @param ccUnits the CC units of the (multi-service) Credit Control Info
+	 * @param ratingGroup the Rating-Group of the MSCC
+	 * @param serviceId the (first) Service-Identifier of the MSCC
+	 * @return the Granted-Service-Unit AVP
+	 */
+	private GrantedServiceUnitAvp createGrantedServiceUnit(ArrayList<CreditControlUnit> ccUnits, long ratingGroup, long serviceId) {
+		// Requested and Used units of the same type are separate CC units, so we sum what has been reserved for each
+		long time = -1, totalOctets = -1, inputOctets = -1, outputOctets = -1, serviceSpecificUnits = -1;
+		for (int i = 0; i < ccUnits.size(); i++) {
+			CreditControlUnit ccUnit = ccUnits.get(i);
+			if (!ccUnit.belongsTo(ratingGroup, serviceId)) {
+				continue;
+			}
+			long reservedUnits = ccUnit.getReservedUnits();
+			switch (ccUnit.getUnitType()) {
+			case TIME:
+				time = Math.max(time, 0) + reservedUnits;
+				break;
+			case TOTAL_OCTETS:
+				totalOctets = Math.max(totalOctets, 0) + reservedUnits;
+				break;
+			case INPUT_OCTETS:
+				inputOctets = Math.max(inputOctets, 0) + reservedUnits;
+				break;
+			case OUTPUT_OCTETS:
+				outputOctets = Math.max(outputOctets, 0) + reservedUnits;
+				break;
+			case SERVICE_SPECIFIC_UNITS:
+				serviceSpecificUnits = Math.max(serviceSpecificUnits, 0) + reservedUnits;
+				break;
+			default:
+				// TODO: Add CC-Money support if not 3GPP ?
+				break;
+			}
+		}
+
+		GrantedServiceUnitAvp gsu = avpFactory.createGrantedServiceUnit();
+		if (inputOctets >= 0) {
+			gsu.setCreditControlInputOctets(inputOctets);
+		}
+		if (outputOctets >= 0) {
+			gsu.setCreditControlOutputOctets(outputOctets);
+		}
+		if (serviceSpecificUnits >= 0) {
+			gsu.setCreditControlServiceSpecificUnits(serviceSpecificUnits);
+		}
+		if (time >= 0) {
+			gsu.setCreditControlTime(time);
+		}
+		if (totalOctets >= 0) {
+			gsu.setCreditControlTotalOctets(totalOctets);
+		}
+		return gsu;
+	}
+
 	/**
 	 * Sends the Credit-Control-Answer through the ACI and detaches if set to.
 	 * @param cca the Credit-Control-Answer to send
@@ -876,25 +1133,60 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 	 * @return true if it succeeds sending, false otherwise
 	 */
 	private boolean sendCCA(RoCreditControlAnswer cca, ActivityContextInterface aci, boolean detach) {
-		// Start by cancelling any existing Timer
-		TimerID timerID = getTimerID();
-		if (timerID != null) {
-			timerFacility.cancelTimer(timerID);
-			if(tracer.isFineEnabled()) {
-				tracer.info("[><] " + sidString + " Cancelling existing timer " + timerID);
+		return sendCCA(cca, aci, detach, DEFAULT_VALIDITY_TIME);
+	}
+
+	/**
+	 * Sends the Credit-Control-Answer through the ACI and detaches if set to.
+	 * @param cca the Credit-Control-Answer to send
+	 * @param aci the ACI where to send from
+	 * @param detach boolean indicating whether to detach or not
+	 * @param supervisionTime the time (s) the session is supervised for, if not detaching
+	 * @return true if it succeeds sending, false otherwise
+	 */
+	private boolean sendCCA(RoCreditControlAnswer cca, ActivityContextInterface aci, boolean detach, long supervisionTime) {
+		RoServerSessionActivity ccServerActivity = (RoServerSessionActivity) aci.getActivity();
+		SessionSupervisor sessionSupervisor = SessionSupervisor.getInstance();
+		if (sessionSupervisor != null) {
+			// Restart supervision, unless we are leaving...
+			if (!detach) {
+				sessionSupervisor.supervise(ccServerActivity, supervisionTime*1000);
+			}
+			else {
+				sessionSupervisor.release(ccServerActivity.getSessionId());
 			}
 		}
-		// Set a new one, unless we are leaving...
-		if (!detach) {
-			timerID = timerFacility.setTimer(aci, null, System.currentTimeMillis() + DEFAULT_VALIDITY_TIME*1000, DEFAULT_TIMER_OPTIONS);
-			setTimerID(timerID);
-			if(tracer.isFineEnabled()) {
-				tracer.fine("[><] " + sidString + " Setting new timer " + timerID + " for " + System.currentTimeMillis() + DEFAULT_VALIDITY_TIME*1000);
+		else {
+			// Fallback to container timers. Start by cancelling any existing Timer
+			TimerID timerID = getTimerID();
+			if (timerID != null) {
+				timerFacility.cancelTimer(timerID);
+				if(tracer.isFineEnabled()) {
+					tracer.info("[><] " + sidString + " Cancelling existing timer " + timerID);
+				}
+			}
+			// Set a new one, unless we are leaving...
+			if (!detach) {
+				timerID = timerFacility.setTimer(aci, null, System.currentTimeMillis() + supervisionTime*1000, DEFAULT_TIMER_OPTIONS);
+				setTimerID(timerID);
+				if(tracer.isFineEnabled()) {
+					tracer.fine("[><] " + sidString + " Setting new timer " + timerID + " for " + System.currentTimeMillis() + supervisionTime*1000);
+				}
 			}
 		}
 		try {
-			RoServerSessionActivity ccServerActivity = (RoServerSessionActivity) aci.getActivity();
 			ccServerActivity.sendRoCreditControlAnswer(cca);
+			completeRequest();
+			// busy answers are not kept, so that the client retries are handled instead
+			AnswerCache answerCache = AnswerCache.getInstance();
+			if (answerCache != null) {
+				if (cca.getResultCode() != DiameterResultCode.DIAMETER_TOO_BUSY) {
+					answerCache.answered(ccServerActivity.getSessionId(), cca);
+				}
+				else {
+					answerCache.forget(ccServerActivity.getSessionId(), cca.getCcRequestNumber());
+				}
+			}
 			if (detach) {
 				if (tracer.isFineEnabled()) {
 					tracer.fine("[><] " + sidString + " Detaching from ACI.");
@@ -905,10 +1197,151 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		}
 		catch (IOException e) {
 			tracer.severe("[xx] " + sidString + " Error while trying to send Credit-Control-Answer.", e);
+			abandonRequest();
 			return false;
 		}
 	}
 
+	/**
+	 * Gives up on the request being handled if it was not answered. It is accounted as completed, for overload
+	 * control, and forgotten, so that its retransmissions are handled again, instead of being dropped as duplicates
+	 * of a request that is never going to be answered.
+	 */
+	private void abandonRequest() {
+		UserSessionInfo sessionInfo = getSessionInfo();
+		if (sessionInfo == null || sessionInfo.getRequestReceivedTime() == 0) {
+			return;
+		}
+		if (tracer.isFineEnabled()) {
+			tracer.fine("[--] " + sidString + " Abandoning Credit-Control-Request, no answer was sent.");
+		}
+		AnswerCache answerCache = AnswerCache.getInstance();
+		if (answerCache != null) {
+			answerCache.forget(sessionInfo.getSessionId(), sessionInfo.getRequestNumber());
+		}
+		completeRequest();
+	}
+
+	/**
+	 * Accounts the request being handled, if any, as answered (or abandoned), for overload control and deadline
+	 * supervision.
+	 */
+	private void completeRequest() {
+		UserSessionInfo sessionInfo = getSessionInfo();
+		if (sessionInfo != null && sessionInfo.getRequestReceivedTime() > 0) {
+			OverloadControl overloadControl = OverloadControl.getInstance();
+			if (overloadControl != null) {
+				overloadControl.requestCompleted(System.currentTimeMillis() - sessionInfo.getRequestReceivedTime());
+			}
+			sessionInfo.setRequestReceivedTime(0);
+			setSessionInfo(sessionInfo);
+		}
+		// a rating result still to come is of no use anymore
+		if (getPendingRating() != null) {
+			setPendingRating(null);
+		}
+		TimerID deadlineTimerID = getDeadlineTimerID();
+		if (deadlineTimerID != null) {
+			timerFacility.cancelTimer(deadlineTimerID);
+			setDeadlineTimerID(null);
+		}
+	}
+
+	/**
+	 * Sets a timer for the deadline of the request being handled, if any, so that it is answered in time even if the
+	 * backends (ABMF, datasource) never get back to us.
+	 *
+	 * @param aci the ACI of the session where the request was received
+	 */
+	private void setDeadlineTimer(ActivityContextInterface aci) {
+		if (deadline > 0) {
+			setDeadlineTimerID(timerFacility.setTimer(aci, null, deadline, DEFAULT_TIMER_OPTIONS));
+		}
+	}
+
+	/**
+	 * Answers the request being handled with the local decision, as it has reached its deadline. Terminations are
+	 * answered with success, as usage is debited anyway. Otherwise, if configured, a provisional grant is given
+	 * (not reserved, nor accounted until the late result comes). If not, it is denied with DIAMETER_TOO_BUSY, for
+	 * the client to apply the Credit-Control-Failure-Handling (or Direct-Debiting-Failure-Handling) we indicate. We
+	 * stay attached to the session in that case, so that the late reservation, if any, can still be released, but
+	 * when denying the initial request only for about as long as the client waits for an answer.
+	 *
+	 * @param sessionInfo the session info, with the request being handled
+	 * @param aci the ACI of the session where the request was received
+	 */
+	private void answerOnDeadline(UserSessionInfo sessionInfo, ActivityContextInterface aci) {
+		RoServerSessionActivity ccServerActivity = (RoServerSessionActivity) aci.getActivity();
+		CcRequestType type = sessionInfo.getRequestType();
+		RoCreditControlAnswer cca = null;
+		boolean detach = true;
+		long supervisionTime = DEFAULT_VALIDITY_TIME;
+		if (type == CcRequestType.TERMINATION_REQUEST) {
+			cca = createCCA(ccServerActivity, DiameterResultCode.DIAMETER_SUCCESS);
+		}
+		else if (type == CcRequestType.EVENT_REQUEST) {
+			cca = createCCA(ccServerActivity, DiameterResultCode.DIAMETER_TOO_BUSY);
+			cca.setDirectDebitingFailureHandling(deadlineDirectDebitingFailureHandling);
+		}
+		else if (deadlineProvisionalUnits > 0) {
+			cca = createCCA(ccServerActivity, sessionInfo, createProvisionalGrant(sessionInfo.getRequestedUnits()), DiameterResultCode.DIAMETER_SUCCESS);
+			cca.setCreditControlFailureHandling(deadlineFailureHandling);
+			detach = false;
+		}
+		else {
+			cca = createCCA(ccServerActivity, DiameterResultCode.DIAMETER_TOO_BUSY);
+			cca.setCreditControlFailureHandling(deadlineFailureHandling);
+			detach = false;
+			if (type == CcRequestType.INITIAL_REQUEST) {
+				supervisionTime = DENIED_SESSION_TIME;
+			}
+		}
+		tracer.warning("[!!] " + sidString + " Deadline reached. Answering with local decision, Result-Code = " + cca.getResultCode() + ".");
+		sendCCA(cca, aci, detach, supervisionTime);
+	}
+
+	/**
+	 * Creates the provisional grant given when the deadline is reached, of the requested units up to the configured
+	 * amount, for each unit type in each MSCC.
+	 *
+	 * @param requestedCCUnits the units requested in the request being handled
+	 * @return a successful Credit Control Info with the provisionally granted units
+	 */
+	private CreditControlInfo createProvisionalGrant(ArrayList<CreditControlUnit> requestedCCUnits) {
+		ArrayList<CreditControlUnit> ccUnits = new ArrayList<CreditControlUnit>();
+		for (CreditControlUnit requestedCCUnit : requestedCCUnits) {
+			long requestedUnits = requestedCCUnit.getRequestedUnits();
+			CreditControlUnit ccUnit = new CreditControlUnit();
+			ccUnit.setUnitType(requestedCCUnit.getUnitType());
+			ccUnit.setRatingGroup(requestedCCUnit.getRatingGroup());
+			ccUnit.setServiceId(requestedCCUnit.getServiceId());
+			ccUnit.setReservedUnits(requestedUnits > 0 ? Math.min(requestedUnits, deadlineProvisionalUnits) : deadlineProvisionalUnits);
+			ccUnits.add(ccUnit);
+		}
+		CreditControlInfo ccInfo = new CreditControlInfo();
+		ccInfo.setCcUnits(ccUnits);
+		ccInfo.setSuccess(true);
+		return ccInfo;
+	}
+
+	/**
+	 * Finds the ACI of the Ro session this SBB entity is handling. It's kept from the last request received, only
+	 * looked up among the attached activities if this SBB object was since assigned to another entity.
+	 *
+	 * @return the ACI, or null if no longer attached to it
+	 */
+	private ActivityContextInterface getServerSessionActivityContext() {
+		if (serverSessionACI == null) {
+			for (ActivityContextInterface aci : this.sbbContextExt.getActivities()) {
+				if (aci.getActivity() instanceof RoServerSessionActivity) {
+					serverSessionACI = aci;
+					break;
+				}
+			}
+		}
+		return serverSessionACI;
+	}
+
 	//private String storedEndUserId;
 	//private long storedRequestedUnits;
 	//private long[] storedServiceIds;
@@ -917,15 +1350,29 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 	@Override
 	public void resumeOnCreditControlRequest(CreditControlInfo ccInfo) {
 		UserSessionInfo sessionInfo = getSessionInfo();
-		RoCreditControlRequest storedCCR = sessionInfo.getCcr();
+		CcRequestType requestType = sessionInfo.getRequestType();
 		if (tracer.isInfoEnabled()) {
-			tracer.info("[<<] " + sidString + " Resuming Handling of Credit-Control-Request [" + storedCCR.getCcRequestType().toString() + "]");
+			tracer.info("[<<] " + sidString + " Resuming Handling of Credit-Control-Request [" + requestType.toString() + "]");
 		}
 		if (tracer.isFineEnabled()) {
 			tracer.fine("[<<] \" + sidString + \" " + ccInfo);
 		}
-		sessionInfo.getReservations().add(ccInfo);
-		setSessionInfo(sessionInfo);
+		if (ccInfo.getServiceInfo(RELEASE_SERVICE_INFO) != null) {
+			// Not a request from the client, the session is kept as it was answered
+			if (tracer.isFineEnabled()) {
+				tracer.fine("[--] " + sidString + " Late reservation released.");
+			}
+			return;
+		}
+		// Dropped due to the deadline means nothing changed in the account, so it's not kept as the last reservation
+		boolean dropped = ccInfo.getErrorCodeType() == ErrorCodeType.DeadlineExceeded;
+		boolean late = sessionInfo.getRequestReceivedTime() == 0 || ccInfo.getRequestNumber() != sessionInfo.getRequestNumber() || !requestType.toString().equals(ccInfo.getEventType());
+		// Reserved after being denied on the deadline, the client has no grant for it, so it's not kept either
+		boolean denied = late && ccInfo.isSuccessful() && deadlineProvisionalUnits <= 0 && isReservation(ccInfo.getEventType()) && hasReservedUnits(ccInfo);
+		if (!dropped && !denied) {
+			sessionInfo.addResult(ccInfo);
+			setSessionInfo(sessionInfo);
+		}
 		long resultCode = DiameterResultCode.DIAMETER_SUCCESS;
 		if (ccInfo.isSuccessful()) {
 			if (tracer.isInfoEnabled()) {
@@ -941,39 +1388,52 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		}
 
 		try {
-			ActivityContextInterface[] acis = this.sbbContextExt.getActivities();
-			ActivityContextInterface aci = null;
-			RoServerSessionActivity activity = null;
-			for (ActivityContextInterface curAci : acis) {
-				if (curAci.getActivity() instanceof RoServerSessionActivity) {
-					aci = curAci;
-					activity = (RoServerSessionActivity) curAci.getActivity();
-					break;
+			ActivityContextInterface aci = getServerSessionActivityContext();
+			if (denied) {
+				tracer.warning("[!!] " + sidString + " Reservation arrived after the deadline, when already denied. Releasing it.");
+				releaseReservation(ccInfo);
+				// a session denied on its initial request, and not started since, is left
+				if (CcRequestType.INITIAL_REQUEST.toString().equals(ccInfo.getEventType()) && sessionInfo.getRequestReceivedTime() == 0 && sessionInfo.getReservedUnits().isEmpty()) {
+					leaveSession(aci);
 				}
 			}
-
-			RoCreditControlAnswer cca = sessionInfo.getReservations().size() > 0 ? createCCA(activity, storedCCR, sessionInfo.getReservations(), resultCode) : createCCA(activity, storedCCR, null, DiameterResultCode.DIAMETER_MISSING_AVP);
-			sendCCA(cca, aci, storedCCR.getCcRequestType() == CcRequestType.TERMINATION_REQUEST || storedCCR.getCcRequestType() == CcRequestType.EVENT_REQUEST);
-
-			// Output the user session details.
-			if (tracer.isInfoEnabled()) {
-				tracer.info("[--] " + sidString + " CCA successfully sent.");
+			else if (late) {
+				// Already answered with the local decision, the result is kept for the session accounting only
+				tracer.warning("[!!] " + sidString + " Result arrived after the deadline. Not answering again.");
 			}
-			if (tracer.isFineEnabled()) {
-				tracer.fine("[--] " + sidString + "Dumping session info...\n" + sessionInfo);
+			else if (dropped) {
+				answerOnDeadline(sessionInfo, aci);
+			}
+			else {
+				RoServerSessionActivity activity = (RoServerSessionActivity) aci.getActivity();
+				RoCreditControlAnswer cca = createCCA(activity, sessionInfo, ccInfo, resultCode);
+				sendCCA(cca, aci, requestType == CcRequestType.TERMINATION_REQUEST || requestType == CcRequestType.EVENT_REQUEST);
+
+				// Output the user session details.
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[--] " + sidString + " CCA successfully sent.");
+				}
+				if (tracer.isFineEnabled()) {
+					tracer.fine("[--] " + sidString + "Dumping session info...\n" + sessionInfo);
+				}
 			}
 		}
 		catch (Exception e) {
 			tracer.severe("[xx] " + sidString + " Unable to send Credit-Control-Answer.", e);
+			abandonRequest();
 		}
 
 
-		if (generateCDR && cdrGenerator != null && storedCCR.getCcRequestType() == CcRequestType.TERMINATION_REQUEST) {
+		if (generateCDR && requestType == CcRequestType.TERMINATION_REQUEST) {
 			if (tracer.isInfoEnabled()) {
 				tracer.info("[><] " + sidString + " Generating CDR.");
 			}
 
 			try {
+				// the result may come to another SBB object than the one which handled the request
+				if (cdrGenerator == null) {
+					cdrGenerator = CDRWriter.getInstance();
+				}
 				cdrGenerator.writeCDR(sessionInfo);
 			}
 			catch (Exception e) {
@@ -982,6 +1442,92 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		}
 	}
 
+	/**
+	 * Stops supervising the session and detaches from it, as it's no longer being charged.
+	 *
+	 * @param aci the ACI of the session, or null if no longer attached to it
+	 */
+	private void leaveSession(ActivityContextInterface aci) {
+		if (aci == null) {
+			return;
+		}
+		SessionSupervisor sessionSupervisor = SessionSupervisor.getInstance();
+		if (sessionSupervisor != null) {
+			sessionSupervisor.release(((RoServerSessionActivity) aci.getActivity()).getSessionId());
+		}
+		else {
+			TimerID timerID = getTimerID();
+			if (timerID != null) {
+				timerFacility.cancelTimer(timerID);
+				setTimerID(null);
+			}
+		}
+		if (tracer.isFineEnabled()) {
+			tracer.fine("[><] " + sidString + " Detaching from ACI.");
+		}
+		aci.detach(this.getSbbContext().getSbbLocalObject());
+		serverSessionACI = null;
+	}
+
+	/**
+	 * @return true if the event type is of a request reserving units, initial or update
+	 */
+	private static boolean isReservation(String eventType) {
+		return CcRequestType.INITIAL_REQUEST.toString().equals(eventType) || CcRequestType.UPDATE_REQUEST.toString().equals(eventType);
+	}
+
+	/**
+	 * @return true if any units were reserved for the request
+	 */
+	private static boolean hasReservedUnits(CreditControlInfo ccInfo) {
+		ArrayList<CreditControlUnit> ccUnits = ccInfo.getCcUnits();
+		if (ccUnits != null) {
+			for (CreditControlUnit ccUnit : ccUnits) {
+				if (ccUnit.getReservedUnits() > 0) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Releases the units reserved for a request already denied, by settling the MSCCs they were reserved for with no
+	 * units used nor requested. The reservations of the other MSCCs in the session are left as they are.
+	 *
+	 * @param ccInfo the successful Credit Control Info of the request
+	 */
+	private void releaseReservation(CreditControlInfo ccInfo) {
+		ArrayList<CreditControlUnit> ccUnits = new ArrayList<CreditControlUnit>();
+		for (CreditControlUnit reservedUnit : ccInfo.getCcUnits()) {
+			if (reservedUnit.getReservedUnits() > 0) {
+				CreditControlUnit ccUnit = new CreditControlUnit();
+				ccUnit.setUnitType(reservedUnit.getUnitType());
+				ccUnit.setRatingGroup(reservedUnit.getRatingGroup());
+				ccUnit.setServiceId(reservedUnit.getServiceId());
+				ccUnits.add(ccUnit);
+			}
+		}
+		CreditControlInfo releaseInfo = new CreditControlInfo();
+		releaseInfo.setEventTimestamp(System.currentTimeMillis());
+		releaseInfo.setEventType(CcRequestType.UPDATE_REQUEST.toString());
+		releaseInfo.setRequestNumber(ccInfo.getRequestNumber());
+		releaseInfo.setSessionId(ccInfo.getSessionId());
+		releaseInfo.setSubscriptionId(ccInfo.getSubscriptionId());
+		releaseInfo.setSubscriptionIdType(ccInfo.getSubscriptionIdType());
+		releaseInfo.setCcUnits(ccUnits);
+		releaseInfo.addServiceInfo(RELEASE_SERVICE_INFO, Boolean.TRUE);
+		try {
+			if (accountBalanceManagement == null) {
+				accountBalanceManagement = getAccountManager();
+			}
+			accountBalanceManagement.updateRequest(releaseInfo);
+		}
+		catch (Exception e) {
+			tracer.severe("[xx] " + sidString + " Unable to release the reservation. It will be reclaimed once expired.", e);
+		}
+	}
+
 	@Override
 	public void updateAccountDataResult(boolean success) {
 		if (success) {
@@ -995,8 +1541,89 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 	}
 
 	// --------- Call to decentralized rating engine ---------------------
+
+	/**
+	 * Rates the requested units, of all unit types and rating groups, with a single call to the rating engine. If the
+	 * rating engine answers asynchronously, the Credit Control Info is parked in CMP until the rates arrive, at
+	 * {@link #getRatesForServicesResult(RatingInfo[])}, so that no thread is kept waiting for them.
+	 *
+	 * @param ccr the Credit-Control-Request
+	 * @param ccInfo the Credit Control Info to park, if rating is asynchronous
+	 * @param ccUnits the requested CC units, to set the rate and requested amount at
+	 * @return true if the units are rated, false if the rates are yet to come
+	 */
+	@SuppressWarnings("rawtypes")
+	private boolean rateUnits(RoCreditControlRequest ccr, CreditControlInfo ccInfo, ArrayList<CreditControlUnit> ccUnits) {
+		if (ccUnits.isEmpty()) {
+			return true;
+		}
+
+		long actualTime = System.currentTimeMillis();
+		HashMap[] params = new HashMap[ccUnits.size()];
+		for (int i = 0; i < params.length; i++) {
+			CreditControlUnit ccUnit = ccUnits.get(i);
+			// rated on what the client asked for, as the dimensioned units would reach volume tiers it does not
+			long requestedUnits = ccUnit.getClientRequestedUnits() > 0 ? ccUnit.getClientRequestedUnits() : ccUnit.getRequestedUnits();
+			params[i] = getRatingParams(ccr, ccUnit.getServiceId(), ccUnit.getUnitType().getValue(), requestedUnits, actualTime);
+		}
+
+		// The shared local rating engine decides faster than the cache, and on the volume and time it does not key on
+		RateCache rateCache = sharedRatingEngine ? null : RateCache.getInstance();
+		RatingInfo[] ratingInfos = rateCache != null ? rateCache.getCachedRates(params) : new RatingInfo[params.length];
+		HashMap[] missParams = RateCache.getMisses(params, ratingInfos);
+		if (missParams.length > 0) {
+			// Parked before asking, as the rating engine may call back even before returning
+			setPendingRating(new PendingRating(ccInfo, ccUnits, ratingInfos, actualTime));
+
+			RatingInfo[] missRatingInfos = ratingEngineManagement.getRatesForServices(missParams);
+			if (missRatingInfos == null) {
+				if (tracer.isFineEnabled()) {
+					tracer.fine("[><] " + sidString + " Waiting for the Rating Engine to rate " + missParams.length + " unit(s).");
+				}
+				return false;
+			}
+
+			setPendingRating(null);
+			if (rateCache != null) {
+				rateCache.putRates(missParams, missRatingInfos, deadline > 0 ? deadline : null);
+			}
+			RateCache.merge(ratingInfos, missRatingInfos);
+		}
+
+		applyRates(ccUnits, ratingInfos);
+		return true;
+	}
+
+	/**
+	 * Sets the rate and requested amount of the requested units, from the rating engine results.
+	 *
+	 * @param ccUnits the requested CC units, in the order they were rated
+	 * @param ratingInfos the rating engine results, null for those that failed
+	 */
+	private void applyRates(ArrayList<CreditControlUnit> ccUnits, RatingInfo[] ratingInfos) {
+		for (int i = 0; i < ccUnits.size(); i++) {
+			CreditControlUnit ccUnit = ccUnits.get(i);
+			// Retrieve the rating information [and optionally the unit type] from ratingInfo.
+			RatingInfo ratingInfo = ratingInfos[i];
+			double rate = 1.0;
+			if (ratingInfo != null && ratingInfo.getResponseCode() == 0) {
+				// Rate obtained successfully from Rating Engine, let's use that.
+				rate = ratingInfo.getRate();
+			}
+			else {
+				// TODO: if rate was not found or error occurred while determining rate, what to do? Block traffic (certain types of traffic? for certain profiles? Allow for Free?)
+				tracer.warning("[xx] " + sidString + " Unexpected response code '" + (ratingInfo != null ? ratingInfo.getResponseCode() : null) + "' received from Rating Engine.");
+			}
+
+			// allow traffic for free :(
+			ccUnit.setRateForService(rate);
+			// FIXME: This is not right. Rating should convert to monetary units...
+			ccUnit.setRequestedAmount((long) Math.ceil(ccUnit.getRequestedUnits() * rate));
+		}
+	}
+
 	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private double getRateForService(RoCreditControlRequest ccr, long serviceId, long unitTypeId, long requestedUnits) {
+	private HashMap getRatingParams(RoCreditControlRequest ccr, long serviceId, long unitTypeId, long requestedUnits, long actualTime) {
 
 		// Let's make some variables available to be sent to the rating engine
 		HashMap params = new HashMap();
@@ -1012,34 +1639,104 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		params.put("UnitValue", requestedUnits);
 		params.put("ServiceId", serviceId);
 		params.put("BeginTime", ccr.getEventTimestamp().getTime());
-		params.put("ActualTime", System.currentTimeMillis());
+		params.put("ActualTime", actualTime);
 
 		// TODO: Extract DestinationId AVP from the CCR if available.
 		params.put("DestinationIdType", "?");
 		params.put("DestinationIdData", "?");
 
-		RatingInfo ratingInfo = ratingEngineManagement.getRateForService(params);
+		// So that the rating engine client does not wait past the time we have for answering
+		if (deadline > 0) {
+			params.put("Deadline", deadline);
+		}
 
-		// Retrieve the rating information [and optionally the unit type] from ratingInfo.
+		return params;
+	}
 
-		int responseCode = ratingInfo.getResponseCode();
-		double rate = 1.0;
-		if (responseCode == 0) {
-			// Rate obtained successfully from Rating Engine, let's use that.
-			rate = ratingInfo.getRate();
+	@Override
+	public void getRateForServiceResult(RatingInfo ratingInfo) {
+		getRatesForServicesResult(null, new RatingInfo[] { ratingInfo });
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void getRatesForServicesResult(HashMap[] params, RatingInfo[] ratingInfos) {
+		// Whatever request they were for, the rates are good for the next ones
+		RateCache rateCache = RateCache.getInstance();
+		if (rateCache != null && params != null) {
+			rateCache.putRates(params, ratingInfos, null);
 		}
-		else {
-			// TODO: if rate was not found or error occurred while determining rate, what to do? Block traffic (certain types of traffic? for certain profiles? Allow for Free?)
-			tracer.warning("[xx] " + sidString + " Unexpected response code '" + responseCode + "' received from Rating Engine.");
+
+		UserSessionInfo sessionInfo = getSessionInfo();
+		PendingRating pendingRating = getPendingRating();
+		if (sessionInfo == null || pendingRating == null) {
+			tracer.warning("[!!] " + sidString + " Got Rates for Services with no request waiting for them. Discarding.");
+			return;
+		}
+		if (params != null && params.length > 0 && !Long.valueOf(pendingRating.getRatingTime()).equals(params[0].get("ActualTime"))) {
+			// The request they were for was answered on its deadline, the one parked is still waiting for its own
+			tracer.warning("[!!] " + sidString + " Got Rates for Services of an earlier request. Discarding.");
+			return;
+		}
+		setPendingRating(null);
+
+		CcRequestType requestType = sessionInfo.getRequestType();
+		sidString = toSidString(sessionInfo.getSessionId(), requestType.toString(), sessionInfo.getRequestNumber());
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[<<] " + sidString + " Resuming Handling of Credit-Control-Request [" + requestType.toString() + "] with " + (ratingInfos != null ? ratingInfos.length : 0) + " rate(s).");
 		}
 
-		// allow traffic for free :(
-		return rate;
+		CreditControlInfo ccInfo = pendingRating.getCcInfo();
+		if (sessionInfo.getRequestReceivedTime() == 0 || ccInfo.getRequestNumber() != sessionInfo.getRequestNumber()) {
+			// Already answered with the local decision when the deadline was reached
+			tracer.warning("[!!] " + sidString + " Rates arrived after the deadline. Discarding.");
+			return;
+		}
+
+		applyRates(pendingRating.getRatedUnits(), RateCache.merge(pendingRating.getRatingInfos(), ratingInfos));
+
+		try {
+			if (accountBalanceManagement == null) {
+				accountBalanceManagement = getAccountManager();
+			}
+			requestAccountBalance(requestType, ccInfo);
+			// we'll continue @ resumeOnCreditControlRequest(..)
+		}
+		catch (Exception e) {
+			tracer.severe("[xx] " + sidString + " Failure resuming Credit-Control-Request [" + requestType + "] after rating. Replying with DIAMETER_UNABLE_TO_COMPLY.", e);
+			try {
+				ActivityContextInterface aci = getServerSessionActivityContext();
+				RoServerSessionActivity activity = (RoServerSessionActivity) aci.getActivity();
+				sendCCA(createCCA(activity, DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY), aci, requestType == CcRequestType.EVENT_REQUEST);
+			}
+			catch (Exception e2) {
+				tracer.severe("[xx] " + sidString + " Unable to send Credit-Control-Answer.", e2);
+				abandonRequest();
+			}
+		}
 	}
 
-	@Override
-	public void getRateForServiceResult(RatingInfo ratingInfo) {
-		tracer.info("[><] " + sidString + " Got Rate for Service: " + ratingInfo);
+	/**
+	 * Asks the ABMF to handle the Credit Control Info, according to the request type.
+	 *
+	 * @param requestType the type of the Credit-Control-Request
+	 * @param ccInfo the Credit Control Info, with the requested units rated
+	 */
+	private void requestAccountBalance(CcRequestType requestType, CreditControlInfo ccInfo) throws Exception {
+		switch (requestType) {
+		case INITIAL_REQUEST:
+			accountBalanceManagement.initialRequest(ccInfo);
+			break;
+		case UPDATE_REQUEST:
+			accountBalanceManagement.updateRequest(ccInfo);
+			break;
+		case EVENT_REQUEST:
+			accountBalanceManagement.eventRequest(ccInfo);
+			break;
+		default:
+			accountBalanceManagement.terminateRequest(ccInfo);
+			break;
+		}
 	}
 
 	// TODO: Ok, so let's not use this for now (the serviceid-units csv mapping file). Why?
@@ -1085,189 +1782,122 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 	}
 
 	/**
-	 * Fetch data from AVP to be passed in CreditControlInfo, as configured in env entry.
-	 * @param avp the AVP to look at
-	 * @param ccInfo the CreditControlInfo object to store properties at
-	 */
-	private void fetchDataFromAvp(DiameterAvp avp, CreditControlInfo ccInfo) {
-		fetchDataFromAvp(avp, ccInfo, 0);
-	}
-
-	/**
-	 * Fetch data from AVP to be passed in CreditControlInfo, as configured in env entry.
-	 * @param avp the AVP to look at
-	 * @param ccInfo the CreditControlInfo object to store properties at
-	 * @param depth the AVP depth, for recursive calls
+	 * Collects the units requested in a Requested-Service-Unit AVP, one CC unit per unit type.
+	 *
+	 * @param ccr the Credit-Control-Request
+	 * @param rsu the Requested-Service-Unit AVP, may be null
+	 * @param ratingGroup the Rating-Group of the MSCC
+	 * @param serviceId the (first) Service-Identifier of the MSCC
+	 * @param subscriber the subscriber to dimension the quota for, or null to request exactly what the client did
+	 * @return the requested CC units
 	 */
-	private void fetchDataFromAvp(DiameterAvp avp, CreditControlInfo ccInfo, int depth) {
-		if (tracer.isFinerEnabled()) {
-			tracer.finer("[><] " + sidString + " Scanning AVP at depth " + depth + " with code " + avp.getCode() + " and type " + avp.getType() + " ...");
-		}
-		if(avp.getType() == DiameterAvpType.GROUPED) {
-			GroupedAvp gAvp = (GroupedAvp) avp;
-			DiameterAvp[] subAvps = gAvp.getExtensionAvps();
-			for(DiameterAvp subAvp : subAvps) {
-				fetchDataFromAvp(subAvp, ccInfo, depth+1);
-			}
-		}
-		else {
-			String name = abmfAVPs.get(String.valueOf(avp.getCode()));
-			if (name != null) {
-				Object value = null;
-				switch (avp.getType().getType())
-				{
-					case DiameterAvpType._ADDRESS:
-					case DiameterAvpType._DIAMETER_IDENTITY:
-					case DiameterAvpType._DIAMETER_URI:
-					case DiameterAvpType._IP_FILTER_RULE:
-					case DiameterAvpType._OCTET_STRING:
-					case DiameterAvpType._QOS_FILTER_RULE:
-						value = avp.octetStringValue();
-						break;
-					case DiameterAvpType._ENUMERATED:
-					case DiameterAvpType._INTEGER_32:
-						value = avp.intValue();
-						break;
-					case DiameterAvpType._FLOAT_32:
-						value = avp.floatValue();
-						break;
-					case DiameterAvpType._FLOAT_64:
-						value = avp.doubleValue();
-						break;
-					case DiameterAvpType._INTEGER_64:
-						value = avp.longValue();
-						break;
-					case DiameterAvpType._TIME:
-						value = avp.longValue();
-						break;
-					case DiameterAvpType._UNSIGNED_32:
-						value = avp.longValue();
-						break;
-					case DiameterAvpType._UNSIGNED_64:
-						value = avp.longValue();
-						break;
-					case DiameterAvpType._UTF8_STRING:
-						value = avp.octetStringValue();
-						break;
-					default:
-						value = avp.byteArrayValue();
-						break;
-				}
-				if (tracer.isFineEnabled()) {
-					tracer.fine("[><] " + sidString + " Storing AVP with code " + avp.getCode() + " as '" + name + "' with value '" + value.toString() + "'");
-				}
-				ccInfo.addServiceInfo(name, value.toString());
-			}
-		}
-	}
-
-	private ArrayList<CreditControlUnit> getRequestedUnits(RoCreditControlRequest ccr, RequestedServiceUnitAvp rsu, long[] serviceIds) {
+	private ArrayList<CreditControlUnit> getRequestedUnits(RoCreditControlRequest ccr, RequestedServiceUnitAvp rsu, long ratingGroup, long serviceId, String subscriber) {
 		ArrayList<CreditControlUnit> ccRequestedUnits = new ArrayList<CreditControlUnit>();
+		if (rsu == null) {
+			return ccRequestedUnits;
+		}
 
-		long requestedUnits = 0;
-		for (int i = 0; i < CcUnitType.values().length; i++) {
-			CcUnitType type = CcUnitType.fromInt(i);
+		for (UnitTypeAccessor accessor : UnitTypeAccessor.ALL) {
+			CcUnitType type = accessor.getUnitType();
+			long requestedUnits = accessor.getRequested(rsu);
 
-			// MONEY is not supported by 3GPP. TODO: Add support for non 3GPP ?
-			if (type == CcUnitType.MONEY) {
-				continue;
+			if (tracer.isInfoEnabled() && requestedUnits != UnitTypeAccessor.ABSENT) {
+				tracer.info("[><] " + sidString + " Requested Units of type '" + type +  "' in CCR = " + requestedUnits);
 			}
 
-			String methodName = "getCreditControl" + toCamelCase(type.toString());
-			try {
-				Method m = rsu.getClass().getMethod(methodName, new Class[0]);
-				requestedUnits = (Long) m.invoke(rsu, new Object[0]);
-
-				if (tracer.isInfoEnabled() && requestedUnits != Long.MIN_VALUE) {
-					tracer.info("[><] " + sidString + " Requested Units of type '" + type +  "' in CCR = " + requestedUnits);
-				}
-
-				if (requestedUnits >= 0) {
-					CreditControlUnit ccUnit = new CreditControlUnit();
-					ccUnit.setUnitType(type);
-					if (performRating) {
-						double rateForService = getRateForService(ccr, serviceIds[0], type.getValue(), requestedUnits);
-						ccUnit.setRateForService(rateForService);
-						// FIXME: This is not right. Rating should convert to monetary units...
-						ccUnit.setRequestedAmount((long) Math.ceil(requestedUnits * rateForService));
+			if (requestedUnits >= 0) {
+				CreditControlUnit ccUnit = new CreditControlUnit();
+				if (subscriber != null) {
+					long dimensionedUnits = QuotaDimensioning.getInstance().dimension(subscriber, ratingGroup, type, requestedUnits);
+					if (dimensionedUnits != requestedUnits) {
+						if (tracer.isFineEnabled()) {
+							tracer.fine("[><] " + sidString + " Dimensioned Units of type '" + type + "' from " + requestedUnits + " to " + dimensionedUnits);
+						}
+						// kept for the datasource to fall back to, if the dimensioned ones take too much of the balance
+						ccUnit.setClientRequestedUnits(requestedUnits);
 					}
-          else {
-            ccUnit.setRequestedAmount(requestedUnits);
-          }
-					ccUnit.setRequestedUnits(requestedUnits);
-					ccRequestedUnits.add(ccUnit);
+					requestedUnits = dimensionedUnits;
 				}
-			}
-			catch (Exception e) {
-				tracer.severe("[xx] " + sidString + " Unable to retrieve/invoke '" + methodName + "' for extracting Requested Units of type " + type, e);
+
+				ccUnit.setUnitType(type);
+				ccUnit.setRatingGroup(ratingGroup);
+				ccUnit.setServiceId(serviceId);
+				// rated later, with all the units of the request
+				ccUnit.setRequestedAmount(requestedUnits);
+				ccUnit.setRequestedUnits(requestedUnits);
+				ccRequestedUnits.add(ccUnit);
 			}
 		}
 
 		return ccRequestedUnits;
 	}
 
-	private ArrayList<CreditControlUnit> collectUsedUnits(UsedServiceUnitAvp[] usuAvps, ArrayList<CreditControlUnit> reservedCCUnits) {
+	private ArrayList<CreditControlUnit> collectUsedUnits(UsedServiceUnitAvp[] usuAvps, ArrayList<CreditControlUnit> reservedCCUnits, long ratingGroup, long serviceId) {
 		if (tracer.isInfoEnabled()) {
 			tracer.info("[><] " + sidString + " Collecting " + usuAvps.length + " Used Units AVPs.");
 		}
 		ArrayList<CreditControlUnit> usedCCUnits = new ArrayList<CreditControlUnit>();
 		for (UsedServiceUnitAvp usuAvp : usuAvps) {
-			for (int n = 0; n < CcUnitType.values().length; n++) {
-				CcUnitType type = CcUnitType.fromInt(n);
+			for (UnitTypeAccessor accessor : UnitTypeAccessor.ALL) {
+				long value = accessor.getUsed(usuAvp);
 
-				// MONEY is not supported by 3GPP
-				if (type == CcUnitType.MONEY) {
+				if (value == UnitTypeAccessor.ABSENT) {
+					// It means the AVP was not present.. no null or NoSuchAvpException :(
 					continue;
 				}
 
-				String methodName = "getCreditControl" + toCamelCase(type.toString());
-				try {
-					Method m = usuAvp.getClass().getMethod(methodName);
-					long value = (Long) m.invoke(usuAvp);
-
-					if (value == Long.MIN_VALUE) {
-						// It means the AVP was not present.. no null or NoSuchAvpException :(
-						continue;
-					}
-
-					if (tracer.isInfoEnabled()) {
-						tracer.info("[><] " + sidString + " Got " + value + " Used Units of type '" + type.toString() + "' ");
-					}
-
-					CreditControlUnit ccUnit = new CreditControlUnit();
-					ccUnit.setUnitType(type);
-					ccUnit.setUsedUnits(ccUnit.getUsedUnits() + value);
-
-					// If we can find Reserved Units and Rate Information, let's fill with it
-					for (CreditControlUnit reservedCCUnit : reservedCCUnits) {
-						if (reservedCCUnit.getUnitType() == type) {
-							// Copy the reserved amount from the last session into this session so that ABMF can update used units.
-							ccUnit.setReservedUnits(reservedCCUnit.getReservedUnits());
-							ccUnit.setReservedAmount(reservedCCUnit.getReservedAmount());
+				CcUnitType type = accessor.getUnitType();
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[><] " + sidString + " Got " + value + " Used Units of type '" + type + "' ");
+				}
 
-							ccUnit.setUsedAmount((long)Math.ceil(reservedCCUnit.getRateForService() * ccUnit.getUsedUnits()));
-							ccUnit.setRateForService(reservedCCUnit.getRateForService());
-						}
+				CreditControlUnit ccUnit = new CreditControlUnit();
+				ccUnit.setUnitType(type);
+				ccUnit.setRatingGroup(ratingGroup);
+				ccUnit.setServiceId(serviceId);
+				ccUnit.setUsedUnits(ccUnit.getUsedUnits() + value);
+
+				// If we can find Reserved Units and Rate Information for the same MSCC, let's fill with it
+				for (int i = 0; i < reservedCCUnits.size(); i++) {
+					CreditControlUnit reservedCCUnit = reservedCCUnits.get(i);
+					if (reservedCCUnit.getUnitType() == type && reservedCCUnit.belongsTo(ratingGroup, serviceId) && reservedCCUnit.getReservedUnits() > 0) {
+						// Copy the reserved amount from the last session into this session so that ABMF can update used units.
+						ccUnit.setReservedUnits(reservedCCUnit.getReservedUnits());
+						ccUnit.setReservedAmount(reservedCCUnit.getReservedAmount());
+
+						ccUnit.setUsedAmount((long)Math.ceil(reservedCCUnit.getRateForService() * ccUnit.getUsedUnits()));
+						ccUnit.setRateForService(reservedCCUnit.getRateForService());
 					}
-
-					usedCCUnits.add(ccUnit);
-				}
-				catch (Exception e) {
-					tracer.severe("[xx] " + sidString + " Unable to retrieve/invoke '" + methodName + "' for extracting Used Units of type " + type, e);
 				}
+
+				usedCCUnits.add(ccUnit);
 			}
 		}
 
 		return usedCCUnits;
 	}
 
-	private static String toCamelCase(String s) {
-		String[] parts = s.split("-");
-		String camelCaseString = "";
-		for (String part : parts){
-			camelCaseString = camelCaseString + toProperCase(part);
+	/**
+	 * Gets the Service-Identifier used to key the units of a MSCC (the first one, or 0 if none present).
+	 *
+	 * @param serviceIds the Service-Identifier AVP values in the MSCC
+	 * @return the Service-Identifier to use
+	 */
+	private static long getServiceId(long[] serviceIds) {
+		return (serviceIds != null && serviceIds.length > 0) ? serviceIds[0] : 0;
+	}
+
+	private static long[] concat(long[] a, long[] b) {
+		if (b == null || b.length == 0) {
+			return a;
 		}
-		return camelCaseString;
+		long[] result = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	private String toSidString(String sessionId, String reqType, long reqNumber) {
+		return "SID<" + limitString(sessionId, 9, 9, "..") + "/" + reqType.substring(0, 3) + "#" + reqNumber + ">";
 	}
 
 	private String limitString(String str, int start, int end, String sep) {
@@ -1277,10 +1907,6 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		return str.substring(0, start) + sep + str.substring(str.length()-end);
 	}
 
-	private static String toProperCase(String s) {
-		return s.substring(0, 1).toUpperCase() + s.substring(1).toLowerCase();
-	}
-
 	// 'sessionInfo' CMP field setter
 	public abstract void setSessionInfo(UserSessionInfo value);
 
@@ -1292,4 +1918,16 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 
 	// 'timerID' CMP field getter
 	public abstract TimerID getTimerID();
+
+	// 'deadlineTimerID' CMP field setter
+	public abstract void setDeadlineTimerID(TimerID value);
+
+	// 'deadlineTimerID' CMP field getter
+	public abstract TimerID getDeadlineTimerID();
+
+	// 'pendingRating' CMP field setter
+	public abstract void setPendingRating(PendingRating value);
+
+	// 'pendingRating' CMP field getter
+	public abstract PendingRating getPendingRating();
 }
\ No newline at end of file
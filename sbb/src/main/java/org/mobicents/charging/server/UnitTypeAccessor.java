@@ -0,0 +1,128 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server;
+
+import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
+import net.java.slee.resource.diameter.cca.events.avp.RequestedServiceUnitAvp;
+import net.java.slee.resource.diameter.cca.events.avp.UsedServiceUnitAvp;
+
+/**
+ * Statically built table of accessors for the CC-* unit AVPs present in
+ * Requested-Service-Unit and Used-Service-Unit AVPs, one entry per supported
+ * unit type. Replaces building the getter name and invoking it by reflection.
+ *
+ * A value of {@link #ABSENT} means the AVP was not present in the grouped AVP.
+ *
+ * @author ammendonca
+ */
+public enum UnitTypeAccessor {
+
+	TIME(CcUnitType.TIME) {
+		public long getRequested(RequestedServiceUnitAvp rsu) {
+			return rsu.getCreditControlTime();
+		}
+
+		public long getUsed(UsedServiceUnitAvp usu) {
+			return usu.getCreditControlTime();
+		}
+	},
+
+	// MONEY is not supported by 3GPP. TODO: Add support for non 3GPP ?
+
+	TOTAL_OCTETS(CcUnitType.TOTAL_OCTETS) {
+		public long getRequested(RequestedServiceUnitAvp rsu) {
+			return rsu.getCreditControlTotalOctets();
+		}
+
+		public long getUsed(UsedServiceUnitAvp usu) {
+			return usu.getCreditControlTotalOctets();
+		}
+	},
+
+	INPUT_OCTETS(CcUnitType.INPUT_OCTETS) {
+		public long getRequested(RequestedServiceUnitAvp rsu) {
+			return rsu.getCreditControlInputOctets();
+		}
+
+		public long getUsed(UsedServiceUnitAvp usu) {
+			return usu.getCreditControlInputOctets();
+		}
+	},
+
+	OUTPUT_OCTETS(CcUnitType.OUTPUT_OCTETS) {
+		public long getRequested(RequestedServiceUnitAvp rsu) {
+			return rsu.getCreditControlOutputOctets();
+		}
+
+		public long getUsed(UsedServiceUnitAvp usu) {
+			return usu.getCreditControlOutputOctets();
+		}
+	},
+
+	SERVICE_SPECIFIC_UNITS(CcUnitType.SERVICE_SPECIFIC_UNITS) {
+		public long getRequested(RequestedServiceUnitAvp rsu) {
+			return rsu.getCreditControlServiceSpecificUnits();
+		}
+
+		public long getUsed(UsedServiceUnitAvp usu) {
+			return usu.getCreditControlServiceSpecificUnits();
+		}
+	};
+
+	/**
+	 * Value returned by the Diameter stack when the unit AVP is not present.
+	 */
+	public static final long ABSENT = Long.MIN_VALUE;
+
+	/**
+	 * Cached copy of values(), so iterating the table does not clone the array each time.
+	 */
+	public static final UnitTypeAccessor[] ALL = values();
+
+	private final CcUnitType unitType;
+
+	private UnitTypeAccessor(CcUnitType unitType) {
+		this.unitType = unitType;
+	}
+
+	public CcUnitType getUnitType() {
+		return unitType;
+	}
+
+	/**
+	 * Reads the units of this type from a Requested-Service-Unit AVP.
+	 *
+	 * @param rsu the Requested-Service-Unit AVP
+	 * @return the units, or {@link #ABSENT} if not present
+	 */
+	public abstract long getRequested(RequestedServiceUnitAvp rsu);
+
+	/**
+	 * Reads the units of this type from a Used-Service-Unit AVP.
+	 *
+	 * @param usu the Used-Service-Unit AVP
+	 * @return the units, or {@link #ABSENT} if not present
+	 */
+	public abstract long getUsed(UsedServiceUnitAvp usu);
+
+}
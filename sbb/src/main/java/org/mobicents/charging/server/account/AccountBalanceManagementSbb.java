@@ -195,6 +195,16 @@ public abstract class AccountBalanceManagementSbb extends BaseSbb implements Sbb
 			ccInfo.setSuccess(true);
 			((DiameterChargingServer)sbbContext.getSbbLocalObject().getParent()).resumeOnCreditControlRequest(ccInfo);
 		}
+		else if (ccInfo.isDroppable()) {
+			// No use in going to the datasource, the parent will answer with the local decision
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] SID<" + ccInfo.getSessionId() + "> Deadline exceeded, skipping Unit Reservation...");
+			}
+			ccInfo.setSuccess(false);
+			ccInfo.setErrorCodeType(CreditControlInfo.ErrorCodeType.DeadlineExceeded);
+			ccInfo.setErrorMessage("Deadline Exceeded");
+			((DiameterChargingServer)sbbContext.getSbbLocalObject().getParent()).resumeOnCreditControlRequest(ccInfo);
+		}
 		else {
 			DataSource ds = null;
 			try {
@@ -223,7 +233,11 @@ public abstract class AccountBalanceManagementSbb extends BaseSbb implements Sbb
 				//ccIA.setSessionId(ccInfo.getSessionId());
 				//ccIA.setEventTimestamp(System.currentTimeMillis());
 				//ccIA.setSubscriptionId(ccInfo.getSubscriptionId());
-				if (data.getMsisdn() == null) {
+				if (ccIA.getErrorCodeType() == CreditControlInfo.ErrorCodeType.AccountingConnectionErr) {
+					// set by the datasource, unable to make the operation persistent
+					ccIA.setErrorMessage("Accounting Connection Error");
+				}
+				else if (data.getMsisdn() == null) {
 					ccIA.setErrorCode(CreditControlInfo.ErrorCodeType.InvalidUser.ordinal());
 					ccIA.setErrorMessage("Invalid User");
 				}
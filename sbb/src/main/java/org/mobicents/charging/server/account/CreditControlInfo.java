@@ -22,6 +22,7 @@
 
 package org.mobicents.charging.server.account;
 
+import net.java.slee.resource.diameter.cca.events.avp.CcRequestType;
 import net.java.slee.resource.diameter.cca.events.avp.RequestedActionType;
 
 import java.io.Serializable;
@@ -87,7 +88,7 @@ public class CreditControlInfo implements Serializable {
 		// 300+
 		BadRoamingCountry, NotEnoughBalance, NoServiceForUser,
 		// 400+
-		AccountingConnectionErr;
+		AccountingConnectionErr, DeadlineExceeded;
 
 		ErrorCodeType() {
 		}
@@ -114,6 +115,8 @@ public class CreditControlInfo implements Serializable {
 			case 402:
 			case 403:
 				return AccountingConnectionErr;
+			case 404:
+				return DeadlineExceeded;
 
 			default:
 				return General;
@@ -146,6 +149,9 @@ public class CreditControlInfo implements Serializable {
 	
 	private long balanceAfter;
 
+	// time by which the request must be answered, 0 if none
+	private long deadline;
+
 	public ErrorCodeType getErrorCodeType() {
 		return errorCodeType;
 	}
@@ -251,6 +257,45 @@ public class CreditControlInfo implements Serializable {
 		this.balanceAfter = balanceAfter;
 	}
 	
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Checks if the time budget for answering the request is exhausted, in which case no more work should be done
+	 * on it, as the answer would be too late.
+	 *
+	 * @return true if there is a deadline and it has passed, false otherwise
+	 */
+	public boolean isPastDeadline() {
+		return deadline > 0 && System.currentTimeMillis() >= deadline;
+	}
+
+	/**
+	 * Checks if the handling of the request can be dropped because it is past its deadline. Requests reporting used
+	 * units or terminating the session are never dropped, so that usage is debited and reservations are released,
+	 * even if late.
+	 *
+	 * @return true if the request can be dropped, false if it must be handled
+	 */
+	public boolean isDroppable() {
+		if (!isPastDeadline() || CcRequestType.TERMINATION_REQUEST.toString().equals(eventType)) {
+			return false;
+		}
+		if (ccUnits != null) {
+			for (int i = 0; i < ccUnits.size(); i++) {
+				if (ccUnits.get(i).getUsedUnits() > 0) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
 	public ArrayList<CreditControlUnit> getCcUnits() {
 		return ccUnits;
 	}
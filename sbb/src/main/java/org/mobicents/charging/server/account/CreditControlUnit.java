@@ -46,8 +46,16 @@ public class CreditControlUnit implements Serializable {
 	 */
 	private CcUnitType unitType;
 
+	/**
+	 * Rating-Group and (first) Service-Identifier of the Multiple-Services-Credit-Control AVP these units belong to.
+	 */
+	private long ratingGroup;
+	private long serviceId;
+
 	private long requestedUnits;
 	private long requestedAmount;
+	// units requested by the client, if quota dimensioning changed the requested units, 0 otherwise
+	private long clientRequestedUnits;
 
 	private long reservedUnits;
 	private long reservedAmount;
@@ -65,6 +73,31 @@ public class CreditControlUnit implements Serializable {
 		this.unitType = unitType;
 	}
 
+	public long getRatingGroup() {
+		return ratingGroup;
+	}
+	public void setRatingGroup(long ratingGroup) {
+		this.ratingGroup = ratingGroup;
+	}
+
+	public long getServiceId() {
+		return serviceId;
+	}
+	public void setServiceId(long serviceId) {
+		this.serviceId = serviceId;
+	}
+
+	/**
+	 * Checks if these units belong to the Multiple-Services-Credit-Control identified by the given values.
+	 *
+	 * @param ratingGroup the Rating-Group of the MSCC
+	 * @param serviceId the (first) Service-Identifier of the MSCC
+	 * @return true if they belong to it, false otherwise
+	 */
+	public boolean belongsTo(long ratingGroup, long serviceId) {
+		return this.ratingGroup == ratingGroup && this.serviceId == serviceId;
+	}
+
 	public long getRequestedUnits() {
 		return requestedUnits;
 	}
@@ -79,6 +112,13 @@ public class CreditControlUnit implements Serializable {
 		this.requestedAmount = requestedAmount;
 	}
 
+	public long getClientRequestedUnits() {
+		return clientRequestedUnits;
+	}
+	public void setClientRequestedUnits(long clientRequestedUnits) {
+		this.clientRequestedUnits = clientRequestedUnits;
+	}
+
 	public long getReservedUnits() {
 		return reservedUnits;
 	}
@@ -117,6 +157,8 @@ public class CreditControlUnit implements Serializable {
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder("CreditControlUnits[UnitType=").append(unitType).
+				append("; RatingGroup=").append(ratingGroup).
+				append("; ServiceId=").append(serviceId).
 				append("; RequestedUnits=").append(requestedUnits).
 				append("; RequestedAmount=").append(requestedAmount).
 				append("; ReservedUnits=").append(reservedUnits).
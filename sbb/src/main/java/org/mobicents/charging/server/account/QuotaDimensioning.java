@@ -0,0 +1,238 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.account;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.slee.facilities.Tracer;
+
+import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
+
+/**
+ * Quota dimensioning, sizing the units to grant so that the client comes back after a target interval, instead of
+ * whatever it requested. The consumption velocity of each subscriber, per Rating-Group and unit type, is learnt from
+ * the Used-Service-Unit AVPs in the intermediate interrogations, as a moving average.
+ *
+ * Grants are never below the requested units, are capped to a multiple of them, and are still subject to the available
+ * balance when reserved. As they are larger than needed, dimensioned grants may only take up to a share of the balance
+ * available, otherwise the datasources fall back to granting what the client requested.
+ *
+ * The dimensioned units replace the requested ones, while the client requested units are kept in
+ * {@link CreditControlUnit#getClientRequestedUnits()}.
+ *
+ * @author ammendonca
+ */
+public final class QuotaDimensioning {
+
+	private static QuotaDimensioning instance = null;
+
+	// weight of the last sample in the consumption velocity moving average
+	private static final double SMOOTHING = 0.5;
+
+	// samples over shorter intervals are too noisy to be used
+	private static final long MIN_SAMPLE_INTERVAL = 1000;
+
+	private final long targetInterval;
+	private final long maxGrantFactor;
+	private final long maxBalancePercent;
+
+	// least recently used subscribers are forgotten first
+	private final Map<String, double[]>[] stripes;
+
+	@SuppressWarnings("unchecked")
+	private QuotaDimensioning(long targetInterval, long maxGrantFactor, long maxBalancePercent, int capacity) {
+		this.targetInterval = targetInterval;
+		this.maxGrantFactor = maxGrantFactor;
+		this.maxBalancePercent = maxBalancePercent;
+		this.stripes = new Map[64];
+		final int stripeCapacity = Math.max(capacity / stripes.length, 16);
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new LinkedHashMap<String, double[]>(stripeCapacity, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest) {
+					return size() > stripeCapacity;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Starts the quota dimensioning, if not yet started.
+	 *
+	 * @param targetInterval the desired time (ms) between intermediate interrogations, 0 for not dimensioning
+	 * @param maxGrantFactor the maximum multiple of the requested units to grant
+	 * @param maxBalancePercent the maximum percentage of the available balance a dimensioned request may take
+	 * @param capacity the maximum number of subscribers/services tracked
+	 * @param tracer the tracer to log to
+	 */
+	public static synchronized void start(long targetInterval, long maxGrantFactor, long maxBalancePercent, int capacity, Tracer tracer) {
+		if (instance == null && targetInterval > 0 && maxGrantFactor > 0) {
+			instance = new QuotaDimensioning(targetInterval, maxGrantFactor, Math.max(1, Math.min(maxBalancePercent, 100)), capacity);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Started quota dimensioning, targeting " + targetInterval + "ms between interrogations with grants up to " + maxGrantFactor + "x the requested and " + instance.maxBalancePercent + "% of the balance.");
+			}
+		}
+	}
+
+	/**
+	 * @return the quota dimensioning, or null if not started, in which case the requested units are granted
+	 */
+	public static synchronized QuotaDimensioning getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Records the units used since the previous grant.
+	 *
+	 * @param subscriber the subscriber MSISDN
+	 * @param ratingGroup the Rating-Group of the MSCC
+	 * @param unitType the type of units used
+	 * @param usedUnits the units used
+	 * @param elapsed the time (ms) since the previous grant
+	 */
+	public void recordUsage(String subscriber, long ratingGroup, CcUnitType unitType, long usedUnits, long elapsed) {
+		if (usedUnits < 0 || elapsed < MIN_SAMPLE_INTERVAL) {
+			return;
+		}
+		double sample = (double) usedUnits / elapsed;
+		String key = getKey(subscriber, ratingGroup, unitType);
+		Map<String, double[]> stripe = getStripe(key);
+		synchronized (stripe) {
+			double[] velocity = stripe.get(key);
+			if (velocity == null) {
+				stripe.put(key, new double[] {sample});
+			}
+			else {
+				velocity[0] = SMOOTHING * sample + (1 - SMOOTHING) * velocity[0];
+			}
+		}
+	}
+
+	/**
+	 * Sizes the units to grant, for the client to use them in about the target interval.
+	 *
+	 * @param subscriber the subscriber MSISDN
+	 * @param ratingGroup the Rating-Group of the MSCC
+	 * @param unitType the type of units requested
+	 * @param requestedUnits the units requested by the client
+	 * @return the units to grant, or the requested units if the velocity of the subscriber is still unknown
+	 */
+	public long dimension(String subscriber, long ratingGroup, CcUnitType unitType, long requestedUnits) {
+		if (requestedUnits <= 0) {
+			return requestedUnits;
+		}
+		String key = getKey(subscriber, ratingGroup, unitType);
+		Map<String, double[]> stripe = getStripe(key);
+		double velocity;
+		synchronized (stripe) {
+			double[] value = stripe.get(key);
+			if (value == null) {
+				return requestedUnits;
+			}
+			velocity = value[0];
+		}
+		long units = (long) Math.ceil(velocity * targetInterval);
+		// never less than requested, so slow consumers are not asked to come back sooner than they would
+		return Math.max(requestedUnits, Math.min(units, requestedUnits * maxGrantFactor));
+	}
+
+	/**
+	 * Gets the balance a dimensioned request needs to be granted, for it not to take more than the allowed share.
+	 *
+	 * @param amount the amount of the dimensioned request to be covered by the balance
+	 * @return the balance needed
+	 */
+	public long getRequiredBalance(long amount) {
+		return maxBalancePercent >= 100 ? amount : (long) Math.ceil(amount * 100.0 / maxBalancePercent);
+	}
+
+	/**
+	 * Falls back to the client requested units if the dimensioned request would take more than the allowed share of
+	 * the available balance.
+	 *
+	 * @param ccUnits the rated units of the request
+	 * @param available the balance available for the request
+	 * @return true if the units were changed back to the client requested ones
+	 */
+	public boolean limit(List<CreditControlUnit> ccUnits, long available) {
+		if (!isDimensioned(ccUnits)) {
+			return false;
+		}
+		long coveredAmount = 0;
+		for (CreditControlUnit ccUnit : ccUnits) {
+			if (ccUnit.getRateForService() > 0 && ccUnit.getRequestedAmount() > 0) {
+				coveredAmount += ccUnit.getRequestedAmount();
+			}
+		}
+		if (available >= getRequiredBalance(coveredAmount)) {
+			return false;
+		}
+		undimension(ccUnits);
+		return true;
+	}
+
+	/**
+	 * @return true if any of the units was dimensioned
+	 */
+	public static boolean isDimensioned(List<CreditControlUnit> ccUnits) {
+		for (CreditControlUnit ccUnit : ccUnits) {
+			if (ccUnit.getClientRequestedUnits() > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Changes the dimensioned units back to the client requested ones, at the same rate.
+	 */
+	public static void undimension(List<CreditControlUnit> ccUnits) {
+		for (CreditControlUnit ccUnit : ccUnits) {
+			if (ccUnit.getClientRequestedUnits() > 0) {
+				ccUnit.setRequestedUnits(ccUnit.getClientRequestedUnits());
+				ccUnit.setRequestedAmount((long) Math.ceil(ccUnit.getClientRequestedUnits() * ccUnit.getRateForService()));
+				ccUnit.setClientRequestedUnits(0);
+			}
+		}
+	}
+
+	/**
+	 * @return the Validity-Time (s) for dimensioned grants, so that reservations left idle are returned in due time
+	 */
+	public long getValidityTime() {
+		return Math.max(1, targetInterval * 2 / 1000);
+	}
+
+	private Map<String, double[]> getStripe(String key) {
+		return stripes[(key.hashCode() & 0x7FFFFFFF) % stripes.length];
+	}
+
+	private static String getKey(String subscriber, long ratingGroup, CcUnitType unitType) {
+		return subscriber + '/' + ratingGroup + '/' + unitType.getValue();
+	}
+
+}
@@ -0,0 +1,167 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.cdr;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+import javax.slee.facilities.Tracer;
+
+import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
+
+import org.mobicents.charging.server.data.UsageAggregate;
+import org.mobicents.charging.server.data.UserSessionInfo;
+
+/**
+ * Call Detail Record (CDR) Generator shared by all the sessions. Generating a CDR only needs the session info being
+ * handed in, so there is no need for a child SBB entity per session to do it.
+ *
+ * @author ammendonca
+ */
+public final class CDRWriter implements CDRGenerator {
+
+	private static CDRWriter instance = null;
+
+	private static final String DELIMITER = ";";
+
+	private final Tracer tracer;
+
+	private CDRWriter(Tracer tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Starts the CDR generator, if not yet started.
+	 *
+	 * @param tracer the tracer to write the CDRs to
+	 * @return the CDR generator
+	 */
+	public static synchronized CDRWriter start(Tracer tracer) {
+		if (instance == null) {
+			instance = new CDRWriter(tracer);
+		}
+		return instance;
+	}
+
+	/**
+	 * @return the CDR generator, or null if not started
+	 */
+	public static synchronized CDRWriter getInstance() {
+		return instance;
+	}
+
+	public void writeCDR(UserSessionInfo sessionInfo) {
+		// The total used units and total used amount are summed up in the session info, as results come in.
+		UsageAggregate usage = sessionInfo.getUsage();
+
+		/**
+		 * Date Time of record (Format: yyyy-MM-dd'T'HH:mm:ss.SSSZ)
+		 * Diameter Origin Host
+		 * Diameter Origin Realm
+		 * Diameter Destination Host
+		 * Diameter Destination Realm
+		 * Service IDs
+		 * Session Start Time
+		 * Current Time in milliseconds
+		 * Session Duration
+		 * SessionID
+		 * Calling party type
+		 * Calling party info
+		 * Called party type
+		 * Called party info
+		 * Balance Before
+		 * Balance After
+		 * Total Input Octets Units Used
+		 * Total Input Octets Amount Charged
+		 * Total Money Units Used
+		 * Total Money Amount Charged
+		 * Total Output Octets Units Used
+		 * Total Output Octets Amount Charged
+		 * Total Service Specific Units Used
+		 * Total Service Specific Amount Charged
+		 * Total Time Units Used
+		 * Total Time Amount Charged
+		 * Total Total Octets Units Used
+		 * Total Total Octets Amount Charged
+		 * Event Type - Create/Interim/Terminate/Event (CDR's are only generated at Terminate for now)
+		 * Number of events in this session
+		 * Termination Cause
+		 **/
+		StringBuilder cdr = new StringBuilder();
+
+		// SimpleDateFormat is not thread safe, so not shared
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+		long elapsed = System.currentTimeMillis()-sessionInfo.getSessionStartTime();
+
+		try {
+			cdr.append(df.format(new Date())).append(DELIMITER);
+			cdr.append(sessionInfo.getOriginHost()).append(DELIMITER);
+			cdr.append(sessionInfo.getOriginRealm()).append(DELIMITER);
+			cdr.append(sessionInfo.getDestinationHost()).append(DELIMITER);
+			cdr.append(sessionInfo.getDestinationRealm()).append(DELIMITER);
+			cdr.append(Arrays.toString(sessionInfo.getServiceIds())).append(DELIMITER);
+			cdr.append(sessionInfo.getSessionStartTime()).append(DELIMITER);
+			cdr.append(System.currentTimeMillis()).append(DELIMITER);
+			cdr.append(elapsed).append(DELIMITER);
+			cdr.append(sessionInfo.getSessionId()).append(DELIMITER);
+			cdr.append(sessionInfo.getEndUserType().getValue()).append(DELIMITER);
+			cdr.append(sessionInfo.getEndUserId()).append(DELIMITER);
+			// TODO: Get Destination Subscription ID Type and Value if available
+			cdr.append(sessionInfo.getEndUserType().getValue()).append(DELIMITER);
+			cdr.append(sessionInfo.getEndUserId()).append(DELIMITER);
+			cdr.append(usage.getBalanceBefore()).append(DELIMITER);
+			cdr.append(usage.getBalanceAfter()).append(DELIMITER);
+			cdr.append(usage.getUsedUnits(CcUnitType.INPUT_OCTETS)).append(DELIMITER);
+			cdr.append(usage.getUsedAmount(CcUnitType.INPUT_OCTETS)).append(DELIMITER);
+			cdr.append(usage.getUsedUnits(CcUnitType.MONEY)).append(DELIMITER);
+			cdr.append(usage.getUsedAmount(CcUnitType.MONEY)).append(DELIMITER);
+			cdr.append(usage.getUsedUnits(CcUnitType.OUTPUT_OCTETS)).append(DELIMITER);
+			cdr.append(usage.getUsedAmount(CcUnitType.OUTPUT_OCTETS)).append(DELIMITER);
+			cdr.append(usage.getUsedUnits(CcUnitType.SERVICE_SPECIFIC_UNITS)).append(DELIMITER);
+			cdr.append(usage.getUsedAmount(CcUnitType.SERVICE_SPECIFIC_UNITS)).append(DELIMITER);
+			cdr.append(usage.getUsedUnits(CcUnitType.TIME)).append(DELIMITER);
+			cdr.append(usage.getUsedAmount(CcUnitType.TIME)).append(DELIMITER);
+			cdr.append(usage.getUsedUnits(CcUnitType.TOTAL_OCTETS)).append(DELIMITER);
+			cdr.append(usage.getUsedAmount(CcUnitType.TOTAL_OCTETS)).append(DELIMITER);
+			// FIXME? cdr.append(storedCCR.getCcRequestType().getValue()).append(DELIMITER);
+			cdr.append(usage.getCount()).append(DELIMITER);
+			// FIXME? cdr.append(storedCCR.getTerminationCause()).append(DELIMITER);
+		}
+		catch (Exception e) {
+			tracer.warning("Failure while trying to generate CDR");
+		}
+
+		// TODO: Use a different logger.
+		if (tracer.isInfoEnabled()) {
+			tracer.info(cdr.toString());
+		}
+	}
+
+	public void writeCDR(String message) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info(message);
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import org.mobicents.charging.server.account.CreditControlInfo;
+import org.mobicents.charging.server.account.CreditControlUnit;
+import org.mobicents.charging.server.ratingengine.RatingInfo;
+
+/**
+ * A Credit-Control-Request parked while its requested units are being rated asynchronously. The units being rated
+ * are part of the Credit Control Info, so they are kept together and are still the same objects once it is resumed.
+ * The rates already known, from the rate cache, are kept along, so that only the missing ones are asked for.
+ * 
+ * @author ammendonca
+ */
+public class PendingRating implements Serializable {
+
+	private static final long serialVersionUID = 4153960722284301867L;
+
+	private final CreditControlInfo ccInfo;
+	private final ArrayList<CreditControlUnit> ratedUnits;
+	private final RatingInfo[] ratingInfos;
+	private final long ratingTime;
+
+	public PendingRating(CreditControlInfo ccInfo, ArrayList<CreditControlUnit> ratedUnits, RatingInfo[] ratingInfos, long ratingTime) {
+		this.ccInfo = ccInfo;
+		this.ratedUnits = ratedUnits;
+		this.ratingInfos = ratingInfos;
+		this.ratingTime = ratingTime;
+	}
+
+	/**
+	 * @return the Credit Control Info to send to the ABMF once the units are rated
+	 */
+	public CreditControlInfo getCcInfo() {
+		return ccInfo;
+	}
+
+	/**
+	 * @return the requested CC units being rated, in the order they were sent to the rating engine
+	 */
+	public ArrayList<CreditControlUnit> getRatedUnits() {
+		return ratedUnits;
+	}
+
+	/**
+	 * @return the rating information of each of the rated units, null for those the rating engine was asked for
+	 */
+	public RatingInfo[] getRatingInfos() {
+		return ratingInfos;
+	}
+
+	/**
+	 * @return the time sent as the actual time of the ratings, to tell their results from those of earlier requests
+	 */
+	public long getRatingTime() {
+		return ratingTime;
+	}
+
+}
@@ -0,0 +1,135 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
+
+import org.mobicents.charging.server.account.CreditControlInfo;
+import org.mobicents.charging.server.account.CreditControlUnit;
+
+/**
+ * Running totals of the usage of a session, per unit type, and of the balance before the first and after the last
+ * reservation. It is updated as each result comes in, in constant time, so there is no need to keep the results
+ * themselves until the session ends, however long it lasts.
+ * 
+ * @author ammendonca
+ */
+public class UsageAggregate {
+
+	private static final int UNIT_TYPES = CcUnitType.SERVICE_SPECIFIC_UNITS.getValue() + 1;
+
+	private int count;
+
+	private long balanceBefore;
+	private long balanceAfter;
+
+	private final long[] usedUnits = new long[UNIT_TYPES];
+	private final long[] usedAmounts = new long[UNIT_TYPES];
+
+	/**
+	 * Adds the used units and amounts of a reservation result to the totals.
+	 *
+	 * @param ccInfo the Credit Control Info resulting from the reservation
+	 */
+	public void add(CreditControlInfo ccInfo) {
+		if (count++ == 0) {
+			balanceBefore = ccInfo.getBalanceBefore();
+		}
+		balanceAfter = ccInfo.getBalanceAfter();
+
+		ArrayList<CreditControlUnit> ccUnits = ccInfo.getCcUnits();
+		if (ccUnits != null) {
+			for (int i = 0; i < ccUnits.size(); i++) {
+				CreditControlUnit ccUnit = ccUnits.get(i);
+				int type = ccUnit.getUnitType().getValue();
+				usedUnits[type] += ccUnit.getUsedUnits();
+				usedAmounts[type] += ccUnit.getUsedAmount();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of reservation results added
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	public long getBalanceBefore() {
+		return balanceBefore;
+	}
+
+	public long getBalanceAfter() {
+		return balanceAfter;
+	}
+
+	public long getUsedUnits(CcUnitType unitType) {
+		return usedUnits[unitType.getValue()];
+	}
+
+	public long getUsedAmount(CcUnitType unitType) {
+		return usedAmounts[unitType.getValue()];
+	}
+
+	/**
+	 * @return the amount used, of all unit types
+	 */
+	public long getUsedAmount() {
+		long usedAmount = 0;
+		for (int i = 0; i < UNIT_TYPES; i++) {
+			usedAmount += usedAmounts[i];
+		}
+		return usedAmount;
+	}
+
+	void writeTo(DataOutput out) throws IOException {
+		out.writeInt(count);
+		out.writeLong(balanceBefore);
+		out.writeLong(balanceAfter);
+		for (int i = 0; i < UNIT_TYPES; i++) {
+			out.writeLong(usedUnits[i]);
+			out.writeLong(usedAmounts[i]);
+		}
+	}
+
+	void readFrom(DataInput in) throws IOException {
+		count = in.readInt();
+		balanceBefore = in.readLong();
+		balanceAfter = in.readLong();
+		for (int i = 0; i < UNIT_TYPES; i++) {
+			usedUnits[i] = in.readLong();
+			usedAmounts[i] = in.readLong();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "UsageAggregate[Results=" + count + "; Balance-Before=" + balanceBefore + "; Balance-After=" + balanceAfter + "; Used-Amount=" + getUsedAmount() + "]";
+	}
+
+}
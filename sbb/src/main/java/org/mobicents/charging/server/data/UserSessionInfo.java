@@ -22,24 +22,38 @@
 
 package org.mobicents.charging.server.data;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+import net.java.slee.resource.diameter.cca.events.avp.CcRequestType;
+import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
+import net.java.slee.resource.diameter.cca.events.avp.MultipleServicesCreditControlAvp;
 import net.java.slee.resource.diameter.cca.events.avp.SubscriptionIdType;
 import net.java.slee.resource.diameter.ro.events.RoCreditControlRequest;
 
 import org.mobicents.charging.server.account.CreditControlInfo;
+import org.mobicents.charging.server.account.CreditControlUnit;
 
 /**
- * POJO for keeping track of current user's session information
+ * POJO for keeping track of current user's session information.
+ * 
+ * Only what is needed to handle the next requests is kept: the request being handled, the last reservation for each
+ * rating group and service, and the running totals for the CDR. It is written with a compact custom serialization,
+ * so that its size, as stored in CMP and replicated, does not grow with the number of requests in the session.
  * 
  * @author rsaranathan
+ * @author ammendonca
  */
-public class UserSessionInfo implements Serializable {
+public class UserSessionInfo implements Externalizable {
 
 	private static final long serialVersionUID = -6258170300724976637L;
 
+	private static final int VERSION = 1;
+
 	private long sessionStartTime;
 	
 	private String sessionId;
@@ -48,16 +62,35 @@ public class UserSessionInfo implements Serializable {
 
 	private String endUserId;
 	
-	
-	private RoCreditControlRequest ccr;
-	
 	private long[] serviceIds;
-		
+
+	// Diameter peers, as in the first request, for the CDR
+	private String originHost;
+	private String originRealm;
+	private String destinationHost;
+	private String destinationRealm;
+
+	// The request being handled
+	private CcRequestType requestType;
+	private long requestNumber;
+	private long[] requestRatingGroups = new long[0];
+	private long[][] requestServiceIds = new long[0][];
+	private ArrayList<CreditControlUnit> requestedUnits = new ArrayList<CreditControlUnit>();
+
 	/**
-	 * List of Credit Controls for the session.
+	 * Time when the request being handled was received, 0 if none.
 	 */
-	private ArrayList<CreditControlInfo> reservations = new ArrayList<CreditControlInfo>();
-	
+	private long requestReceivedTime;
+
+	/**
+	 * Units reserved on the last reservation for each rating group and service.
+	 */
+	private ArrayList<CreditControlUnit> reservedUnits = new ArrayList<CreditControlUnit>();
+
+	private long lastGrantTime;
+
+	// Running totals of the reservation results of the session
+	private UsageAggregate usage = new UsageAggregate();
 
 	public long getSessionStartTime() {
 		return sessionStartTime;
@@ -75,12 +108,11 @@ public class UserSessionInfo implements Serializable {
 		this.sessionId = sessionId;
 	}
 
-	public net.java.slee.resource.diameter.cca.events.avp.SubscriptionIdType getEndUserType() {
+	public SubscriptionIdType getEndUserType() {
 		return endUserType;
 	}
 
-	public void setEndUserType(
-			net.java.slee.resource.diameter.cca.events.avp.SubscriptionIdType endUserType) {
+	public void setEndUserType(SubscriptionIdType endUserType) {
 		this.endUserType = endUserType;
 	}
 
@@ -92,14 +124,6 @@ public class UserSessionInfo implements Serializable {
 		this.endUserId = endUserId;
 	}
 
-	public RoCreditControlRequest getCcr() {
-		return ccr;
-	}
-
-	public void setCcr(RoCreditControlRequest ccr) {
-		this.ccr = ccr;
-	}
-
 	public long[] getServiceIds() {
 		return serviceIds;
 	}
@@ -108,12 +132,284 @@ public class UserSessionInfo implements Serializable {
 		this.serviceIds = serviceIds;
 	}
 
-	public ArrayList<CreditControlInfo> getReservations() {
-		return reservations;
+	public String getOriginHost() {
+		return originHost;
+	}
+
+	public String getOriginRealm() {
+		return originRealm;
+	}
+
+	public String getDestinationHost() {
+		return destinationHost;
+	}
+
+	public String getDestinationRealm() {
+		return destinationRealm;
+	}
+
+	/**
+	 * Sets the request being handled, keeping only its type, number and the keys of its MSCCs, to be echoed in the
+	 * answer. The Diameter peers are taken from the first request of the session.
+	 *
+	 * @param ccr the Credit-Control-Request being handled
+	 */
+	public void setRequest(RoCreditControlRequest ccr) {
+		if (originHost == null) {
+			originHost = String.valueOf(ccr.getOriginHost());
+			originRealm = String.valueOf(ccr.getOriginRealm());
+			destinationHost = String.valueOf(ccr.getDestinationHost());
+			destinationRealm = String.valueOf(ccr.getDestinationRealm());
+		}
+		requestType = ccr.getCcRequestType();
+		requestNumber = ccr.getCcRequestNumber();
+		MultipleServicesCreditControlAvp[] msccs = ccr.getMultipleServicesCreditControls();
+		int size = msccs != null ? msccs.length : 0;
+		requestRatingGroups = new long[size];
+		requestServiceIds = new long[size][];
+		for (int i = 0; i < size; i++) {
+			requestRatingGroups[i] = msccs[i].getRatingGroup();
+			requestServiceIds[i] = msccs[i].getServiceIdentifiers();
+		}
+		requestedUnits = new ArrayList<CreditControlUnit>();
+	}
+
+	public CcRequestType getRequestType() {
+		return requestType;
+	}
+
+	public long getRequestNumber() {
+		return requestNumber;
 	}
 
-	public void setStoredReservations(ArrayList<CreditControlInfo> reservations) {
-		this.reservations = reservations;
+	/**
+	 * @return the Rating-Group of each MSCC in the request being handled
+	 */
+	public long[] getRequestRatingGroups() {
+		return requestRatingGroups;
+	}
+
+	/**
+	 * @return the Service-Identifiers of each MSCC in the request being handled
+	 */
+	public long[][] getRequestServiceIds() {
+		return requestServiceIds;
+	}
+
+	public ArrayList<CreditControlUnit> getRequestedUnits() {
+		return requestedUnits;
+	}
+
+	public void setRequestedUnits(ArrayList<CreditControlUnit> requestedUnits) {
+		this.requestedUnits = requestedUnits;
+	}
+
+	public long getRequestReceivedTime() {
+		return requestReceivedTime;
+	}
+
+	public void setRequestReceivedTime(long requestReceivedTime) {
+		this.requestReceivedTime = requestReceivedTime;
+	}
+
+	/**
+	 * Adds the result of a reservation to the session. The units reserved replace the previous reservation of the same
+	 * rating groups and services, and the used units are added to the session totals.
+	 *
+	 * @param ccInfo the Credit Control Info resulting from the reservation
+	 */
+	public void addResult(CreditControlInfo ccInfo) {
+		usage.add(ccInfo);
+		if (ccInfo.isSuccessful()) {
+			lastGrantTime = ccInfo.getEventTimestamp();
+		}
+
+		ArrayList<CreditControlUnit> ccUnits = ccInfo.getCcUnits();
+		if (ccUnits == null) {
+			return;
+		}
+		for (int i = 0; i < ccUnits.size(); i++) {
+			CreditControlUnit ccUnit = ccUnits.get(i);
+			for (int j = reservedUnits.size() - 1; j >= 0; j--) {
+				if (reservedUnits.get(j).belongsTo(ccUnit.getRatingGroup(), ccUnit.getServiceId())) {
+					reservedUnits.remove(j);
+				}
+			}
+		}
+		for (int i = 0; i < ccUnits.size(); i++) {
+			CreditControlUnit ccUnit = ccUnits.get(i);
+			if (ccUnit.getReservedUnits() > 0) {
+				CreditControlUnit reservedUnit = new CreditControlUnit();
+				reservedUnit.setUnitType(ccUnit.getUnitType());
+				reservedUnit.setRatingGroup(ccUnit.getRatingGroup());
+				reservedUnit.setServiceId(ccUnit.getServiceId());
+				reservedUnit.setReservedUnits(ccUnit.getReservedUnits());
+				reservedUnit.setReservedAmount(ccUnit.getReservedAmount());
+				reservedUnit.setRateForService(ccUnit.getRateForService());
+				reservedUnits.add(reservedUnit);
+			}
+		}
+	}
+
+	/**
+	 * @return the units reserved on the last reservation for each rating group and service
+	 */
+	public ArrayList<CreditControlUnit> getReservedUnits() {
+		return reservedUnits;
+	}
+
+	/**
+	 * @return the time of the last successful reservation, 0 if none
+	 */
+	public long getLastGrantTime() {
+		return lastGrantTime;
+	}
+
+	/**
+	 * @return the running totals of the usage in the session
+	 */
+	public UsageAggregate getUsage() {
+		return usage;
+	}
+
+	// ------------------------- Compact Serialization -------------------------
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeByte(VERSION);
+		out.writeLong(sessionStartTime);
+		writeString(out, sessionId);
+		out.writeByte(endUserType != null ? endUserType.getValue() : -1);
+		writeString(out, endUserId);
+		writeLongs(out, serviceIds);
+		writeString(out, originHost);
+		writeString(out, originRealm);
+		writeString(out, destinationHost);
+		writeString(out, destinationRealm);
+
+		out.writeByte(requestType != null ? requestType.getValue() : -1);
+		out.writeLong(requestNumber);
+		out.writeShort(requestRatingGroups.length);
+		for (int i = 0; i < requestRatingGroups.length; i++) {
+			out.writeLong(requestRatingGroups[i]);
+			writeLongs(out, requestServiceIds[i]);
+		}
+		out.writeShort(requestedUnits.size());
+		for (int i = 0; i < requestedUnits.size(); i++) {
+			CreditControlUnit ccUnit = requestedUnits.get(i);
+			writeUnitKey(out, ccUnit);
+			out.writeLong(ccUnit.getRequestedUnits());
+		}
+		out.writeLong(requestReceivedTime);
+
+		out.writeShort(reservedUnits.size());
+		for (int i = 0; i < reservedUnits.size(); i++) {
+			CreditControlUnit ccUnit = reservedUnits.get(i);
+			writeUnitKey(out, ccUnit);
+			out.writeLong(ccUnit.getReservedUnits());
+			out.writeLong(ccUnit.getReservedAmount());
+			out.writeDouble(ccUnit.getRateForService());
+		}
+		out.writeLong(lastGrantTime);
+
+		usage.writeTo(out);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		int version = in.readByte();
+		if (version != VERSION) {
+			throw new IOException("Unsupported UserSessionInfo version " + version);
+		}
+		sessionStartTime = in.readLong();
+		sessionId = readString(in);
+		int type = in.readByte();
+		endUserType = type >= 0 ? SubscriptionIdType.fromInt(type) : null;
+		endUserId = readString(in);
+		serviceIds = readLongs(in);
+		originHost = readString(in);
+		originRealm = readString(in);
+		destinationHost = readString(in);
+		destinationRealm = readString(in);
+
+		type = in.readByte();
+		requestType = type >= 0 ? CcRequestType.fromInt(type) : null;
+		requestNumber = in.readLong();
+		int size = in.readShort();
+		requestRatingGroups = new long[size];
+		requestServiceIds = new long[size][];
+		for (int i = 0; i < size; i++) {
+			requestRatingGroups[i] = in.readLong();
+			requestServiceIds[i] = readLongs(in);
+		}
+		size = in.readShort();
+		requestedUnits = new ArrayList<CreditControlUnit>(size);
+		for (int i = 0; i < size; i++) {
+			CreditControlUnit ccUnit = readUnitKey(in);
+			ccUnit.setRequestedUnits(in.readLong());
+			requestedUnits.add(ccUnit);
+		}
+		requestReceivedTime = in.readLong();
+
+		size = in.readShort();
+		reservedUnits = new ArrayList<CreditControlUnit>(size);
+		for (int i = 0; i < size; i++) {
+			CreditControlUnit ccUnit = readUnitKey(in);
+			ccUnit.setReservedUnits(in.readLong());
+			ccUnit.setReservedAmount(in.readLong());
+			ccUnit.setRateForService(in.readDouble());
+			reservedUnits.add(ccUnit);
+		}
+		lastGrantTime = in.readLong();
+
+		usage = new UsageAggregate();
+		usage.readFrom(in);
+	}
+
+	private static void writeUnitKey(ObjectOutput out, CreditControlUnit ccUnit) throws IOException {
+		out.writeByte(ccUnit.getUnitType().getValue());
+		out.writeLong(ccUnit.getRatingGroup());
+		out.writeLong(ccUnit.getServiceId());
+	}
+
+	private static CreditControlUnit readUnitKey(ObjectInput in) throws IOException {
+		CreditControlUnit ccUnit = new CreditControlUnit();
+		ccUnit.setUnitType(CcUnitType.fromInt(in.readByte()));
+		ccUnit.setRatingGroup(in.readLong());
+		ccUnit.setServiceId(in.readLong());
+		return ccUnit;
+	}
+
+	private static void writeString(ObjectOutput out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(ObjectInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeLongs(ObjectOutput out, long[] values) throws IOException {
+		out.writeShort(values != null ? values.length : -1);
+		if (values != null) {
+			for (long value : values) {
+				out.writeLong(value);
+			}
+		}
+	}
+
+	private static long[] readLongs(ObjectInput in) throws IOException {
+		int length = in.readShort();
+		if (length < 0) {
+			return null;
+		}
+		long[] values = new long[length];
+		for (int i = 0; i < length; i++) {
+			values[i] = in.readLong();
+		}
+		return values;
 	}
 
 	@Override
@@ -123,12 +419,13 @@ public class UserSessionInfo implements Serializable {
 			"SessionId=" + sessionId + "; " +
 			"EndUserID=" + endUserId + "; " +
 			"EndUserType=" + endUserType + "; " +
-			"ServiceIDs=" + Arrays.toString(serviceIds) + ";";
-		
+			"ServiceIDs=" + Arrays.toString(serviceIds) + "; " +
+			"Request=" + requestType + "#" + requestNumber + "; " +
+			"Usage=" + usage + ";";
+
 		// This contains everything about the user's session. For debugging purposes only, need to format it better. 
-		for (int i = 0; i < reservations.size(); i++) {
-			CreditControlInfo ccInfo = reservations.get(i);
-			ret += "\nSession " + (i+1) + ":" + ccInfo;
+		for (int i = 0; i < reservedUnits.size(); i++) {
+			ret += "\n" + reservedUnits.get(i);
 		}
 		ret += "]";
 		
@@ -37,4 +37,13 @@ public abstract class DataSourceJdbcTask extends SimpleJdbcTask {
 
 	public abstract void callBackParentOnException(SbbLocalObject parent);
 
+	/**
+	 * Gets the subscriber whose balance this task operates on. Tasks for the same subscriber are executed one at a time.
+	 * 
+	 * @return the subscriber MSISDN, or null if the task does not need to be serialized
+	 */
+	public String getSubscriber() {
+		return null;
+	}
+
 }
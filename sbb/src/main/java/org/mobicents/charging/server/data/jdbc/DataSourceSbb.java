@@ -27,7 +27,10 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
+import javax.naming.Context;
+import javax.naming.InitialContext;
 import javax.slee.ActivityContextInterface;
+import javax.slee.RolledBackContext;
 import javax.slee.Sbb;
 import javax.slee.SbbContext;
 import javax.slee.SbbLocalObject;
@@ -42,7 +45,7 @@ import org.mobicents.slee.resource.jdbc.JdbcActivity;
 import org.mobicents.slee.resource.jdbc.JdbcActivityContextInterfaceFactory;
 import org.mobicents.slee.resource.jdbc.JdbcResourceAdaptorSbbInterface;
 import org.mobicents.slee.resource.jdbc.event.JdbcTaskExecutionThrowableEvent;
-import org.mobicents.slee.resource.jdbc.task.simple.SimpleJdbcTask;
+import org.mobicents.slee.resource.jdbc.task.JdbcTask;
 import org.mobicents.slee.resource.jdbc.task.simple.SimpleJdbcTaskResultEvent;
 
 /**
@@ -71,6 +74,14 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 	private JdbcResourceAdaptorSbbInterface jdbcRA;
 	private JdbcActivityContextInterfaceFactory jdbcACIF;
 
+	// shared by all entities, so operations for the same subscriber are serialized across sessions
+	private static final long DEFAULT_TASK_LEASE_TIME = 30000;
+	private static final SubscriberTaskSerializer taskSerializer = new SubscriberTaskSerializer(64, DEFAULT_TASK_LEASE_TIME);
+
+	// ------------------------- Reservation Reaper ---------------------------
+	private static final long DEFAULT_RESERVATION_LIFETIME = 86400000;
+	private static volatile long reservationLifetime = DEFAULT_RESERVATION_LIFETIME;
+
 	// --------------------------- Local Interface ----------------------------
 
 	@Override
@@ -117,6 +128,34 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 					tracer.fine("[><] Executed CREATE Statement (" + DataSourceSchemaInfo._QUERY_CREATE + ")");
 				}
 			}
+
+			try {
+				connection.createStatement().execute(DataSourceSchemaInfo._QUERY_CREATE_RESERVATIONS);
+				if (tracer.isFineEnabled()) {
+					tracer.fine("[><] Executed CREATE Statement (" + DataSourceSchemaInfo._QUERY_CREATE_RESERVATIONS + ")");
+				}
+			}
+			catch (SQLException e) {
+				// it's ok, reservations are kept across restarts so it most likely exists already
+				if (tracer.isFineEnabled()) {
+					tracer.fine("[><] Failed to create reservations table. Probably it already exists.", e);
+				}
+			}
+
+			for (String createIndexQuery : DataSourceSchemaInfo._QUERIES_CREATE_INDEXES) {
+				try {
+					connection.createStatement().execute(createIndexQuery);
+					if (tracer.isFineEnabled()) {
+						tracer.fine("[><] Executed CREATE INDEX Statement (" + createIndexQuery + ")");
+					}
+				}
+				catch (SQLException e) {
+					// it's ok, most likely the index already exists from a previous run
+					if (tracer.isFineEnabled()) {
+						tracer.fine("[><] Failed to create index (" + createIndexQuery + "). Probably it already exists.", e);
+					}
+				}
+			}
 		}
 		catch (SQLException e) {
 			tracer.warning("[!!] Unable to create the users table.", e);
@@ -134,6 +173,17 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 				tracer.severe("[xx] Failed to close JDBC Connection", e);
 			}
 		}
+
+		try {
+			Context ctx = (Context) new InitialContext().lookup("java:comp/env");
+			taskSerializer.setLeaseTime((Long) ctx.lookup("taskLeaseTime"));
+		}
+		catch (Exception e) {
+			tracer.warning("[!!] Unable to read task lease time env-entry. Using " + DEFAULT_TASK_LEASE_TIME + "ms.");
+		}
+		taskSerializer.startSweeper(taskSerializer.getLeaseTime(), tracer);
+
+		startReservationReaper();
 	}
 
 	@Override
@@ -149,7 +199,7 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 		if (tracer.isInfoEnabled()) {
 			tracer.info("[><] Requesting Units: " + ccInfo);
 		}
-		executeTask(new ReserveUnitsJdbcTask(ccInfo, tracer));
+		executeTask(new ReserveUnitsJdbcTask(ccInfo, reservationLifetime, tracer));
 	}
 
 	@Override
@@ -168,6 +218,21 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 		executeTask(new UpdateUserJdbcTask(msisdn, balance, tracer));
 	}
 
+	private void startReservationReaper() {
+		long reaperPeriod = 60000;
+		int reaperBatchSize = 1000;
+		try {
+			Context ctx = (Context) new InitialContext().lookup("java:comp/env");
+			reservationLifetime = (Long) ctx.lookup("reservationLifetime");
+			reaperPeriod = (Long) ctx.lookup("reservationReaperPeriod");
+			reaperBatchSize = (Integer) ctx.lookup("reservationReaperBatchSize");
+		}
+		catch (Exception e) {
+			tracer.warning("[!!] Unable to read reservation reaper env-entries. Using lifetime " + reservationLifetime + "ms, period " + reaperPeriod + "ms and batch size " + reaperBatchSize + ".");
+		}
+		ReservationReaper.start(jdbcRA, reaperPeriod, reaperBatchSize, tracer);
+	}
+
 	// ---------------------------- Event Handlers ----------------------------
 
 	/**
@@ -175,11 +240,14 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 	 * 
 	 * @param jdbcTask
 	 */
-	private void executeTask(SimpleJdbcTask jdbcTask) {
+	private void executeTask(DataSourceJdbcTask jdbcTask) {
 		JdbcActivity jdbcActivity = jdbcRA.createActivity();
 		ActivityContextInterface jdbcACI = jdbcACIF.getActivityContextInterface(jdbcActivity);
 		jdbcACI.attach(sbbContextExt.getSbbLocalObject());
-		jdbcActivity.execute(jdbcTask);
+		DataSourceJdbcTask expiredTask = taskSerializer.execute(jdbcActivity, jdbcTask);
+		if (expiredTask != null) {
+			tracer.warning("[!!] Task " + expiredTask + " for subscriber '" + expiredTask.getSubscriber() + "' did not complete within its lease. Executing the next ones.");
+		}
 	}
 
 	/**
@@ -195,9 +263,11 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 		}
 		// end jdbc activity
 		((JdbcActivity) aci.getActivity()).endActivity();
+		final DataSourceJdbcTask jdbcTask = (DataSourceJdbcTask) event.getTask();
+		// let the next task for the same subscriber go
+		taskSerializer.completed(jdbcTask);
 		// call back parent
 		final SbbLocalObject parent = sbbContextExt.getSbbLocalObject().getParent();
-		final DataSourceJdbcTask jdbcTask = (DataSourceJdbcTask) event.getTask();
 		jdbcTask.callBackParentOnException(parent);
 	}
 
@@ -207,14 +277,41 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 		}
 		// end jdbc activity
 		((JdbcActivity) aci.getActivity()).endActivity();
+		final DataSourceJdbcTask jdbcTask = (DataSourceJdbcTask) event.getTask();
+		// let the next task for the same subscriber go
+		taskSerializer.completed(jdbcTask);
 		// call back parent
 		final SbbLocalObject parent = sbbContextExt.getSbbLocalObject().getParent();
-		final DataSourceJdbcTask jdbcTask = (DataSourceJdbcTask) event.getTask();
 		jdbcTask.callBackParentOnResult(parent);
 	}
 
 	// ---------------------------- SLEE Callbacks ----------------------------
 
+	@Override
+	public void sbbRemove() {
+		// tasks of this entity still in flight or queued would otherwise hold their subscriber until the lease expires
+		for (ActivityContextInterface aci : sbbContextExt.getActivities()) {
+			if (aci.getActivity() instanceof JdbcActivity) {
+				taskSerializer.cancel((JdbcActivity) aci.getActivity());
+			}
+		}
+	}
+
+	@Override
+	public void sbbRolledBack(RolledBackContext context) {
+		// the task result was received but handling it failed, so the next task may not have been let go
+		JdbcTask task = null;
+		if (context.getEvent() instanceof SimpleJdbcTaskResultEvent) {
+			task = ((SimpleJdbcTaskResultEvent) context.getEvent()).getTask();
+		}
+		else if (context.getEvent() instanceof JdbcTaskExecutionThrowableEvent) {
+			task = ((JdbcTaskExecutionThrowableEvent) context.getEvent()).getTask();
+		}
+		if (task instanceof DataSourceJdbcTask) {
+			taskSerializer.completed((DataSourceJdbcTask) task);
+		}
+	}
+
 	@Override
 	public void setSbbContext(SbbContext context) {
 		sbbContextExt = (SbbContextExt) context;
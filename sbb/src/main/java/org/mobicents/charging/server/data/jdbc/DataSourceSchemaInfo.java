@@ -40,6 +40,18 @@ public class DataSourceSchemaInfo {
 	public static final String _COL_BALANCE_EXPIRY_DATE = "BAL_EXPIRY_DATE";
 	public static final String _COL_BAL_LAST_ADJUSTED = "BAL_LAST_ADJUSTED";
 	public static final String _COL_USER_STATUS = "USER_STATUS";
+
+	// Open reservations, one per session and MSCC (Rating-Group / Service-Identifier). The total per user is kept in
+	// the users table RESERVED column.
+	public static final String _TBL_RESERVATIONS = "CONCHA_RESERVATIONS";
+
+	public static final String _COL_SESSION_ID = "SESSION_ID";
+	public static final String _COL_RATING_GROUP = "RATING_GROUP";
+	public static final String _COL_SERVICE_ID = "SERVICE_ID";
+	public static final String _COL_AMOUNT = "AMOUNT";
+	// time (ms) after which the reservation is considered orphan and returned to the balance
+	public static final String _COL_EXPIRES = "EXPIRES";
+
 	// --- SQL Queries --------------------------------------------------------
 
 	public static final String _QUERY_EXISTS = "SELECT 1 FROM " + _TBL_USERS + ";";
@@ -57,9 +69,60 @@ public class DataSourceSchemaInfo {
 			+ "PRIMARY KEY(" + _COL_MSISDN + ")" + ");";
 	
 	public static final String _QUERY_INSERT = "INSERT INTO " + _TBL_USERS
-			+ " (" + _COL_MSISDN + ", " + _COL_BALANCE + ", " + _COL_BALANCE_EXPIRY_DATE + ", " + _COL_BAL_LAST_ADJUSTED + ", " + _COL_USER_STATUS + ")  VALUES (?, ?, ?, ?, ?)";
+			+ " (" + _COL_MSISDN + ", " + _COL_BALANCE + ", " + _COL_RESERVED + ", " + _COL_BALANCE_EXPIRY_DATE + ", " + _COL_BAL_LAST_ADJUSTED + ", " + _COL_USER_STATUS + ")  VALUES (?, ?, 0, ?, ?, ?)";
+
+	// The primary key serves the lookups by session
+	public static final String _QUERY_CREATE_RESERVATIONS = "CREATE TABLE " + _TBL_RESERVATIONS
+			+ " ("
+			+ _COL_SESSION_ID 			+ " VARCHAR(255) NOT NULL, "
+			+ _COL_RATING_GROUP 		+ " BIGINT NOT NULL, "
+			+ _COL_SERVICE_ID 			+ " BIGINT NOT NULL, "
+			+ _COL_MSISDN 				+ " VARCHAR(255) NOT NULL, "
+			+ _COL_AMOUNT 				+ " BIGINT NOT NULL, "
+			+ _COL_EXPIRES 				+ " BIGINT NOT NULL, "
+			+ "PRIMARY KEY(" + _COL_SESSION_ID + ", " + _COL_RATING_GROUP + ", " + _COL_SERVICE_ID + ")" + ")";
+
+	public static final String _QUERY_RESERVATION_INSERT = "INSERT INTO " + _TBL_RESERVATIONS
+			+ " (" + _COL_SESSION_ID + ", " + _COL_RATING_GROUP + ", " + _COL_SERVICE_ID + ", " + _COL_MSISDN + ", " + _COL_AMOUNT + ", " + _COL_EXPIRES + ") VALUES (?, ?, ?, ?, ?, ?)";
+
+	public static final String _QUERY_RESERVATION_DELETE = "DELETE FROM " + _TBL_RESERVATIONS
+			+ " WHERE " + _COL_SESSION_ID + " = ? AND " + _COL_RATING_GROUP + " = ? AND " + _COL_SERVICE_ID + " = ?";
+
+	public static final String _QUERY_RESERVATION_SELECT_SESSION = "SELECT " + _COL_RATING_GROUP + ", " + _COL_SERVICE_ID + ", " + _COL_AMOUNT + ", "
+			+ _COL_EXPIRES + " FROM " + _TBL_RESERVATIONS + " WHERE " + _COL_SESSION_ID + " = ?";
+
+	// Keeps the reservations of a live session from being taken as orphan, including those of MSCCs it did not report
+	public static final String _QUERY_RESERVATION_REFRESH = "UPDATE " + _TBL_RESERVATIONS + " SET " + _COL_EXPIRES + " = ? WHERE " + _COL_SESSION_ID + " = ?";
+
+	// Oldest first, so a limited batch always takes the most overdue ones
+	public static final String _QUERY_RESERVATION_SELECT_EXPIRED = "SELECT " + _COL_SESSION_ID + ", " + _COL_RATING_GROUP + ", " + _COL_SERVICE_ID + ", "
+			+ _COL_MSISDN + ", " + _COL_AMOUNT + ", " + _COL_EXPIRES + " FROM " + _TBL_RESERVATIONS + " WHERE " + _COL_EXPIRES + " <= ? ORDER BY " + _COL_EXPIRES;
+
+	// Only deletes if not renewed (or deleted) meanwhile, so a reservation is returned either by its session or by the
+	// reaper, never by both
+	public static final String _QUERY_RESERVATION_DELETE_EXPIRED = _QUERY_RESERVATION_DELETE + " AND " + _COL_EXPIRES + " = ?";
+
+	// Returns an orphan reservation to the balance
+	public static final String _QUERY_RELEASE = "UPDATE " + _TBL_USERS
+			+ " SET " + _COL_BALANCE + " = " + _COL_BALANCE + " + ?, " + _COL_RESERVED + " = " + _COL_RESERVED + " - ? WHERE " + _COL_MSISDN + " = ?";
+
+	public static final String _IDX_RESERVATIONS_MSISDN = _TBL_RESERVATIONS + "_MSISDN_IDX";
+
+	public static final String _QUERY_CREATE_INDEX_RESERVATIONS = "CREATE INDEX " + _IDX_RESERVATIONS_MSISDN + " ON " + _TBL_RESERVATIONS
+			+ " (" + _COL_MSISDN + ")";
+
+	public static final String _IDX_RESERVATIONS_EXPIRES = _TBL_RESERVATIONS + "_EXPIRES_IDX";
+
+	public static final String _QUERY_CREATE_INDEX_RESERVATIONS_EXPIRES = "CREATE INDEX " + _IDX_RESERVATIONS_EXPIRES + " ON " + _TBL_RESERVATIONS
+			+ " (" + _COL_EXPIRES + ")";
 
-	public static final String _QUERY_SELECT = "SELECT * FROM " + _TBL_USERS + " WHERE " + _COL_MSISDN + " LIKE ?;";
+	public static final String[] _QUERIES_CREATE_INDEXES = new String[] { _QUERY_CREATE_INDEX_RESERVATIONS, _QUERY_CREATE_INDEX_RESERVATIONS_EXPIRES };
+
+	// Exact match, to be used by the charging paths
+	public static final String _QUERY_SELECT = "SELECT * FROM " + _TBL_USERS + " WHERE " + _COL_MSISDN + " = ?";
+
+	// Pattern search, only for dumping data (management) as it may result in a full table scan
+	public static final String _QUERY_SELECT_LIKE = "SELECT * FROM " + _TBL_USERS + " WHERE " + _COL_MSISDN + " LIKE ?";
 
 	/*
 	public static final String _QUERY_RESERVE = 
@@ -81,23 +144,89 @@ public class DataSourceSchemaInfo {
 			"WHERE " + _COL_MSISDN + " = ? AND " + _COL_BALANCE + " >= ?";
 	*/
 	
-	public static final String _QUERY_RESERVE = 
-			"UPDATE " + _TBL_USERS +
+	public static final String _QUERY_SELECT_BALANCE = "SELECT " + _COL_BALANCE + " FROM " + _TBL_USERS + " WHERE " + _COL_MSISDN + " = ?";
+
+	private static final String _RESERVE_SET =
 			//                                          B = B + (G - U) - R
 			" SET " + _COL_BALANCE + " = " + _COL_BALANCE + " + ? - ?, " +
-			_COL_RESERVED + " = " + " ? "+
-			"WHERE " + _COL_MSISDN + " = ?";
+			//                                          T = T + R - G (total reserved, over all sessions)
+			_COL_RESERVED + " = COALESCE(" + _COL_RESERVED + ", 0) + ? ";
+
+	private static final String _RESERVE_WHERE =
+			//                                                                 B + (G - U) >= C (amount to be covered by balance)
+			"WHERE " + _COL_MSISDN + " = ? AND " + _COL_BALANCE + " + ? >= ?";
+
+	/**
+	 * Conditional reserve: checks and debits the balance in the same statement. Parameters are, in order:
+	 * returned amount (G - U), requested amount (R), reserved total delta (R - G), msisdn, returned amount (G - U) and
+	 * amount to be covered by the balance (C). The same parameters apply to all the variants below.
+	 */
+	public static final String _QUERY_RESERVE = "UPDATE " + _TBL_USERS + _RESERVE_SET + _RESERVE_WHERE;
+
+	// PostgreSQL
+	public static final String _QUERY_RESERVE_RETURNING = _QUERY_RESERVE + " RETURNING " + _COL_BALANCE;
 
+	// Microsoft SQL Server
+	public static final String _QUERY_RESERVE_OUTPUT = "UPDATE " + _TBL_USERS + _RESERVE_SET + "OUTPUT INSERTED." + _COL_BALANCE + " " + _RESERVE_WHERE;
+
+	// H2, DB2
+	public static final String _QUERY_RESERVE_FINAL_TABLE = "SELECT " + _COL_BALANCE + " FROM FINAL TABLE (" + _QUERY_RESERVE + ")";
+
+	/**
+	 * Gets the variant of the conditional reserve statement which also returns the resulting balance, for the given
+	 * database.
+	 *
+	 * @param databaseProductName the database product name, as given by the JDBC driver metadata
+	 * @return the statement, or null if the database does not support it and _QUERY_RESERVE followed by
+	 *         _QUERY_SELECT_BALANCE should be used instead.
+	 */
+	public static String getReserveReturningQuery(String databaseProductName) {
+		if (databaseProductName == null) {
+			return null;
+		}
+		String name = databaseProductName.toLowerCase();
+		if (name.contains("postgresql")) {
+			return _QUERY_RESERVE_RETURNING;
+		}
+		if (name.contains("microsoft sql server")) {
+			return _QUERY_RESERVE_OUTPUT;
+		}
+		if (name.equals("h2") || name.startsWith("db2")) {
+			return _QUERY_RESERVE_FINAL_TABLE;
+		}
+		return null;
+	}
+
+	/**
+	 * Conditional debit: checks and debits the balance in the same statement. Parameters are, in order: amount (R),
+	 * msisdn and amount (R) again.
+	 */
 	public static final String _QUERY_DEBIT =
 			"UPDATE " + _TBL_USERS +
 					//                                          B = B - R
 					" SET " + _COL_BALANCE + " = " + _COL_BALANCE + " - ? " +
-					" WHERE " + _COL_MSISDN + " = ?";
+					//                                                                 B >= R
+					" WHERE " + _COL_MSISDN + " = ? AND " + _COL_BALANCE + " >= ?";
+
+	// Used by the in-memory ledger for loading all balances and for write-behind persistence
+	public static final String _QUERY_SELECT_ALL_BALANCES = "SELECT " + _COL_MSISDN + ", " + _COL_BALANCE + ", " + _COL_RESERVED + " FROM " + _TBL_USERS;
+
+	public static final String _QUERY_UPDATE_BALANCE =
+			"UPDATE " + _TBL_USERS +
+					" SET " + _COL_BALANCE + " = ?, " + _COL_RESERVED + " = ? " +
+					"WHERE " + _COL_MSISDN + " = ?";
+
+	public static final String _QUERY_DELETE_USER = "DELETE FROM " + _TBL_USERS + " WHERE " + _COL_MSISDN + " = ?";
 
 	public static void main(String[] args) {
 		System.out.println("Create Query: "+_QUERY_CREATE);
+		System.out.println("Create Reservations Query: "+_QUERY_CREATE_RESERVATIONS);
 		System.out.println("Reserve Query: "+_QUERY_RESERVE);
+		System.out.println("Reserve Query (PostgreSQL): "+_QUERY_RESERVE_RETURNING);
+		System.out.println("Reserve Query (SQL Server): "+_QUERY_RESERVE_OUTPUT);
+		System.out.println("Reserve Query (H2/DB2): "+_QUERY_RESERVE_FINAL_TABLE);
 		System.out.println("Insert Query: "+_QUERY_INSERT);
 		System.out.println("Select Query: "+_QUERY_SELECT);
+		System.out.println("Select Like Query: "+_QUERY_SELECT_LIKE);
 	}
 }
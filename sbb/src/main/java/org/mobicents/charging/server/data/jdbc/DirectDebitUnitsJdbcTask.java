@@ -22,23 +22,32 @@
 
 package org.mobicents.charging.server.data.jdbc;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+import javax.slee.SbbLocalObject;
+import javax.slee.facilities.Tracer;
+import javax.slee.transaction.SleeTransaction;
+
 import org.mobicents.charging.server.account.AccountBalanceManagement;
 import org.mobicents.charging.server.account.CreditControlInfo;
 import org.mobicents.charging.server.account.CreditControlUnit;
 import org.mobicents.charging.server.data.UserAccountData;
 import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
 
-import javax.slee.SbbLocalObject;
-import javax.slee.facilities.Tracer;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.util.ArrayList;
-
 /**
+ * Debits the units of a direct debiting Credit-Control-Request. All the units in the request are summed up and
+ * debited with a single conditional statement, in a transaction, so that either all of them are debited or none.
+ *
  * @author ammendonca
  */
 public class DirectDebitUnitsJdbcTask extends DataSourceJdbcTask {
 
+	private static final long NO_USER = Long.MIN_VALUE;
+
 	private CreditControlInfo ccInfo = null;
 	private UserAccountData accountData = null;
 
@@ -56,85 +65,138 @@ public class DirectDebitUnitsJdbcTask extends DataSourceJdbcTask {
 
 	@Override
 	public Object executeSimple(JdbcTaskContext taskContext) {
+		if (ccInfo.isDroppable()) {
+			// waited too long for its turn, it has been (or is about to be) answered by the root with the local decision
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[//] Deadline exceeded for MSISDN '" + msisdn + "'. Dropping the request.");
+			}
+			ccInfo.setErrorCodeType(CreditControlInfo.ErrorCodeType.DeadlineExceeded);
+			ccInfo.setErrorMessage("Deadline Exceeded");
+			return this;
+		}
+
+		accountData = new UserAccountData();
+		accountData.setMsisdn(msisdn);
+
+		// All the units (of all the MSCCs) in the CCR are debited in a single transaction
+		SleeTransaction tx = null;
 		try {
-			long balance = 0;
-			// get Balance Before (can this be made more efficient?)
-			PreparedStatement preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_SELECT);
-			preparedStatement.setString(1, msisdn);
-			preparedStatement.execute();
-			ResultSet resultSet = preparedStatement.getResultSet();
-			while (resultSet.next()) {
-				balance = resultSet.getLong(DataSourceSchemaInfo._COL_BALANCE);
-				ccInfo.setBalanceBefore(balance);
+			tx = taskContext.getSleeTransactionManager().beginSleeTransaction();
+			Connection connection = taskContext.getConnection();
+
+			long requestedAmount = 0;
+			for (CreditControlUnit ccUnit : ccUnits) {
+				requestedAmount += ccUnit.getRequestedAmount();
 			}
-			
-			for(CreditControlUnit ccUnit : ccUnits) {
-				long reservedAmount = ccUnit.getReservedAmount();
-				long usedAmount = ccUnit.getUsedAmount();
-				long requestedAmount = ccUnit.getRequestedAmount();
-				long requestedUnits = ccUnit.getRequestedUnits();
-
-				if (balance < requestedAmount){
-					accountData = new UserAccountData();
-					accountData.setMsisdn(msisdn);
-					accountData.setBalance(0);
-					accountData.setFailure(true);
-					ccUnit.setReservedUnits(0);
-					ccUnit.setReservedAmount(0);
-					if(tracer.isInfoEnabled()){
-						tracer.info("[//] User does not have sufficient balance for reservation. Balance available: " + balance + ".");
-					}
-					break;
+
+			if (debit(connection, requestedAmount)) {
+				// ok great, we have successfully debited the units
+				long balance = selectBalance(connection);
+				for (CreditControlUnit ccUnit : ccUnits) {
+					ccUnit.setReservedUnits(ccUnit.getRequestedUnits());
+					ccUnit.setReservedAmount(ccUnit.getRequestedAmount());
 				}
-				else if (balance > requestedAmount) {
-					int n = 1;
-					tracer.info(("[//] Executing DB Statement '" + DataSourceSchemaInfo._QUERY_DEBIT).
-							replaceFirst("\\?", String.valueOf(requestedAmount)).
-							replaceFirst("\\?", msisdn)
-							);
-					preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_DEBIT);
-					preparedStatement.setLong(n++, requestedAmount);
-					preparedStatement.setString(n++, msisdn);
-		
-					accountData = new UserAccountData();
-					accountData.setMsisdn(msisdn);
-		
-					if (preparedStatement.executeUpdate() == 1) {
-						// ok great, we have successfully reserved the units
-						preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_SELECT);
-						preparedStatement.setString(1, msisdn);
-						//tracer.info(("[//] Executing DB Statement '" + DataSourceSchemaInfo._QUERY_SELECT).replaceFirst("\\?", msisdn));
-						preparedStatement.execute();
-						resultSet = preparedStatement.getResultSet();
-						while (resultSet.next()) {
-							balance = resultSet.getLong(DataSourceSchemaInfo._COL_BALANCE);
-							accountData.setBalance(balance);
-							accountData.setFailure(false);
-							ccUnit.setReservedUnits(requestedUnits);
-							ccUnit.setReservedAmount(requestedAmount);
-							ccInfo.setBalanceAfter(balance);
-						}
-					}
-					else {
-						// check what kind of error happened
-						accountData.setBalance(0);
-						accountData.setFailure(true);
-						ccUnit.setReservedUnits(0);
-						ccUnit.setReservedAmount(0);
+				accountData.setBalance(balance);
+				accountData.setFailure(false);
+				ccInfo.setBalanceBefore(balance + requestedAmount);
+				ccInfo.setBalanceAfter(balance);
+
+				tx.commit();
+				tx = null;
+			}
+			else {
+				// Either the user does not exist or there's not enough balance for the whole request
+				long balance = selectBalance(connection);
+				if (balance == NO_USER) {
+					if (tracer.isInfoEnabled()) {
+						tracer.info("[//] User with MSISDN '" + msisdn + "' not found.");
 					}
+					accountData.setMsisdn(null);
+				}
+				else if (tracer.isInfoEnabled()) {
+					tracer.info("[//] User does not have sufficient balance for debit. Balance available: " + balance + ".");
 				}
+				fail();
 			}
 		}
 		catch (Exception e) {
-			tracer.severe("[xx] Failed to execute task to Reserve Units for MSISDN '" + msisdn + "'", e);
+			tracer.severe("[xx] Failed to execute task to Direct Debit Units for MSISDN '" + msisdn + "'", e);
+			// nothing was debited, as the transaction is rolled back
+			ccInfo.setErrorCodeType(CreditControlInfo.ErrorCodeType.AccountingConnectionErr);
+			fail();
+		}
+		finally {
+			if (tx != null) {
+				try {
+					tx.rollback();
+				}
+				catch (Exception f) {
+					tracer.severe("[xx] Failed to rollback Direct Debit Units transaction for MSISDN '" + msisdn + "'", f);
+				}
+			}
 		}
 		return this;
 	}
 
+	/**
+	 * Executes the conditional debit statement.
+	 *
+	 * @return true if debited, false if the user does not exist or has not enough balance
+	 */
+	private boolean debit(Connection connection, long amount) throws SQLException {
+		if (tracer.isFineEnabled()) {
+			tracer.fine(("[//] Executing DB Statement '" + DataSourceSchemaInfo._QUERY_DEBIT).
+					replaceFirst("\\?", String.valueOf(amount)).
+					replaceFirst("\\?", msisdn).
+					replaceFirst("\\?", String.valueOf(amount)) + "'");
+		}
+
+		PreparedStatement preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_DEBIT);
+		try {
+			int n = 1;
+			preparedStatement.setLong(n++, amount);
+			preparedStatement.setString(n++, msisdn);
+			preparedStatement.setLong(n++, amount);
+			return preparedStatement.executeUpdate() == 1;
+		}
+		finally {
+			preparedStatement.close();
+		}
+	}
+
+	/**
+	 * @return the current balance of the user, or NO_USER if the user does not exist
+	 */
+	private long selectBalance(Connection connection) throws SQLException {
+		PreparedStatement preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_SELECT_BALANCE);
+		try {
+			preparedStatement.setString(1, msisdn);
+			ResultSet resultSet = preparedStatement.executeQuery();
+			return resultSet.next() ? resultSet.getLong(1) : NO_USER;
+		}
+		finally {
+			preparedStatement.close();
+		}
+	}
+
+	private void fail() {
+		accountData.setBalance(0);
+		accountData.setFailure(true);
+		for (CreditControlUnit ccUnit : ccUnits) {
+			ccUnit.setReservedUnits(0);
+			ccUnit.setReservedAmount(0);
+		}
+	}
+
 	public UserAccountData getAccountData() {
 		return accountData;
 	}
 
+	@Override
+	public String getSubscriber() {
+		return msisdn;
+	}
+
 	@Override
 	public void callBackParentOnException(SbbLocalObject parent) {
 		((AccountBalanceManagement) parent).reserveUnitsResult(ccInfo, accountData);
@@ -55,9 +55,11 @@ public class GetAccountDataJdbcTask extends DataSourceJdbcTask {
 	@Override
 	public Object executeSimple(JdbcTaskContext taskContext) {
 		try {
-			PreparedStatement preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_SELECT);
+			// only go for the (possibly full scan) pattern search if there's a wildcard in it
+			String query = isPattern(msisdn) ? DataSourceSchemaInfo._QUERY_SELECT_LIKE : DataSourceSchemaInfo._QUERY_SELECT;
+			PreparedStatement preparedStatement = taskContext.getConnection().prepareStatement(query);
 			preparedStatement.setString(1, msisdn);
-			tracer.info(("[//] Executing DB Statement '" + DataSourceSchemaInfo._QUERY_SELECT).replaceFirst("\\?", msisdn));
+			tracer.info(("[//] Executing DB Statement '" + query).replaceFirst("\\?", msisdn) + "'");
 			preparedStatement.execute();
 			ResultSet resultSet = preparedStatement.getResultSet();
 			accountDataList = new ArrayList<UserAccountData>();
@@ -74,6 +76,10 @@ public class GetAccountDataJdbcTask extends DataSourceJdbcTask {
 		return this;
 	}
 
+	private static boolean isPattern(String msisdn) {
+		return msisdn.indexOf('%') >= 0 || msisdn.indexOf('_') >= 0;
+	}
+
 	public List<UserAccountData> getAccountData() {
 		return accountDataList;
 	}
@@ -0,0 +1,197 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.slee.facilities.Tracer;
+
+import org.mobicents.slee.resource.jdbc.JdbcResourceAdaptorSbbInterface;
+
+/**
+ * Background task returning orphan reservations to the balances. A reservation is orphan when its session did not
+ * update nor terminate it before it expired, ie, the session was dropped. Expired reservations are found through the
+ * index on their expiry time, oldest first, and released in batches of limited size, at most one batch per period.
+ *
+ * @author ammendonca
+ */
+final class ReservationReaper {
+
+	private static ReservationReaper instance;
+
+	private final JdbcResourceAdaptorSbbInterface jdbcRA;
+	private final int batchSize;
+	private final Tracer tracer;
+
+	private final ScheduledExecutorService executor;
+
+	// totals since start
+	private volatile long reclaimedCount = 0;
+	private volatile long reclaimedAmount = 0;
+
+	private ReservationReaper(JdbcResourceAdaptorSbbInterface jdbcRA, int batchSize, Tracer tracer) {
+		this.jdbcRA = jdbcRA;
+		this.batchSize = batchSize;
+		this.tracer = tracer;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CS-Reservation-Reaper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Starts the reaper, if not yet started.
+	 *
+	 * @param jdbcRA the JDBC RA SBB interface, used to obtain connections
+	 * @param period the time (ms) between sweeps, 0 for not reaping at all
+	 * @param batchSize the maximum number of reservations released on each sweep
+	 * @param tracer the tracer to use
+	 */
+	static synchronized void start(JdbcResourceAdaptorSbbInterface jdbcRA, long period, int batchSize, Tracer tracer) {
+		if (instance == null && period > 0 && batchSize > 0) {
+			final ReservationReaper reaper = new ReservationReaper(jdbcRA, batchSize, tracer);
+			reaper.executor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					reaper.sweep();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+			instance = reaper;
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Started reservation reaper, releasing up to " + batchSize + " reservations every " + period + "ms.");
+			}
+		}
+	}
+
+	/**
+	 * Releases one batch of expired reservations. Each one is deleted only if it was not renewed meanwhile, and its
+	 * amount returned to the user balance in the same transaction.
+	 */
+	void sweep() {
+		long start = System.currentTimeMillis();
+
+		Connection connection = null;
+		try {
+			connection = jdbcRA.getConnection();
+			connection.setAutoCommit(false);
+
+			ArrayList<Object[]> expired = new ArrayList<Object[]>();
+			PreparedStatement select = connection.prepareStatement(DataSourceSchemaInfo._QUERY_RESERVATION_SELECT_EXPIRED);
+			try {
+				select.setMaxRows(batchSize);
+				select.setLong(1, start);
+				ResultSet resultSet = select.executeQuery();
+				while (resultSet.next()) {
+					expired.add(new Object[] {resultSet.getString(1), resultSet.getLong(2), resultSet.getLong(3), resultSet.getString(4), resultSet.getLong(5), resultSet.getLong(6)});
+				}
+			}
+			finally {
+				select.close();
+			}
+			if (expired.isEmpty()) {
+				connection.commit();
+				return;
+			}
+
+			int[] deleted;
+			PreparedStatement delete = connection.prepareStatement(DataSourceSchemaInfo._QUERY_RESERVATION_DELETE_EXPIRED);
+			try {
+				for (Object[] reservation : expired) {
+					delete.setString(1, (String) reservation[0]);
+					delete.setLong(2, (Long) reservation[1]);
+					delete.setLong(3, (Long) reservation[2]);
+					delete.setLong(4, (Long) reservation[5]);
+					delete.addBatch();
+				}
+				deleted = delete.executeBatch();
+			}
+			finally {
+				delete.close();
+			}
+
+			long count = 0;
+			long amount = 0;
+			PreparedStatement release = connection.prepareStatement(DataSourceSchemaInfo._QUERY_RELEASE);
+			try {
+				for (int i = 0; i < deleted.length; i++) {
+					// renewed by its session in between, not orphan after all
+					if (deleted[i] == 0) {
+						continue;
+					}
+					Object[] reservation = expired.get(i);
+					release.setLong(1, (Long) reservation[4]);
+					release.setLong(2, (Long) reservation[4]);
+					release.setString(3, (String) reservation[3]);
+					release.addBatch();
+					count++;
+					amount += (Long) reservation[4];
+				}
+				if (count > 0) {
+					release.executeBatch();
+				}
+			}
+			finally {
+				release.close();
+			}
+
+			connection.commit();
+			reclaimedCount += count;
+			reclaimedAmount += amount;
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[//] Reclaimed " + count + " orphan reservations (amount " + amount + ") in " + (System.currentTimeMillis() - start) + "ms. Total reclaimed: " + reclaimedCount + " (amount " + reclaimedAmount + ").");
+			}
+		}
+		catch (SQLException e) {
+			tracer.warning("[!!] Unable to reclaim orphan reservations. Will retry.", e);
+			try {
+				if (connection != null) {
+					connection.rollback();
+				}
+			}
+			catch (SQLException f) {
+				// nothing else to do, it will be retried
+			}
+		}
+		finally {
+			try {
+				if (connection != null) {
+					connection.close();
+				}
+			}
+			catch (SQLException e) {
+				tracer.severe("[xx] Failed to close JDBC Connection", e);
+			}
+		}
+	}
+
+}
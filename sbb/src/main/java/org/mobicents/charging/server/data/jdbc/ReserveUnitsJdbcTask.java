@@ -22,35 +22,64 @@
 
 package org.mobicents.charging.server.data.jdbc;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 
 import javax.slee.SbbLocalObject;
 import javax.slee.facilities.Tracer;
+import javax.slee.transaction.SleeTransaction;
+
+import net.java.slee.resource.diameter.cca.events.avp.CcRequestType;
 
 import org.mobicents.charging.server.account.AccountBalanceManagement;
 import org.mobicents.charging.server.account.CreditControlInfo;
 import org.mobicents.charging.server.account.CreditControlUnit;
+import org.mobicents.charging.server.account.QuotaDimensioning;
 import org.mobicents.charging.server.data.UserAccountData;
 import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
 
 /**
+ * Reserves the units of a Credit-Control-Request. All the units in the request are summed up and reserved with a
+ * single conditional statement, which checks and debits the balance atomically and, when supported by the database,
+ * also returns the resulting balance. The open reservations of the session are then settled per MSCC, in the same
+ * transaction, and the user total reserved amount is updated by difference only.
+ *
+ * The amount returned from previous reservations is what the session still holds in the reservations table for the
+ * MSCCs in the request (all of them, when terminating) less the used amount, not what the client reports as granted.
+ * Those reservations are deleted only if unchanged since read, so any already taken by the reaper is not returned twice.
+ *
  * @author ammendonca
  * @author rsaranathan
  */
 public class ReserveUnitsJdbcTask extends DataSourceJdbcTask {
 
+	private static final long NOT_RESERVED = Long.MIN_VALUE;
+
+	// The reserve statement variant for the database in use, resolved on first use
+	private static volatile boolean reserveQueryResolved = false;
+	private static volatile String reserveReturningQuery = null;
+
 	private CreditControlInfo ccInfo = null;
 	private UserAccountData accountData = null;
 
 	private String msisdn;
 	private ArrayList<CreditControlUnit> ccUnits;
 
+	// The MSCCs in the request, as {Rating-Group, Service-Identifier, granted amount}. A MSCC may have units of several
+	// types, but a single reservation.
+	private ArrayList<long[]> msccs;
+
+	// time (ms) after which open reservations are returned to the balance by the reaper
+	private long reservationLifetime;
+
 	private Tracer tracer;
 
-	public ReserveUnitsJdbcTask(CreditControlInfo ccInfo, Tracer tracer) {
+	public ReserveUnitsJdbcTask(CreditControlInfo ccInfo, long reservationLifetime, Tracer tracer) {
 		this.ccInfo = ccInfo;
+		this.reservationLifetime = reservationLifetime;
 		this.msisdn = ccInfo.getSubscriptionId();
 		this.ccUnits = ccInfo.getCcUnits();
 		this.tracer = tracer;
@@ -58,104 +87,367 @@ public class ReserveUnitsJdbcTask extends DataSourceJdbcTask {
 
 	@Override
 	public Object executeSimple(JdbcTaskContext taskContext) {
-		try {
-			long balance = 0;
-			// get Balance Before (can this be made more efficient?)
-			PreparedStatement preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_SELECT);
-			preparedStatement.setString(1, msisdn);
-			preparedStatement.execute();
-			ResultSet resultSet = preparedStatement.getResultSet();
-			while (resultSet.next()) {
-				balance = resultSet.getLong(DataSourceSchemaInfo._COL_BALANCE);
-				ccInfo.setBalanceBefore(balance);
+		if (ccInfo.isDroppable()) {
+			// waited too long for its turn, it has been (or is about to be) answered by the root with the local decision
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[//] Deadline exceeded for MSISDN '" + msisdn + "'. Dropping the request.");
 			}
-			
-			for(int i=0; i<ccUnits.size();i++){
+			ccInfo.setErrorCodeType(CreditControlInfo.ErrorCodeType.DeadlineExceeded);
+			ccInfo.setErrorMessage("Deadline Exceeded");
+			return this;
+		}
+
+		// All the units (of all the MSCCs) in the CCR are reserved in a single transaction
+		SleeTransaction tx = null;
+		try {
+			tx = taskContext.getSleeTransactionManager().beginSleeTransaction();
+			Connection connection = taskContext.getConnection();
+
+			boolean terminating = CcRequestType.TERMINATION_REQUEST.toString().equals(ccInfo.getEventType());
+			long previousReservedAmount = takeReservations(connection, terminating);
+
+			int size = ccUnits.size();
+			long[] grantedAmounts = new long[size];
+			long[] grantedUnits = new long[size];
+
+			// Sum up the amount being returned from previous reservation (G - U), the requested amount (R) and how
+			// much of it must be covered by the balance (C). Units without rate are not checked against the balance.
+			long usedAmount = 0;
+			long requestedAmount = 0;
+			long coveredAmount = 0;
+			boolean hasRatedUnits = false;
+			for (int i = 0; i < size; i++) {
 				CreditControlUnit ccUnit = ccUnits.get(i);
-				if(balance<=0 && ccUnit.getRateForService()>0){
-					accountData = new UserAccountData();
-					accountData.setMsisdn(msisdn);
-					accountData.setBalance(0);
-					accountData.setFailure(true);
-					ccUnit.setReservedUnits(0);
-					ccUnit.setReservedAmount(0);
-					if(tracer.isInfoEnabled()){
-						tracer.info("[//] User does not have sufficient balance for reservation. Balance available: "+balance+".");
+				usedAmount += ccUnit.getUsedAmount();
+				requestedAmount += ccUnit.getRequestedAmount();
+				grantedAmounts[i] = ccUnit.getRequestedAmount();
+				grantedUnits[i] = ccUnit.getRequestedUnits();
+				if (ccUnit.getRateForService() > 0 && ccUnit.getRequestedAmount() > 0) {
+					coveredAmount += ccUnit.getRequestedAmount();
+					hasRatedUnits = true;
+				}
+			}
+			long returnedAmount = previousReservedAmount - usedAmount;
+
+			accountData = new UserAccountData();
+			accountData.setMsisdn(msisdn);
+
+			// dimensioned units may only take a share of the balance, which is checked by the same statement
+			QuotaDimensioning quotaDimensioning = QuotaDimensioning.getInstance();
+			boolean dimensioned = hasRatedUnits && quotaDimensioning != null && QuotaDimensioning.isDimensioned(ccUnits);
+			long balanceAfter = reserve(connection, returnedAmount, requestedAmount, requestedAmount - previousReservedAmount, hasRatedUnits ? (dimensioned ? quotaDimensioning.getRequiredBalance(coveredAmount) : coveredAmount) : Long.MIN_VALUE);
+			if (balanceAfter == NOT_RESERVED && dimensioned) {
+				if (tracer.isFineEnabled()) {
+					tracer.fine("[//] Dimensioned units not reserved for MSISDN '" + msisdn + "'. Reserving the requested units instead ...");
+				}
+				QuotaDimensioning.undimension(ccUnits);
+				requestedAmount = 0;
+				coveredAmount = 0;
+				for (int i = 0; i < size; i++) {
+					CreditControlUnit ccUnit = ccUnits.get(i);
+					requestedAmount += ccUnit.getRequestedAmount();
+					grantedAmounts[i] = ccUnit.getRequestedAmount();
+					grantedUnits[i] = ccUnit.getRequestedUnits();
+					if (ccUnit.getRateForService() > 0 && ccUnit.getRequestedAmount() > 0) {
+						coveredAmount += ccUnit.getRequestedAmount();
 					}
-					break;
-				}else{
-					long reservedAmount = ccUnit.getReservedAmount();
-					long usedAmount = ccUnit.getUsedAmount();
-					long requestedAmount = ccUnit.getRequestedAmount();
-					long requestedUnits = ccUnit.getRequestedUnits();
-					if(ccUnit.getRateForService()>0){
-						//If RSU < balance, reserve and set GSU=balance	
-						if((reservedAmount-usedAmount+requestedAmount)>balance){
-							long newRequestedAmount = balance;
-							long newRequestedUnits = (long) Math.floor(newRequestedAmount/ccUnit.getRateForService()); 
-							if(tracer.isInfoEnabled()){
-								tracer.info("[//] User does not have sufficient balance for the entire reservation request ("+requestedUnits+" " + ccUnit.getUnitType() + " units @rate="+ccUnit.getRateForService()+"). Balance available: "+balance+". Reserving "+newRequestedUnits+" units instead ...");
+				}
+				balanceAfter = reserve(connection, returnedAmount, requestedAmount, requestedAmount - previousReservedAmount, coveredAmount);
+			}
+			if (balanceAfter == NOT_RESERVED) {
+				// Either the user does not exist or there's not enough balance for the whole request
+				long balance = selectBalance(connection);
+				if (balance == NOT_RESERVED) {
+					if (tracer.isInfoEnabled()) {
+						tracer.info("[//] User with MSISDN '" + msisdn + "' not found.");
+					}
+					accountData.setMsisdn(null);
+				}
+				else if (hasRatedUnits && balance + returnedAmount > 0) {
+					// If RSU > balance, reserve and set GSU = balance
+					long available = balance + returnedAmount;
+					requestedAmount = 0;
+					coveredAmount = 0;
+					for (int i = 0; i < size; i++) {
+						CreditControlUnit ccUnit = ccUnits.get(i);
+						if (ccUnit.getRateForService() > 0 && ccUnit.getRequestedAmount() > 0) {
+							long newRequestedAmount = Math.min(ccUnit.getRequestedAmount(), available);
+							long newRequestedUnits = (long) Math.floor(newRequestedAmount / ccUnit.getRateForService());
+							if (newRequestedAmount < ccUnit.getRequestedAmount() && tracer.isInfoEnabled()) {
+								tracer.info("[//] User does not have sufficient balance for the entire reservation request (" + ccUnit.getRequestedUnits() + " " + ccUnit.getUnitType() + " units @rate=" + ccUnit.getRateForService() + "). Balance available: " + available + ". Reserving " + newRequestedUnits + " units instead ...");
 							}
-							requestedAmount = newRequestedAmount;
-							requestedUnits = newRequestedUnits;
 							//TODO: Need to set Final Unit Indication for this case.
 							// See http://www.ietf.org/rfc/rfc4006.txt, 8.34.  Final-Unit-Indication AVP
-							
+							grantedAmounts[i] = newRequestedAmount;
+							grantedUnits[i] = newRequestedUnits;
+							available -= newRequestedAmount;
+							coveredAmount += newRequestedAmount;
 						}
+						requestedAmount += grantedAmounts[i];
 					}
-	
-					int n = 1;
-					tracer.info(("[//] Executing DB Statement '" + DataSourceSchemaInfo._QUERY_RESERVE).
-							replaceFirst("\\?", String.valueOf(reservedAmount-usedAmount)).
-							replaceFirst("\\?", String.valueOf(requestedAmount)).
-							replaceFirst("\\?", String.valueOf(requestedAmount)).
-							replaceFirst("\\?", msisdn)
-							);
-					preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_RESERVE);
-					preparedStatement.setLong(n++, (reservedAmount-usedAmount));
-					preparedStatement.setLong(n++, requestedAmount);
-					preparedStatement.setLong(n++, requestedAmount);
-					preparedStatement.setString(n++, msisdn);
-		
-					accountData = new UserAccountData();
-					accountData.setMsisdn(msisdn);
-		
-					if (preparedStatement.executeUpdate() == 1) {
-						// ok great, we have successfully reserved the units
-						preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_SELECT);
-						preparedStatement.setString(1, msisdn);
-						//tracer.info(("[//] Executing DB Statement '" + DataSourceSchemaInfo._QUERY_SELECT).replaceFirst("\\?", msisdn));
-						preparedStatement.execute();
-						resultSet = preparedStatement.getResultSet();
-						while (resultSet.next()) {
-							balance = resultSet.getLong(DataSourceSchemaInfo._COL_BALANCE);
-							accountData.setBalance(balance);
-							accountData.setFailure(false);
-							ccUnit.setReservedUnits(requestedUnits);
-							ccUnit.setReservedAmount(requestedAmount);
-							ccInfo.setBalanceAfter(balance);
-						}
-					}
-					else {
-						// check what kind of error happened
-						accountData.setBalance(0);
-						accountData.setFailure(true);
-						ccUnit.setReservedUnits(0);
-						ccUnit.setReservedAmount(0);
-					}
+					balanceAfter = reserve(connection, returnedAmount, requestedAmount, requestedAmount - previousReservedAmount, coveredAmount);
 				}
+				else if (tracer.isInfoEnabled()) {
+					tracer.info("[//] User does not have sufficient balance for reservation. Balance available: " + balance + ".");
+				}
+			}
+
+			if (balanceAfter != NOT_RESERVED) {
+				// ok great, we have successfully reserved the units
+				for (int i = 0; i < size; i++) {
+					CreditControlUnit ccUnit = ccUnits.get(i);
+					ccUnit.setReservedUnits(grantedUnits[i]);
+					ccUnit.setReservedAmount(grantedAmounts[i]);
+				}
+				accountData.setBalance(balanceAfter);
+				accountData.setFailure(false);
+				ccInfo.setBalanceBefore(balanceAfter - returnedAmount + requestedAmount);
+				ccInfo.setBalanceAfter(balanceAfter);
+
+				settleReservations(connection, terminating);
+
+				tx.commit();
+				tx = null;
+			}
+			else {
+				fail();
 			}
 		}
 		catch (Exception e) {
 			tracer.severe("[xx] Failed to execute task to Reserve Units for MSISDN '" + msisdn + "'", e);
+			// nothing was reserved, as the transaction is rolled back
+			ccInfo.setErrorCodeType(CreditControlInfo.ErrorCodeType.AccountingConnectionErr);
+			if (accountData == null) {
+				accountData = new UserAccountData();
+				accountData.setMsisdn(msisdn);
+			}
+			fail();
+		}
+		finally {
+			if (tx != null) {
+				try {
+					tx.rollback();
+				}
+				catch (Exception f) {
+					tracer.severe("[xx] Failed to rollback Reserve Units transaction for MSISDN '" + msisdn + "'", f);
+				}
+			}
 		}
 		return this;
 	}
 
+	/**
+	 * Executes the conditional reserve statement, in a single round trip if the database is able to return the
+	 * resulting balance, or followed by a balance query otherwise.
+	 *
+	 * @return the balance after reservation, or NOT_RESERVED if the user does not exist or has not enough balance
+	 */
+	private long reserve(Connection connection, long returnedAmount, long requestedAmount, long reservedDelta, long coveredAmount) throws SQLException {
+		String returningQuery = getReserveReturningQuery(connection);
+		String query = returningQuery != null ? returningQuery : DataSourceSchemaInfo._QUERY_RESERVE;
+
+		if (tracer.isFineEnabled()) {
+			tracer.fine(("[//] Executing DB Statement '" + query).
+					replaceFirst("\\?", String.valueOf(returnedAmount)).
+					replaceFirst("\\?", String.valueOf(requestedAmount)).
+					replaceFirst("\\?", String.valueOf(reservedDelta)).
+					replaceFirst("\\?", msisdn).
+					replaceFirst("\\?", String.valueOf(returnedAmount)).
+					replaceFirst("\\?", String.valueOf(coveredAmount)) + "'");
+		}
+
+		PreparedStatement preparedStatement = connection.prepareStatement(query);
+		try {
+			int n = 1;
+			preparedStatement.setLong(n++, returnedAmount);
+			preparedStatement.setLong(n++, requestedAmount);
+			preparedStatement.setLong(n++, reservedDelta);
+			preparedStatement.setString(n++, msisdn);
+			preparedStatement.setLong(n++, returnedAmount);
+			preparedStatement.setLong(n++, coveredAmount);
+
+			if (returningQuery != null) {
+				ResultSet resultSet = preparedStatement.executeQuery();
+				return resultSet.next() ? resultSet.getLong(1) : NOT_RESERVED;
+			}
+			if (preparedStatement.executeUpdate() != 1) {
+				return NOT_RESERVED;
+			}
+		}
+		finally {
+			preparedStatement.close();
+		}
+
+		return selectBalance(connection);
+	}
+
+	/**
+	 * Collects the MSCCs in the request and takes (deletes) the reservations the session holds for them, or all of its
+	 * reservations when terminating. Rows are deleted only if unchanged since read, ie, not taken by the reaper.
+	 *
+	 * @return the total amount taken
+	 */
+	private long takeReservations(Connection connection, boolean terminating) throws SQLException {
+		msccs = new ArrayList<long[]>(ccUnits.size());
+		for (CreditControlUnit ccUnit : ccUnits) {
+			if (indexOfMscc(ccUnit.getRatingGroup(), ccUnit.getServiceId()) < 0) {
+				msccs.add(new long[] {ccUnit.getRatingGroup(), ccUnit.getServiceId(), 0});
+			}
+		}
+
+		ArrayList<long[]> held = new ArrayList<long[]>();
+		PreparedStatement preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_RESERVATION_SELECT_SESSION);
+		try {
+			preparedStatement.setString(1, ccInfo.getSessionId());
+			ResultSet resultSet = preparedStatement.executeQuery();
+			while (resultSet.next()) {
+				if (terminating || indexOfMscc(resultSet.getLong(1), resultSet.getLong(2)) >= 0) {
+					held.add(new long[] {resultSet.getLong(1), resultSet.getLong(2), resultSet.getLong(3), resultSet.getLong(4)});
+				}
+			}
+		}
+		finally {
+			preparedStatement.close();
+		}
+		if (held.isEmpty()) {
+			return 0;
+		}
+
+		int[] deleted;
+		preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_RESERVATION_DELETE_EXPIRED);
+		try {
+			for (long[] reservation : held) {
+				preparedStatement.setString(1, ccInfo.getSessionId());
+				preparedStatement.setLong(2, reservation[0]);
+				preparedStatement.setLong(3, reservation[1]);
+				preparedStatement.setLong(4, reservation[3]);
+				preparedStatement.addBatch();
+			}
+			deleted = preparedStatement.executeBatch();
+		}
+		finally {
+			preparedStatement.close();
+		}
+
+		long heldAmount = 0;
+		for (int i = 0; i < deleted.length; i++) {
+			// taken by the reaper in between, already returned to the balance
+			if (deleted[i] == 0) {
+				continue;
+			}
+			heldAmount += held.get(i)[2];
+		}
+		return heldAmount;
+	}
+
+	private int indexOfMscc(long ratingGroup, long serviceId) {
+		for (int i = 0; i < msccs.size(); i++) {
+			long[] mscc = msccs.get(i);
+			if (mscc[0] == ratingGroup && mscc[1] == serviceId) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Records the newly reserved amounts of the MSCCs in the request, summed up over their unit types, as their
+	 * previous reservations were already taken, and renews the expiry of all the session reservations. Nothing is
+	 * left for a terminating session.
+	 */
+	private void settleReservations(Connection connection, boolean terminating) throws SQLException {
+		if (terminating) {
+			return;
+		}
+
+		String sessionId = ccInfo.getSessionId();
+		for (CreditControlUnit ccUnit : ccUnits) {
+			msccs.get(indexOfMscc(ccUnit.getRatingGroup(), ccUnit.getServiceId()))[2] += ccUnit.getReservedAmount();
+		}
+
+		long expires = System.currentTimeMillis() + reservationLifetime;
+		PreparedStatement insertStatement = null;
+		try {
+			for (long[] mscc : msccs) {
+				if (mscc[2] > 0) {
+					if (insertStatement == null) {
+						insertStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_RESERVATION_INSERT);
+					}
+					insertStatement.setString(1, sessionId);
+					insertStatement.setLong(2, mscc[0]);
+					insertStatement.setLong(3, mscc[1]);
+					insertStatement.setString(4, msisdn);
+					insertStatement.setLong(5, mscc[2]);
+					insertStatement.setLong(6, expires);
+					insertStatement.addBatch();
+				}
+			}
+			if (insertStatement != null) {
+				insertStatement.executeBatch();
+			}
+		}
+		finally {
+			if (insertStatement != null) {
+				insertStatement.close();
+			}
+		}
+
+		PreparedStatement refreshStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_RESERVATION_REFRESH);
+		try {
+			refreshStatement.setLong(1, expires);
+			refreshStatement.setString(2, sessionId);
+			refreshStatement.executeUpdate();
+		}
+		finally {
+			refreshStatement.close();
+		}
+	}
+
+	private void fail() {
+		accountData.setBalance(0);
+		accountData.setFailure(true);
+		for (CreditControlUnit ccUnit : ccUnits) {
+			ccUnit.setReservedUnits(0);
+			ccUnit.setReservedAmount(0);
+		}
+	}
+
+	/**
+	 * @return the current balance of the user, or NOT_RESERVED if the user does not exist
+	 */
+	private long selectBalance(Connection connection) throws SQLException {
+		PreparedStatement preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_SELECT_BALANCE);
+		try {
+			preparedStatement.setString(1, msisdn);
+			ResultSet resultSet = preparedStatement.executeQuery();
+			return resultSet.next() ? resultSet.getLong(1) : NOT_RESERVED;
+		}
+		finally {
+			preparedStatement.close();
+		}
+	}
+
+	private String getReserveReturningQuery(Connection connection) throws SQLException {
+		if (!reserveQueryResolved) {
+			String databaseProductName = connection.getMetaData().getDatabaseProductName();
+			reserveReturningQuery = DataSourceSchemaInfo.getReserveReturningQuery(databaseProductName);
+			reserveQueryResolved = true;
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[//] Using " + (reserveReturningQuery != null ? "single statement" : "update and select") + " reservation for database '" + databaseProductName + "'.");
+			}
+		}
+		return reserveReturningQuery;
+	}
+
 	public UserAccountData getAccountData() {
 		return accountData;
 	}
 
+	@Override
+	public String getSubscriber() {
+		return msisdn;
+	}
+
 	@Override
 	public void callBackParentOnException(SbbLocalObject parent) {
 		((AccountBalanceManagement) parent).reserveUnitsResult(ccInfo, accountData);
@@ -165,4 +457,4 @@ public class ReserveUnitsJdbcTask extends DataSourceJdbcTask {
 	public void callBackParentOnResult(SbbLocalObject parent) {
 		((AccountBalanceManagement) parent).reserveUnitsResult(ccInfo, accountData);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,309 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.slee.facilities.Tracer;
+
+import org.mobicents.slee.resource.jdbc.JdbcActivity;
+
+/**
+ * Serializes the JDBC tasks for the same subscriber, so its balance operations are executed one at a time and in the
+ * order they were requested, instead of racing for the database row locks.
+ * 
+ * No thread ever waits for a busy subscriber: while a task is in flight for a subscriber, the following ones are
+ * parked in its queue and only handed to the JDBC RA once the previous completes. Tasks for other subscribers are
+ * executed right away, in parallel. The stripe locks only guard the queue bookkeeping, never the task execution.
+ *
+ * A task in flight only holds the subscriber for a lease time. If its completion is never signalled (ie, its result
+ * event was not delivered or its SBB entity is gone), the next task for the subscriber takes over once the lease
+ * expires, instead of the queue being blocked forever. Expired leases are taken over by the next task executed for
+ * the subscriber and, so queued tasks don't wait for one, by a periodic sweep.
+ *
+ * @author ammendonca
+ */
+class SubscriberTaskSerializer {
+
+	private static class PendingTask {
+		final JdbcActivity activity;
+		final DataSourceJdbcTask task;
+
+		PendingTask(JdbcActivity activity, DataSourceJdbcTask task) {
+			this.activity = activity;
+			this.task = task;
+		}
+	}
+
+	// the task in flight for a subscriber and the ones waiting for it
+	private static class Lane {
+		PendingTask inFlight;
+		long leaseExpires;
+		final ArrayDeque<PendingTask> queue = new ArrayDeque<PendingTask>(2);
+	}
+
+	private final HashMap<String, Lane>[] stripes;
+
+	// subscriber of the task in flight or queued in each activity, so its lane is found without scanning the stripes
+	private final ConcurrentHashMap<JdbcActivity, String> subscribers = new ConcurrentHashMap<JdbcActivity, String>();
+
+	private ScheduledExecutorService sweeper;
+
+	// time (ms) a task in flight holds its subscriber
+	private volatile long leaseTime;
+
+	@SuppressWarnings("unchecked")
+	SubscriberTaskSerializer(int stripeCount, long leaseTime) {
+		this.leaseTime = leaseTime;
+		stripes = new HashMap[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new HashMap<String, Lane>();
+		}
+	}
+
+	void setLeaseTime(long leaseTime) {
+		this.leaseTime = leaseTime;
+	}
+
+	long getLeaseTime() {
+		return leaseTime;
+	}
+
+	/**
+	 * Starts the periodic sweep of expired leases, if not yet started.
+	 *
+	 * @param period the time (ms) between sweeps
+	 * @param tracer the tracer to use
+	 */
+	synchronized void startSweeper(long period, final Tracer tracer) {
+		if (sweeper != null || period <= 0) {
+			return;
+		}
+		sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CS-Task-Lease-Sweeper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					for (DataSourceJdbcTask expiredTask : sweep()) {
+						tracer.warning("[!!] Task " + expiredTask + " for subscriber '" + expiredTask.getSubscriber() + "' did not complete within its lease. Executing the next ones.");
+					}
+				}
+				catch (Exception e) {
+					tracer.severe("[xx] Failed to sweep expired task leases. Will retry.", e);
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Started task lease sweeper, every " + period + "ms.");
+		}
+	}
+
+	private HashMap<String, Lane> getStripe(String subscriber) {
+		return stripes[(subscriber.hashCode() & 0x7FFFFFFF) % stripes.length];
+	}
+
+	/**
+	 * Executes the task in the activity, now if there's no other task in flight for the same subscriber, or as soon as
+	 * the ones before it complete or their lease expires.
+	 *
+	 * @param activity the JDBC activity to execute the task in
+	 * @param task the task to execute
+	 * @return the task whose lease expired and was taken over, or null if none
+	 */
+	DataSourceJdbcTask execute(JdbcActivity activity, DataSourceJdbcTask task) {
+		String subscriber = task.getSubscriber();
+		if (subscriber == null) {
+			activity.execute(task);
+			return null;
+		}
+
+		PendingTask pendingTask = new PendingTask(activity, task);
+		PendingTask expired = null;
+		PendingTask next;
+		HashMap<String, Lane> stripe = getStripe(subscriber);
+		synchronized (stripe) {
+			subscribers.put(activity, subscriber);
+			Lane lane = stripe.get(subscriber);
+			if (lane == null) {
+				lane = new Lane();
+				stripe.put(subscriber, lane);
+				next = pendingTask;
+			}
+			else {
+				lane.queue.add(pendingTask);
+				if (lane.leaseExpires > System.currentTimeMillis()) {
+					return null;
+				}
+				expired = lane.inFlight;
+				if (expired != null) {
+					subscribers.remove(expired.activity);
+				}
+				next = lane.queue.poll();
+			}
+			lane.inFlight = next;
+			lane.leaseExpires = System.currentTimeMillis() + leaseTime;
+		}
+		next.activity.execute(next.task);
+		return expired != null ? expired.task : null;
+	}
+
+	/**
+	 * Signals the task has completed (with result or exception), executing the next one for the same subscriber, if
+	 * any. Completions of tasks no longer in flight (ie, whose lease expired) are ignored.
+	 *
+	 * @param task the completed task
+	 */
+	void completed(DataSourceJdbcTask task) {
+		String subscriber = task.getSubscriber();
+		if (subscriber == null) {
+			return;
+		}
+
+		PendingTask next;
+		HashMap<String, Lane> stripe = getStripe(subscriber);
+		synchronized (stripe) {
+			Lane lane = stripe.get(subscriber);
+			if (lane == null || lane.inFlight == null || lane.inFlight.task != task) {
+				return;
+			}
+			next = advance(stripe, subscriber, lane);
+		}
+		if (next != null) {
+			next.activity.execute(next.task);
+		}
+	}
+
+	/**
+	 * Releases the task of an activity whose SBB entity is gone, so it no longer holds or waits for the subscriber.
+	 *
+	 * @param activity the JDBC activity of the task
+	 */
+	void cancel(JdbcActivity activity) {
+		String subscriber = subscribers.get(activity);
+		if (subscriber == null) {
+			return;
+		}
+
+		PendingTask next = null;
+		HashMap<String, Lane> stripe = getStripe(subscriber);
+		synchronized (stripe) {
+			// it may have completed meanwhile
+			if (subscribers.remove(activity) == null) {
+				return;
+			}
+			Lane lane = stripe.get(subscriber);
+			if (lane == null) {
+				return;
+			}
+			if (lane.inFlight != null && lane.inFlight.activity == activity) {
+				next = advance(stripe, subscriber, lane);
+			}
+			else {
+				Iterator<PendingTask> queued = lane.queue.iterator();
+				while (queued.hasNext()) {
+					if (queued.next().activity == activity) {
+						queued.remove();
+						break;
+					}
+				}
+			}
+		}
+		if (next != null) {
+			next.activity.execute(next.task);
+		}
+	}
+
+	/**
+	 * Hands the subscribers whose task in flight let its lease expire to their next queued task.
+	 *
+	 * @return the tasks whose lease expired and were taken over
+	 */
+	List<DataSourceJdbcTask> sweep() {
+		List<DataSourceJdbcTask> expired = new ArrayList<DataSourceJdbcTask>();
+		List<PendingTask> next = new ArrayList<PendingTask>();
+		for (HashMap<String, Lane> stripe : stripes) {
+			synchronized (stripe) {
+				if (stripe.isEmpty()) {
+					continue;
+				}
+				long now = System.currentTimeMillis();
+				Iterator<Map.Entry<String, Lane>> lanes = stripe.entrySet().iterator();
+				while (lanes.hasNext()) {
+					Lane lane = lanes.next().getValue();
+					if (lane.leaseExpires > now || lane.inFlight == null) {
+						continue;
+					}
+					expired.add(lane.inFlight.task);
+					subscribers.remove(lane.inFlight.activity);
+					PendingTask pendingTask = lane.queue.poll();
+					lane.inFlight = pendingTask;
+					if (pendingTask == null) {
+						lanes.remove();
+					}
+					else {
+						lane.leaseExpires = now + leaseTime;
+						next.add(pendingTask);
+					}
+				}
+			}
+		}
+		// executed outside the stripe locks, like everywhere else
+		for (PendingTask pendingTask : next) {
+			pendingTask.activity.execute(pendingTask.task);
+		}
+		return expired;
+	}
+
+	/**
+	 * Hands the subscriber to the next task in its queue, or drops the lane if there's none. Must be called while
+	 * holding the stripe lock.
+	 */
+	private PendingTask advance(HashMap<String, Lane> stripe, String subscriber, Lane lane) {
+		subscribers.remove(lane.inFlight.activity);
+		PendingTask next = lane.queue.poll();
+		lane.inFlight = next;
+		if (next == null) {
+			stripe.remove(subscriber);
+		}
+		else {
+			lane.leaseExpires = System.currentTimeMillis() + leaseTime;
+		}
+		return next;
+	}
+
+}
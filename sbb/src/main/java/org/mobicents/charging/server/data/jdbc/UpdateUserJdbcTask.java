@@ -89,6 +89,11 @@ public class UpdateUserJdbcTask extends DataSourceJdbcTask {
 		}
 	}
 
+	@Override
+	public String getSubscriber() {
+		return msisdn;
+	}
+
 	@Override
 	public void callBackParentOnException(SbbLocalObject parent) {
 		((DiameterChargingServer) parent).updateAccountDataResult(false);
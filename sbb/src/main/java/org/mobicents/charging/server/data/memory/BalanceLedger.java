@@ -0,0 +1,1215 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.slee.facilities.Tracer;
+
+import net.java.slee.resource.diameter.cca.events.avp.CcRequestType;
+
+import org.mobicents.charging.server.account.CreditControlInfo;
+import org.mobicents.charging.server.account.CreditControlUnit;
+import org.mobicents.charging.server.account.QuotaDimensioning;
+import org.mobicents.charging.server.data.UserAccountData;
+import org.mobicents.charging.server.data.jdbc.DataSourceSchemaInfo;
+import org.mobicents.slee.resource.jdbc.JdbcResourceAdaptorSbbInterface;
+
+/**
+ * In-memory, authoritative ledger of subscriber balances and reservations. Reservations and debits are answered
+ * synchronously from memory, while the changes are written to the users table in the background, coalesced per
+ * subscriber, at most every flush period.
+ *
+ * Subscribers are spread over a number of shards, each with its own lock, so requests for subscribers in different
+ * shards do not contend with each other.
+ *
+ * If a journal directory is configured, every mutation is also written to a {@link LedgerJournal} and only answered
+ * once durable, so the changes not yet in the database can be recovered after a crash. Once the journal fails, requests
+ * are answered with an accounting error, as their changes could no longer be recovered. With snapshots enabled, a
+ * {@link LedgerSnapshot} is also written periodically, and startup loads it instead of the users table, replaying only
+ * the journal records after it.
+ *
+ * Registered as an MBean, so that users are created, adjusted and removed by management through the ledger, as any
+ * change made directly to the users table would be overwritten by the next flush.
+ *
+ * @author ammendonca
+ */
+public final class BalanceLedger implements BalanceLedgerMBean {
+
+	public static final String OBJECT_NAME = "org.mobicents.charging.server:type=BalanceLedger";
+
+	// Reservations recovered at startup are kept per user, under a session id no Diameter session can have
+	private static final String RECOVERED_SESSION_PREFIX = "[recovered]";
+	private static final long RECOVERED_MSCC = -1;
+
+	private static BalanceLedger instance = null;
+
+	private final Shard[] shards;
+
+	private final JdbcResourceAdaptorSbbInterface jdbcRA;
+	private final Tracer tracer;
+
+	private final ScheduledExecutorService writer;
+
+	// null if not configured
+	private LedgerJournal journal;
+	private File journalDirectory;
+
+	// journal sequences persisted to database and to snapshot, -1 if snapshots are not enabled
+	private volatile long flushedSequence = 0;
+	private volatile long snapshotSequence = -1;
+
+	// time (ms) after which reservations not updated by their session are returned to the balance
+	private long reservationLifetime;
+	private int reaperBatchSize;
+	// shard where the next sweep starts, so all get their turn when the batch is not enough for all
+	private int reaperShard = 0;
+
+	private static class Shard {
+		HashMap<String, LedgerAccount> accounts = new HashMap<String, LedgerAccount>();
+		// accounts changed since last flush, each listed once no matter how many times it changed
+		ArrayList<LedgerAccount> dirty = new ArrayList<LedgerAccount>();
+		// users removed since last flush, to be deleted from the database
+		HashSet<String> deleted = new HashSet<String>();
+		// open reservations per session, for the accounts in this shard
+		HashMap<String, SessionReservations> sessions = new HashMap<String, SessionReservations>();
+		// the same sessions, by expiry time. all live for the same time, so appending on every update keeps it sorted
+		SessionReservations head;
+		SessionReservations tail;
+
+		void append(SessionReservations reservations) {
+			reservations.prev = tail;
+			reservations.next = null;
+			if (tail != null) {
+				tail.next = reservations;
+			}
+			else {
+				head = reservations;
+			}
+			tail = reservations;
+		}
+
+		void unlink(SessionReservations reservations) {
+			if (reservations.prev != null) {
+				reservations.prev.next = reservations.next;
+			}
+			else {
+				head = reservations.next;
+			}
+			if (reservations.next != null) {
+				reservations.next.prev = reservations.prev;
+			}
+			else {
+				tail = reservations.prev;
+			}
+			reservations.prev = null;
+			reservations.next = null;
+		}
+	}
+
+	/**
+	 * Amounts reserved by a session, one per MSCC (Rating-Group and Service-Identifier). Sessions usually have very
+	 * few MSCCs, so they are kept in plain arrays.
+	 */
+	private static class SessionReservations {
+		final String sessionId;
+		final String msisdn;
+		long expires;
+		SessionReservations prev;
+		SessionReservations next;
+
+		long[] ratingGroups = new long[2];
+		long[] serviceIds = new long[2];
+		long[] amounts = new long[2];
+		int size;
+
+		SessionReservations(String sessionId, String msisdn) {
+			this.sessionId = sessionId;
+			this.msisdn = msisdn;
+		}
+
+		long total() {
+			long total = 0;
+			for (int i = 0; i < size; i++) {
+				total += amounts[i];
+			}
+			return total;
+		}
+
+		long get(long ratingGroup, long serviceId) {
+			for (int i = 0; i < size; i++) {
+				if (ratingGroups[i] == ratingGroup && serviceIds[i] == serviceId) {
+					return amounts[i];
+				}
+			}
+			return 0;
+		}
+
+		void set(long ratingGroup, long serviceId, long amount) {
+			for (int i = 0; i < size; i++) {
+				if (ratingGroups[i] == ratingGroup && serviceIds[i] == serviceId) {
+					if (amount > 0) {
+						amounts[i] = amount;
+					}
+					else {
+						// move the last one into this slot
+						size--;
+						ratingGroups[i] = ratingGroups[size];
+						serviceIds[i] = serviceIds[size];
+						amounts[i] = amounts[size];
+					}
+					return;
+				}
+			}
+			if (amount > 0) {
+				if (size == amounts.length) {
+					ratingGroups = Arrays.copyOf(ratingGroups, size * 2);
+					serviceIds = Arrays.copyOf(serviceIds, size * 2);
+					amounts = Arrays.copyOf(amounts, size * 2);
+				}
+				ratingGroups[size] = ratingGroup;
+				serviceIds[size] = serviceId;
+				amounts[size] = amount;
+				size++;
+			}
+		}
+	}
+
+	private BalanceLedger(JdbcResourceAdaptorSbbInterface jdbcRA, int shardCount, Tracer tracer) {
+		this.jdbcRA = jdbcRA;
+		this.tracer = tracer;
+		this.shards = new Shard[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = new Shard();
+		}
+		// one thread for flushing, another for snapshots and reaping
+		this.writer = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CS-Ledger-Writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Creates the ledger, if not yet created, loading all the balances from the latest snapshot and journal, or from
+	 * the users table if there's none, and starting the write-behind of changes.
+	 *
+	 * @param jdbcRA the JDBC RA SBB interface to obtain connections from
+	 * @param configuration the ledger configuration
+	 * @param tracer the tracer to log to
+	 * @return the ledger
+	 */
+	public static synchronized BalanceLedger start(JdbcResourceAdaptorSbbInterface jdbcRA, LedgerConfiguration configuration, Tracer tracer) {
+		if (instance == null) {
+			final BalanceLedger ledger = new BalanceLedger(jdbcRA, configuration.getShards(), tracer);
+			ledger.reservationLifetime = configuration.getReservationLifetime();
+			ledger.reaperBatchSize = configuration.getReaperBatchSize();
+			if (configuration.getJournalDirectory() != null && configuration.getJournalDirectory().length() > 0) {
+				ledger.openJournal(configuration);
+			}
+			else {
+				ledger.load();
+			}
+			ledger.recoverReservations();
+			long flushPeriod = configuration.getFlushPeriod();
+			ledger.writer.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					ledger.flush();
+				}
+			}, flushPeriod, flushPeriod, TimeUnit.MILLISECONDS);
+			long snapshotPeriod = configuration.getSnapshotPeriod();
+			if (ledger.journal != null && snapshotPeriod > 0) {
+				ledger.writer.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						ledger.snapshot();
+					}
+				}, snapshotPeriod, snapshotPeriod, TimeUnit.MILLISECONDS);
+			}
+			long reaperPeriod = configuration.getReaperPeriod();
+			if (reaperPeriod > 0 && ledger.reaperBatchSize > 0) {
+				ledger.writer.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						ledger.reap();
+					}
+				}, reaperPeriod, reaperPeriod, TimeUnit.MILLISECONDS);
+			}
+			Runtime.getRuntime().addShutdownHook(new Thread("CS-Ledger-Shutdown") {
+				public void run() {
+					ledger.stop();
+				}
+			});
+			instance = ledger;
+			try {
+				MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+				ObjectName objectName = new ObjectName(OBJECT_NAME);
+				if (mbeanServer.isRegistered(objectName)) {
+					mbeanServer.unregisterMBean(objectName);
+				}
+				mbeanServer.registerMBean(instance, objectName);
+			}
+			catch (Exception e) {
+				tracer.warning("[!!] Unable to register in-memory ledger MBean. Users will not be managed through it.", e);
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * @return the ledger, or null if not yet started
+	 */
+	public static synchronized BalanceLedger getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Stops the write-behind, flushing all pending changes to the users table.
+	 */
+	public void stop() {
+		writer.shutdown();
+		try {
+			writer.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (journal != null) {
+			journal.stop();
+		}
+		flush();
+	}
+
+	private void openJournal(LedgerConfiguration configuration) {
+		File directory = new File(configuration.getJournalDirectory());
+		LedgerJournal journal = new LedgerJournal(directory, configuration.getJournalCommitWindow(), configuration.getJournalSegmentSize(), tracer);
+		try {
+			long startTime = System.currentTimeMillis();
+			long fromSequence = 0;
+			if (configuration.getSnapshotPeriod() > 0) {
+				fromSequence = directory.isDirectory() ? LedgerSnapshot.load(directory, this, tracer) : -1;
+				snapshotSequence = Math.max(fromSequence, 0);
+			}
+			if (fromSequence < 0 || configuration.getSnapshotPeriod() <= 0) {
+				// no snapshot, the journal only has what's not yet in database
+				load();
+				fromSequence = 0;
+			}
+			long count = journal.replay(this, fromSequence);
+			journal.start();
+			this.journal = journal;
+			this.journalDirectory = directory;
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Replayed " + count + " records from ledger journal at " + directory + ". Recovered in " + (System.currentTimeMillis() - startTime) + "ms.");
+			}
+		}
+		catch (IOException e) {
+			tracer.severe("[xx] Unable to open ledger journal at " + directory + ". Running without journal.", e);
+			if (snapshotSequence >= 0) {
+				// we may have loaded a snapshot, but without journal the database is the reference
+				for (Shard shard : shards) {
+					synchronized (shard) {
+						shard.accounts.clear();
+						shard.dirty.clear();
+						shard.deleted.clear();
+					}
+				}
+				snapshotSequence = -1;
+			}
+			load();
+		}
+	}
+
+	/**
+	 * Appends the mutation to the journal, if there's one.
+	 *
+	 * @return the journal sequence, 0 if no journal
+	 */
+	private long journal(byte type, LedgerAccount account, long amount, long balance, long reserved) {
+		return journal != null ? journal.append(type, account.msisdn, amount, balance, reserved) : 0;
+	}
+
+	/**
+	 * @return true if the mutation with the given sequence is durable or there's no journal, false if the journal
+	 *         failed before that (already logged by the journal)
+	 */
+	private boolean awaitDurable(long sequence) {
+		return sequence <= 0 || journal.awaitDurable(sequence);
+	}
+
+	private boolean isJournalFailed() {
+		return journal != null && journal.isFailed();
+	}
+
+	private Shard getShard(String msisdn) {
+		return shards[(msisdn.hashCode() & 0x7FFFFFFF) % shards.length];
+	}
+
+	private static void markDirty(Shard shard, LedgerAccount account) {
+		if (!account.dirty) {
+			account.dirty = true;
+			shard.dirty.add(account);
+		}
+	}
+
+	// --------------------------- Balance Operations -------------------------
+
+	/**
+	 * Reserves the requested units and returns the unused part of the previous reservation, for all the units in the
+	 * request at once. If the balance is not enough for the whole request, rated units are capped to what is available.
+	 *
+	 * @param ccInfo the Credit-Control information, updated with the reserved units and balances
+	 * @return the resulting account data, with null MSISDN if the user does not exist
+	 */
+	public UserAccountData reserve(CreditControlInfo ccInfo) {
+		String msisdn = ccInfo.getSubscriptionId();
+		ArrayList<CreditControlUnit> ccUnits = ccInfo.getCcUnits();
+		int size = ccUnits.size();
+
+		UserAccountData accountData = new UserAccountData();
+		accountData.setMsisdn(msisdn);
+
+		if (isJournalFailed()) {
+			return unavailable(accountData, ccInfo);
+		}
+
+		long sequence;
+		Shard shard = getShard(msisdn);
+		synchronized (shard) {
+			LedgerAccount account = shard.accounts.get(msisdn);
+			if (account == null) {
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[//] User with MSISDN '" + msisdn + "' not found.");
+				}
+				accountData.setMsisdn(null);
+				return fail(accountData, ccUnits);
+			}
+
+			// Sum up returned (G - U), requested (R) and to be covered by balance (C), as in the JDBC datasource. What
+			// was granted (G) is what the session holds in the ledger, not what the client reports.
+			boolean terminating = CcRequestType.TERMINATION_REQUEST.toString().equals(ccInfo.getEventType());
+			long previousReservedAmount = getHeldAmount(shard, ccInfo, terminating);
+			long usedAmount = 0;
+			for (int i = 0; i < size; i++) {
+				usedAmount += ccUnits.get(i).getUsedAmount();
+			}
+			long returnedAmount = previousReservedAmount - usedAmount;
+
+			QuotaDimensioning quotaDimensioning = QuotaDimensioning.getInstance();
+			if (quotaDimensioning != null && quotaDimensioning.limit(ccUnits, account.balance + returnedAmount) && tracer.isFineEnabled()) {
+				tracer.fine("[//] Dimensioned units would take too much of the balance available (" + (account.balance + returnedAmount) + "). Reserving the requested units instead ...");
+			}
+
+			long requestedAmount = 0;
+			long coveredAmount = 0;
+			boolean hasRatedUnits = false;
+			for (int i = 0; i < size; i++) {
+				CreditControlUnit ccUnit = ccUnits.get(i);
+				requestedAmount += ccUnit.getRequestedAmount();
+				if (ccUnit.getRateForService() > 0 && ccUnit.getRequestedAmount() > 0) {
+					coveredAmount += ccUnit.getRequestedAmount();
+					hasRatedUnits = true;
+				}
+			}
+
+			long available = account.balance + returnedAmount;
+			long[] grantedAmounts = new long[size];
+			long[] grantedUnits = new long[size];
+			if (!hasRatedUnits || available >= coveredAmount) {
+				for (int i = 0; i < size; i++) {
+					grantedAmounts[i] = ccUnits.get(i).getRequestedAmount();
+					grantedUnits[i] = ccUnits.get(i).getRequestedUnits();
+				}
+			}
+			else if (available > 0) {
+				// If RSU > balance, reserve and set GSU = balance
+				long remaining = available;
+				requestedAmount = 0;
+				for (int i = 0; i < size; i++) {
+					CreditControlUnit ccUnit = ccUnits.get(i);
+					grantedAmounts[i] = ccUnit.getRequestedAmount();
+					grantedUnits[i] = ccUnit.getRequestedUnits();
+					if (ccUnit.getRateForService() > 0 && ccUnit.getRequestedAmount() > 0) {
+						grantedAmounts[i] = Math.min(ccUnit.getRequestedAmount(), remaining);
+						grantedUnits[i] = (long) Math.floor(grantedAmounts[i] / ccUnit.getRateForService());
+						remaining -= grantedAmounts[i];
+						if (grantedAmounts[i] < ccUnit.getRequestedAmount() && tracer.isInfoEnabled()) {
+							tracer.info("[//] User does not have sufficient balance for the entire reservation request (" + ccUnit.getRequestedUnits() + " " + ccUnit.getUnitType() + " units @rate=" + ccUnit.getRateForService() + "). Reserving " + grantedUnits[i] + " units instead ...");
+						}
+					}
+					requestedAmount += grantedAmounts[i];
+				}
+			}
+			else {
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[//] User does not have sufficient balance for reservation. Balance available: " + account.balance + ".");
+				}
+				return fail(accountData, ccUnits);
+			}
+
+			long balanceAfter = available - requestedAmount;
+			// the total reserved over all the sessions of the user only changes by what this request reserves
+			long reservedAfter = account.reserved + requestedAmount - previousReservedAmount;
+			sequence = journal(requestedAmount > 0 ? LedgerJournal.RESERVE : LedgerJournal.RELEASE, account, requestedAmount - returnedAmount, balanceAfter, reservedAfter);
+
+			ccInfo.setBalanceBefore(account.balance);
+			account.balance = balanceAfter;
+			account.reserved = reservedAfter;
+			markDirty(shard, account);
+
+			for (int i = 0; i < size; i++) {
+				CreditControlUnit ccUnit = ccUnits.get(i);
+				ccUnit.setReservedUnits(grantedUnits[i]);
+				ccUnit.setReservedAmount(grantedAmounts[i]);
+			}
+			settleReservations(shard, ccInfo, terminating, previousReservedAmount);
+			ccInfo.setBalanceAfter(account.balance);
+			accountData.setBalance(account.balance);
+		}
+
+		// answer only once durable, but without holding the shard lock. if not, the reservation is left for the reaper
+		if (!awaitDurable(sequence)) {
+			return unavailable(accountData, ccInfo);
+		}
+
+		return accountData;
+	}
+
+	/**
+	 * Gets the amount the session holds for the MSCCs in the request, or for all of its MSCCs when terminating. For a
+	 * session not known to the ledger, ie, which reserved before a restart, it's what the client reports as granted,
+	 * up to what was recovered for the user. Must be called while holding the shard lock.
+	 */
+	private long getHeldAmount(Shard shard, CreditControlInfo ccInfo, boolean terminating) {
+		SessionReservations reservations = shard.sessions.get(ccInfo.getSessionId());
+		if (reservations != null) {
+			if (terminating) {
+				return reservations.total();
+			}
+			long heldAmount = 0;
+			for (int i = 0; i < reservations.size; i++) {
+				for (CreditControlUnit ccUnit : ccInfo.getCcUnits()) {
+					if (ccUnit.belongsTo(reservations.ratingGroups[i], reservations.serviceIds[i])) {
+						heldAmount += reservations.amounts[i];
+						break;
+					}
+				}
+			}
+			return heldAmount;
+		}
+
+		SessionReservations recovered = shard.sessions.get(RECOVERED_SESSION_PREFIX + ccInfo.getSubscriptionId());
+		if (recovered == null) {
+			return 0;
+		}
+		long claimedAmount = 0;
+		for (CreditControlUnit ccUnit : ccInfo.getCcUnits()) {
+			claimedAmount += ccUnit.getReservedAmount();
+		}
+		return Math.min(claimedAmount, recovered.total());
+	}
+
+	/**
+	 * Replaces the reservations of the MSCCs in the request with the newly reserved amounts, summed up over their unit
+	 * types, or drops the session reservations when it is terminating. Must be called while holding the shard lock.
+	 *
+	 * @param heldAmount the amount the session held, as returned by {@link #getHeldAmount(Shard, CreditControlInfo, boolean)}
+	 */
+	private void settleReservations(Shard shard, CreditControlInfo ccInfo, boolean terminating, long heldAmount) {
+		String sessionId = ccInfo.getSessionId();
+		SessionReservations reservations = shard.sessions.get(sessionId);
+		if (reservations == null && heldAmount > 0) {
+			// taken from the reservations recovered for the user
+			SessionReservations recovered = shard.sessions.get(RECOVERED_SESSION_PREFIX + ccInfo.getSubscriptionId());
+			recovered.set(RECOVERED_MSCC, RECOVERED_MSCC, recovered.total() - heldAmount);
+			if (recovered.size == 0) {
+				shard.sessions.remove(recovered.sessionId);
+				shard.unlink(recovered);
+			}
+		}
+
+		if (terminating) {
+			if (reservations != null) {
+				shard.sessions.remove(sessionId);
+				shard.unlink(reservations);
+			}
+			return;
+		}
+
+		// renewed, so it moves to the end of the expiry list
+		if (reservations != null) {
+			shard.unlink(reservations);
+			for (CreditControlUnit ccUnit : ccInfo.getCcUnits()) {
+				reservations.set(ccUnit.getRatingGroup(), ccUnit.getServiceId(), 0);
+			}
+		}
+		for (CreditControlUnit ccUnit : ccInfo.getCcUnits()) {
+			if (ccUnit.getReservedAmount() <= 0) {
+				continue;
+			}
+			if (reservations == null) {
+				reservations = new SessionReservations(sessionId, ccInfo.getSubscriptionId());
+				shard.sessions.put(sessionId, reservations);
+			}
+			long ratingGroup = ccUnit.getRatingGroup();
+			long serviceId = ccUnit.getServiceId();
+			reservations.set(ratingGroup, serviceId, reservations.get(ratingGroup, serviceId) + ccUnit.getReservedAmount());
+		}
+		if (reservations != null) {
+			if (reservations.size == 0) {
+				shard.sessions.remove(sessionId);
+			}
+			else {
+				reservations.expires = System.currentTimeMillis() + reservationLifetime;
+				shard.append(reservations);
+			}
+		}
+	}
+
+	/**
+	 * Keeps the reserved amounts recovered at startup, whose sessions are not known as they are not persisted, as a
+	 * single reservation per user. The sessions reporting them take their part, and the reaper returns the rest to the
+	 * balance once expired.
+	 */
+	private void recoverReservations() {
+		long expires = System.currentTimeMillis() + reservationLifetime;
+		long count = 0;
+		long amount = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				for (LedgerAccount account : shard.accounts.values()) {
+					if (account.reserved > 0) {
+						SessionReservations reservations = new SessionReservations(RECOVERED_SESSION_PREFIX + account.msisdn, account.msisdn);
+						reservations.set(RECOVERED_MSCC, RECOVERED_MSCC, account.reserved);
+						reservations.expires = expires;
+						shard.sessions.put(reservations.sessionId, reservations);
+						shard.append(reservations);
+						count++;
+						amount += account.reserved;
+					}
+				}
+			}
+		}
+		if (count > 0 && tracer.isInfoEnabled()) {
+			tracer.info("[><] Recovered reservations of " + count + " users (amount " + amount + "), to be returned in " + reservationLifetime + "ms if not reported by their sessions.");
+		}
+	}
+
+	/**
+	 * Returns to the balances the reservations of sessions not updated nor terminated before they expired, ie, dropped
+	 * sessions. At most one batch is released per call, oldest first, and the shard lock is only held while releasing.
+	 */
+	void reap() {
+		long start = System.currentTimeMillis();
+		long count = 0;
+		long amount = 0;
+		long sequence = 0;
+		for (int n = 0; n < shards.length && count < reaperBatchSize; n++) {
+			Shard shard = shards[reaperShard];
+			reaperShard = (reaperShard + 1) % shards.length;
+			synchronized (shard) {
+				while (shard.head != null && shard.head.expires <= start && count < reaperBatchSize) {
+					SessionReservations reservations = shard.head;
+					shard.unlink(reservations);
+					shard.sessions.remove(reservations.sessionId);
+
+					long total = reservations.total();
+					LedgerAccount account = shard.accounts.get(reservations.msisdn);
+					if (account != null && total > 0) {
+						account.balance += total;
+						account.reserved -= total;
+						sequence = journal(LedgerJournal.RELEASE, account, -total, account.balance, account.reserved);
+						markDirty(shard, account);
+					}
+					count++;
+					amount += total;
+				}
+			}
+		}
+		if (count > 0) {
+			// nobody is waiting for the answer, but log only once durable
+			awaitDurable(sequence);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[//] Reclaimed " + count + " orphan reservations (amount " + amount + ") in " + (System.currentTimeMillis() - start) + "ms.");
+			}
+		}
+	}
+
+	/**
+	 * Debits all the requested units at once, if the balance is enough for them.
+	 *
+	 * @param ccInfo the Credit-Control information, updated with the debited units and balances
+	 * @return the resulting account data, with null MSISDN if the user does not exist
+	 */
+	public UserAccountData directDebit(CreditControlInfo ccInfo) {
+		String msisdn = ccInfo.getSubscriptionId();
+		ArrayList<CreditControlUnit> ccUnits = ccInfo.getCcUnits();
+
+		UserAccountData accountData = new UserAccountData();
+		accountData.setMsisdn(msisdn);
+
+		if (isJournalFailed()) {
+			return unavailable(accountData, ccInfo);
+		}
+
+		long sequence;
+		long requestedAmount = 0;
+		Shard shard = getShard(msisdn);
+		synchronized (shard) {
+			LedgerAccount account = shard.accounts.get(msisdn);
+			if (account == null) {
+				accountData.setMsisdn(null);
+				return fail(accountData, ccUnits);
+			}
+
+			for (CreditControlUnit ccUnit : ccUnits) {
+				requestedAmount += ccUnit.getRequestedAmount();
+			}
+
+			if (account.balance < requestedAmount) {
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[//] User does not have sufficient balance for reservation. Balance available: " + account.balance + ".");
+				}
+				return fail(accountData, ccUnits);
+			}
+
+			sequence = journal(LedgerJournal.DEBIT, account, requestedAmount, account.balance - requestedAmount, account.reserved);
+
+			ccInfo.setBalanceBefore(account.balance);
+			account.balance -= requestedAmount;
+			markDirty(shard, account);
+
+			for (CreditControlUnit ccUnit : ccUnits) {
+				ccUnit.setReservedUnits(ccUnit.getRequestedUnits());
+				ccUnit.setReservedAmount(ccUnit.getRequestedAmount());
+			}
+			ccInfo.setBalanceAfter(account.balance);
+			accountData.setBalance(account.balance);
+		}
+
+		// answer only once durable, but without holding the shard lock
+		if (!awaitDurable(sequence)) {
+			// not charged, so the debit is undone. the database is the reference from now on
+			synchronized (shard) {
+				LedgerAccount account = shard.accounts.get(msisdn);
+				if (account != null) {
+					account.balance += requestedAmount;
+					markDirty(shard, account);
+				}
+			}
+			return unavailable(accountData, ccInfo);
+		}
+
+		return accountData;
+	}
+
+	private static UserAccountData unavailable(UserAccountData accountData, CreditControlInfo ccInfo) {
+		ccInfo.setErrorCodeType(CreditControlInfo.ErrorCodeType.AccountingConnectionErr);
+		return fail(accountData, ccInfo.getCcUnits());
+	}
+
+	private static UserAccountData fail(UserAccountData accountData, ArrayList<CreditControlUnit> ccUnits) {
+		accountData.setBalance(0);
+		accountData.setFailure(true);
+		for (CreditControlUnit ccUnit : ccUnits) {
+			ccUnit.setReservedUnits(0);
+			ccUnit.setReservedAmount(0);
+		}
+		return accountData;
+	}
+
+	/**
+	 * Creates a user with the given balance, if it does not exist yet.
+	 *
+	 * @param msisdn the user MSISDN
+	 * @param balance the initial balance
+	 */
+	public void updateUser(String msisdn, long balance) {
+		// as with the JDBC datasource, existing users (ie, recovered at startup) are not overwritten
+		if (!createUser(msisdn, balance) && tracer.isFineEnabled()) {
+			tracer.fine("[><] User with MSISDN '" + msisdn + "' already exists in the in-memory ledger (or its journal failed). Not updating.");
+		}
+	}
+
+	// ------------------------------ Management ------------------------------
+
+	public int getUsers() {
+		int users = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				users += shard.accounts.size();
+			}
+		}
+		return users;
+	}
+
+	public boolean createUser(String msisdn, long balance) {
+		if (isJournalFailed()) {
+			return false;
+		}
+		long sequence;
+		Shard shard = getShard(msisdn);
+		synchronized (shard) {
+			if (shard.accounts.containsKey(msisdn)) {
+				return false;
+			}
+			LedgerAccount account = new LedgerAccount(msisdn, 0, 0);
+			sequence = journal(LedgerJournal.ADJUST, account, balance, balance, 0);
+			account.balance = balance;
+			shard.accounts.put(msisdn, account);
+			markDirty(shard, account);
+		}
+		return awaitDurable(sequence);
+	}
+
+	public boolean setBalance(String msisdn, long balance) {
+		if (isJournalFailed()) {
+			return false;
+		}
+		long sequence;
+		Shard shard = getShard(msisdn);
+		synchronized (shard) {
+			LedgerAccount account = shard.accounts.get(msisdn);
+			if (account == null) {
+				return false;
+			}
+			sequence = journal(LedgerJournal.ADJUST, account, balance - account.balance, balance, account.reserved);
+			account.balance = balance;
+			markDirty(shard, account);
+		}
+		return awaitDurable(sequence);
+	}
+
+	public boolean setReserved(String msisdn, long reserved) {
+		if (isJournalFailed()) {
+			return false;
+		}
+		long sequence;
+		Shard shard = getShard(msisdn);
+		synchronized (shard) {
+			LedgerAccount account = shard.accounts.get(msisdn);
+			if (account == null) {
+				return false;
+			}
+			sequence = journal(LedgerJournal.ADJUST, account, 0, account.balance, reserved);
+			account.reserved = reserved;
+			markDirty(shard, account);
+		}
+		return awaitDurable(sequence);
+	}
+
+	/**
+	 * Returns all the reserved amount of the user to its balance, dropping its open reservations.
+	 */
+	public boolean sanitizeUser(String msisdn) {
+		if (isJournalFailed()) {
+			return false;
+		}
+		long sequence;
+		Shard shard = getShard(msisdn);
+		synchronized (shard) {
+			LedgerAccount account = shard.accounts.get(msisdn);
+			if (account == null) {
+				return false;
+			}
+			dropSessions(shard, msisdn);
+			sequence = journal(LedgerJournal.RELEASE, account, -account.reserved, account.balance + account.reserved, 0);
+			account.balance += account.reserved;
+			account.reserved = 0;
+			markDirty(shard, account);
+		}
+		return awaitDurable(sequence);
+	}
+
+	public boolean deleteUser(String msisdn) {
+		if (isJournalFailed()) {
+			return false;
+		}
+		long sequence;
+		Shard shard = getShard(msisdn);
+		synchronized (shard) {
+			LedgerAccount account = shard.accounts.get(msisdn);
+			if (account == null) {
+				return false;
+			}
+			sequence = journal(LedgerJournal.DELETE, account, 0, 0, 0);
+			remove(shard, account);
+		}
+		return awaitDurable(sequence);
+	}
+
+	private static void remove(Shard shard, LedgerAccount account) {
+		account.deleted = true;
+		shard.accounts.remove(account.msisdn);
+		shard.deleted.add(account.msisdn);
+		dropSessions(shard, account.msisdn);
+	}
+
+	/**
+	 * Drops the open reservations of all the sessions of the user, without returning them. Must be called while
+	 * holding the shard lock.
+	 */
+	private static void dropSessions(Shard shard, String msisdn) {
+		Iterator<SessionReservations> iterator = shard.sessions.values().iterator();
+		while (iterator.hasNext()) {
+			SessionReservations reservations = iterator.next();
+			if (reservations.msisdn.equals(msisdn)) {
+				iterator.remove();
+				shard.unlink(reservations);
+			}
+		}
+	}
+
+	/**
+	 * Sets the state of a user, as loaded from the snapshot or database, without marking it for write-behind.
+	 */
+	void put(String msisdn, long balance, long reserved) {
+		Shard shard = getShard(msisdn);
+		synchronized (shard) {
+			shard.accounts.put(msisdn, new LedgerAccount(msisdn, balance, reserved));
+		}
+	}
+
+	/**
+	 * Sizes the shards for the given number of users, before loading them.
+	 */
+	void ensureCapacity(long users) {
+		int capacity = (int) Math.min(Integer.MAX_VALUE, users / shards.length * 4 / 3 + 1);
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				if (shard.accounts.isEmpty()) {
+					shard.accounts = new HashMap<String, LedgerAccount>(capacity);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Marks the user for write-behind, as its journaled state may not be in database yet.
+	 */
+	void touch(String msisdn) {
+		Shard shard = getShard(msisdn);
+		synchronized (shard) {
+			LedgerAccount account = shard.accounts.get(msisdn);
+			if (account != null) {
+				markDirty(shard, account);
+			}
+		}
+	}
+
+	/**
+	 * Removes a user, as replayed from the journal, so it is also deleted from the database.
+	 */
+	void remove(String msisdn) {
+		Shard shard = getShard(msisdn);
+		synchronized (shard) {
+			LedgerAccount account = shard.accounts.get(msisdn);
+			if (account != null) {
+				remove(shard, account);
+			}
+			else {
+				shard.deleted.add(msisdn);
+			}
+		}
+	}
+
+	/**
+	 * Restores the state of a user, as replayed from the journal.
+	 */
+	void restore(String msisdn, long balance, long reserved) {
+		Shard shard = getShard(msisdn);
+		synchronized (shard) {
+			LedgerAccount account = shard.accounts.get(msisdn);
+			if (account == null) {
+				account = new LedgerAccount(msisdn, balance, reserved);
+				shard.accounts.put(msisdn, account);
+			}
+			else {
+				account.balance = balance;
+				account.reserved = reserved;
+			}
+			markDirty(shard, account);
+		}
+	}
+
+	/**
+	 * Gets the account data for the users matching the given pattern.
+	 *
+	 * @param msisdnPattern the MSISDN or a SQL LIKE pattern ('%' and '_' wildcards)
+	 * @return the matching users account data
+	 */
+	public List<UserAccountData> find(String msisdnPattern) {
+		Pattern pattern = Pattern.compile(Pattern.quote(msisdnPattern).replace("%", "\\E.*\\Q").replace("_", "\\E.\\Q"));
+		List<UserAccountData> result = new ArrayList<UserAccountData>();
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				for (LedgerAccount account : shard.accounts.values()) {
+					if (pattern.matcher(account.msisdn).matches()) {
+						UserAccountData accountData = new UserAccountData();
+						accountData.setMsisdn(account.msisdn);
+						accountData.setBalance(account.balance);
+						result.add(accountData);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	// ----------------------------- Persistence ------------------------------
+
+	private void load() {
+		Connection connection = null;
+		try {
+			connection = jdbcRA.getConnection();
+			Statement statement = connection.createStatement();
+			ResultSet resultSet = statement.executeQuery(DataSourceSchemaInfo._QUERY_SELECT_ALL_BALANCES);
+			int count = 0;
+			while (resultSet.next()) {
+				put(resultSet.getString(1), resultSet.getLong(2), resultSet.getLong(3));
+				count++;
+			}
+			statement.close();
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Loaded " + count + " users into the in-memory ledger.");
+			}
+		}
+		catch (SQLException e) {
+			tracer.warning("[!!] Unable to load users into the in-memory ledger.", e);
+		}
+		finally {
+			close(connection);
+		}
+	}
+
+	/**
+	 * Writes all the accounts changed since last flush to the users table, in a single batch.
+	 */
+	void flush() {
+		// all the mutations up to here will be in the drained accounts
+		long journalSequence = journal != null ? journal.getLastSequence() : 0;
+
+		ArrayList<LedgerAccount> accounts = new ArrayList<LedgerAccount>();
+		ArrayList<long[]> values = new ArrayList<long[]>();
+		ArrayList<String> deleted = new ArrayList<String>();
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				for (LedgerAccount account : shard.dirty) {
+					account.dirty = false;
+					if (!account.deleted) {
+						accounts.add(account);
+						values.add(new long[] {account.balance, account.reserved});
+					}
+				}
+				shard.dirty = new ArrayList<LedgerAccount>();
+				if (!shard.deleted.isEmpty()) {
+					deleted.addAll(shard.deleted);
+					shard.deleted = new HashSet<String>();
+				}
+			}
+		}
+		if (accounts.isEmpty() && deleted.isEmpty()) {
+			flushed(journalSequence);
+			return;
+		}
+
+		Connection connection = null;
+		try {
+			connection = jdbcRA.getConnection();
+			connection.setAutoCommit(false);
+
+			// first, so that users removed and created again since last flush are inserted afterwards
+			if (!deleted.isEmpty()) {
+				PreparedStatement delete = connection.prepareStatement(DataSourceSchemaInfo._QUERY_DELETE_USER);
+				for (String msisdn : deleted) {
+					delete.setString(1, msisdn);
+					delete.addBatch();
+				}
+				delete.executeBatch();
+				delete.close();
+			}
+
+			PreparedStatement update = connection.prepareStatement(DataSourceSchemaInfo._QUERY_UPDATE_BALANCE);
+			for (int i = 0; i < accounts.size(); i++) {
+				update.setLong(1, values.get(i)[0]);
+				update.setLong(2, values.get(i)[1]);
+				update.setString(3, accounts.get(i).msisdn);
+				update.addBatch();
+			}
+			int[] updated = update.executeBatch();
+			update.close();
+
+			// users created in memory are not in the database yet
+			PreparedStatement insert = null;
+			for (int i = 0; i < updated.length; i++) {
+				if (updated[i] == 0) {
+					if (insert == null) {
+						insert = connection.prepareStatement(DataSourceSchemaInfo._QUERY_INSERT);
+					}
+					insert.setString(1, accounts.get(i).msisdn);
+					insert.setLong(2, values.get(i)[0]);
+					insert.setDate(3, null);
+					insert.setTimestamp(4, null);
+					insert.setString(5, "Active");
+					insert.addBatch();
+				}
+			}
+			if (insert != null) {
+				insert.executeBatch();
+				insert.close();
+			}
+
+			connection.commit();
+			flushed(journalSequence);
+			if (tracer.isFineEnabled()) {
+				tracer.fine("[><] Flushed " + accounts.size() + " users (" + deleted.size() + " deleted) from the in-memory ledger.");
+			}
+		}
+		catch (SQLException e) {
+			tracer.warning("[!!] Unable to flush " + accounts.size() + " users from the in-memory ledger. Will retry.", e);
+			try {
+				if (connection != null) {
+					connection.rollback();
+				}
+			}
+			catch (SQLException f) {
+				// nothing else to do, it will be retried
+			}
+			for (LedgerAccount account : accounts) {
+				Shard shard = getShard(account.msisdn);
+				synchronized (shard) {
+					if (!account.deleted) {
+						markDirty(shard, account);
+					}
+				}
+			}
+			for (String msisdn : deleted) {
+				Shard shard = getShard(msisdn);
+				synchronized (shard) {
+					shard.deleted.add(msisdn);
+				}
+			}
+		}
+		finally {
+			close(connection);
+		}
+	}
+
+	private void flushed(long journalSequence) {
+		if (journal != null) {
+			flushedSequence = journalSequence;
+			releaseJournal();
+		}
+	}
+
+	private void releaseJournal() {
+		// segments are needed until in both database and snapshot (if enabled)
+		long snapshotSequence = this.snapshotSequence;
+		journal.release(snapshotSequence < 0 ? flushedSequence : Math.min(flushedSequence, snapshotSequence));
+	}
+
+	/**
+	 * Writes a snapshot of all the users to the journal directory. The snapshot is fuzzy (shards are copied one at a
+	 * time, while serving requests) but as journal records hold the resulting state, replaying all the records after
+	 * the sequence taken before starting brings it to a consistent state.
+	 */
+	void snapshot() {
+		long sequence = journal.getLastSequence();
+		if (sequence == snapshotSequence) {
+			return;
+		}
+
+		long startTime = System.currentTimeMillis();
+		LedgerSnapshot.Writer snapshotWriter = null;
+		try {
+			snapshotWriter = LedgerSnapshot.create(journalDirectory, sequence);
+			for (Shard shard : shards) {
+				// copy the shard so it's not locked while writing
+				String[] msisdns;
+				long[] values;
+				synchronized (shard) {
+					msisdns = new String[shard.accounts.size()];
+					values = new long[msisdns.length * 2];
+					int i = 0;
+					for (LedgerAccount account : shard.accounts.values()) {
+						msisdns[i] = account.msisdn;
+						values[i * 2] = account.balance;
+						values[i * 2 + 1] = account.reserved;
+						i++;
+					}
+				}
+				for (int i = 0; i < msisdns.length; i++) {
+					snapshotWriter.write(msisdns[i], values[i * 2], values[i * 2 + 1]);
+				}
+			}
+			long count = snapshotWriter.commit();
+			snapshotWriter = null;
+
+			snapshotSequence = sequence;
+			releaseJournal();
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Wrote ledger snapshot of " + count + " users at journal sequence " + sequence + " in " + (System.currentTimeMillis() - startTime) + "ms.");
+			}
+		}
+		catch (IOException e) {
+			tracer.warning("[!!] Unable to write ledger snapshot.", e);
+		}
+		finally {
+			if (snapshotWriter != null) {
+				snapshotWriter.abort();
+			}
+		}
+	}
+
+	private void close(Connection connection) {
+		try {
+			if (connection != null) {
+				connection.close();
+			}
+		}
+		catch (SQLException e) {
+			tracer.severe("[xx] Failed to close JDBC Connection", e);
+		}
+	}
+
+}
@@ -0,0 +1,145 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.memory;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.slee.Sbb;
+import javax.slee.SbbContext;
+import javax.slee.facilities.Tracer;
+import javax.slee.resource.ResourceAdaptorTypeID;
+
+import org.mobicents.charging.server.BaseSbb;
+import org.mobicents.charging.server.account.AccountBalanceManagement;
+import org.mobicents.charging.server.account.CreditControlInfo;
+import org.mobicents.charging.server.data.DataSource;
+import org.mobicents.charging.server.data.UserAccountData;
+import org.mobicents.slee.SbbContextExt;
+import org.mobicents.slee.resource.jdbc.JdbcResourceAdaptorSbbInterface;
+
+/**
+ * In-Memory Ledger Datasource Child SBB
+ * 
+ * This SBB answers reservations and debits synchronously from the in-memory {@link BalanceLedger}, which persists
+ * the changes to the database through the JDBC Resource Adaptor in the background.
+ * 
+ * @author ammendonca
+ */
+public abstract class DataSourceLedgerSbb extends BaseSbb implements Sbb, DataSource {
+
+	private SbbContextExt sbbContextExt;
+
+	private static Tracer tracer;
+
+	// ------------------------------- JDBC RA --------------------------------
+	private static final ResourceAdaptorTypeID jdbcRATypeID = JdbcResourceAdaptorSbbInterface.RATYPE_ID;
+	private static final String jdbcRALink = "JDBCRA";
+	private JdbcResourceAdaptorSbbInterface jdbcRA;
+
+	// --------------------------- Local Interface ----------------------------
+
+	@Override
+	public void init() {
+		LedgerConfiguration configuration = new LedgerConfiguration();
+		try {
+			Context ctx = (Context) new InitialContext().lookup("java:comp/env");
+			configuration.setShards((Integer) ctx.lookup("ledgerShards"));
+			configuration.setFlushPeriod((Long) ctx.lookup("ledgerFlushPeriod"));
+			configuration.setJournalDirectory((String) ctx.lookup("ledgerJournalDirectory"));
+			configuration.setJournalCommitWindow((Long) ctx.lookup("ledgerJournalCommitWindow"));
+			configuration.setJournalSegmentSize((Long) ctx.lookup("ledgerJournalSegmentSize"));
+			configuration.setSnapshotPeriod((Long) ctx.lookup("ledgerSnapshotPeriod"));
+			configuration.setReservationLifetime((Long) ctx.lookup("reservationLifetime"));
+			configuration.setReaperPeriod((Long) ctx.lookup("reservationReaperPeriod"));
+			configuration.setReaperBatchSize((Integer) ctx.lookup("reservationReaperBatchSize"));
+		}
+		catch (Exception e) {
+			tracer.warning("[!!] Unable to read in-memory ledger env-entries. Using " + configuration + ".");
+		}
+		BalanceLedger.start(jdbcRA, configuration, tracer);
+	}
+
+	@Override
+	public void getUserAccountData(String msisdn) {
+		getParent().getAccountDataResult(getLedger().find(msisdn));
+	}
+
+	@Override
+	public void requestUnits(CreditControlInfo ccInfo) {
+		if (tracer.isFineEnabled()) {
+			tracer.fine("[><] Requesting Units: " + ccInfo);
+		}
+		UserAccountData accountData = getLedger().reserve(ccInfo);
+		getParent().reserveUnitsResult(ccInfo, accountData);
+	}
+
+	@Override
+	public void directDebitUnits(CreditControlInfo ccInfo) {
+		if (tracer.isFineEnabled()) {
+			tracer.fine("[><] Debiting Units: " + ccInfo);
+		}
+		UserAccountData accountData = getLedger().directDebit(ccInfo);
+		getParent().reserveUnitsResult(ccInfo, accountData);
+	}
+
+	@Override
+	public void updateUser(String msisdn, long balance) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Updating User with MSISDN '" + msisdn + "'. Balance = " + balance);
+		}
+		getLedger().updateUser(msisdn, balance);
+	}
+
+	// ---------------------------- Helper Methods ----------------------------
+
+	private BalanceLedger getLedger() {
+		BalanceLedger ledger = BalanceLedger.getInstance();
+		if (ledger == null) {
+			// not initialized by the service start, do it now
+			init();
+			ledger = BalanceLedger.getInstance();
+		}
+		return ledger;
+	}
+
+	private AccountBalanceManagement getParent() {
+		return (AccountBalanceManagement) sbbContextExt.getSbbLocalObject().getParent();
+	}
+
+	// ---------------------------- SLEE Callbacks ----------------------------
+
+	@Override
+	public void setSbbContext(SbbContext context) {
+		sbbContextExt = (SbbContextExt) context;
+		if (tracer == null) {
+			tracer = sbbContextExt.getTracer("CS-Ledger");
+		}
+		jdbcRA = (JdbcResourceAdaptorSbbInterface) this.sbbContextExt.getResourceAdaptorInterface(jdbcRATypeID, jdbcRALink);
+	}
+
+	@Override
+	public void unsetSbbContext() {
+		sbbContextExt = null;
+		jdbcRA = null;
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.memory;
+
+/**
+ * Balance and reservation of a single subscriber, as kept in the in-memory ledger. Only to be accessed while holding
+ * the lock of the ledger shard it belongs to.
+ *
+ * @author ammendonca
+ */
+class LedgerAccount {
+
+	final String msisdn;
+
+	long balance;
+	long reserved;
+
+	// true if changed since it was last written to the database
+	boolean dirty;
+	// true once removed from the ledger, so it's no longer written to the database
+	boolean deleted;
+
+	LedgerAccount(String msisdn, long balance, long reserved) {
+		this.msisdn = msisdn;
+		this.balance = balance;
+		this.reserved = reserved;
+	}
+
+}
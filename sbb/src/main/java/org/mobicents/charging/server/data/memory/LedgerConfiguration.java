@@ -0,0 +1,126 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.memory;
+
+/**
+ * POJO holding the configuration of the in-memory ledger, as read from the env-entries.
+ *
+ * @author ammendonca
+ */
+public class LedgerConfiguration {
+
+	private int shards = 64;
+	private long flushPeriod = 1000;
+
+	// if not set, no journal is kept
+	private String journalDirectory = null;
+	private long journalCommitWindow = 1;
+	private long journalSegmentSize = 64 * 1024 * 1024;
+
+	// snapshots are written to the journal directory. if 0, no snapshots are taken
+	private long snapshotPeriod = 0;
+
+	// reservations not updated by their session for this long are returned to the balance, at most a batch per period
+	private long reservationLifetime = 86400000;
+	private long reaperPeriod = 60000;
+	private int reaperBatchSize = 1000;
+
+	public int getShards() {
+		return shards;
+	}
+
+	public void setShards(int shards) {
+		this.shards = shards;
+	}
+
+	public long getFlushPeriod() {
+		return flushPeriod;
+	}
+
+	public void setFlushPeriod(long flushPeriod) {
+		this.flushPeriod = flushPeriod;
+	}
+
+	public String getJournalDirectory() {
+		return journalDirectory;
+	}
+
+	public void setJournalDirectory(String journalDirectory) {
+		this.journalDirectory = journalDirectory;
+	}
+
+	public long getJournalCommitWindow() {
+		return journalCommitWindow;
+	}
+
+	public void setJournalCommitWindow(long journalCommitWindow) {
+		this.journalCommitWindow = journalCommitWindow;
+	}
+
+	public long getJournalSegmentSize() {
+		return journalSegmentSize;
+	}
+
+	public void setJournalSegmentSize(long journalSegmentSize) {
+		this.journalSegmentSize = journalSegmentSize;
+	}
+
+	public long getSnapshotPeriod() {
+		return snapshotPeriod;
+	}
+
+	public void setSnapshotPeriod(long snapshotPeriod) {
+		this.snapshotPeriod = snapshotPeriod;
+	}
+
+	public long getReservationLifetime() {
+		return reservationLifetime;
+	}
+
+	public void setReservationLifetime(long reservationLifetime) {
+		this.reservationLifetime = reservationLifetime;
+	}
+
+	public long getReaperPeriod() {
+		return reaperPeriod;
+	}
+
+	public void setReaperPeriod(long reaperPeriod) {
+		this.reaperPeriod = reaperPeriod;
+	}
+
+	public int getReaperBatchSize() {
+		return reaperBatchSize;
+	}
+
+	public void setReaperBatchSize(int reaperBatchSize) {
+		this.reaperBatchSize = reaperBatchSize;
+	}
+
+	@Override
+	public String toString() {
+		return "LedgerConfiguration[Shards=" + shards + "; FlushPeriod=" + flushPeriod + "; JournalDirectory=" + journalDirectory +
+				"; JournalCommitWindow=" + journalCommitWindow + "; JournalSegmentSize=" + journalSegmentSize + "; SnapshotPeriod=" + snapshotPeriod +
+				"; ReservationLifetime=" + reservationLifetime + "; ReaperPeriod=" + reaperPeriod + "; ReaperBatchSize=" + reaperBatchSize + "]";
+	}
+}
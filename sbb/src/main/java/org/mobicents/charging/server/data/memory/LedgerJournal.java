@@ -0,0 +1,424 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.memory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import javax.slee.facilities.Tracer;
+
+/**
+ * Append-only, write-ahead journal of the balance mutations in the in-memory ledger.
+ * 
+ * Each mutation is a fixed-size binary record, with the resulting balance and reserved amount of the subscriber, so
+ * replaying it is idempotent. Records are appended to an in-memory buffer and a committer thread writes and syncs them
+ * to disk once per commit window (group commit), waking up all the callers waiting for their records to be durable.
+ * 
+ * The journal is split in segments, named after the sequence of their first record. A new segment is started when
+ * the current one reaches the configured size, and segments are deleted once all their records are persisted to the
+ * database.
+ *
+ * @author ammendonca
+ */
+class LedgerJournal {
+
+	// Record Types
+	static final byte RESERVE = 1;
+	static final byte DEBIT = 2;
+	static final byte RELEASE = 3;
+	static final byte ADJUST = 4;
+	// user removed, balance and reserved are not meaningful
+	static final byte DELETE = 5;
+
+	// Record Layout: sequence(8) timestamp(8) type(1) msisdn-length(1) msisdn(MSISDN_SIZE) amount(8) balance(8)
+	// reserved(8) crc32(4)
+	static final int MSISDN_SIZE = 48;
+	static final int RECORD_SIZE = 8 + 8 + 1 + 1 + MSISDN_SIZE + 8 + 8 + 8 + 4;
+
+	private static final int BUFFER_SIZE = RECORD_SIZE * 8192;
+
+	private static final String SEGMENT_PREFIX = "ledger-";
+	private static final String SEGMENT_SUFFIX = ".journal";
+
+	private static final Charset CHARSET = Charset.forName("US-ASCII");
+
+	private final File directory;
+	private final long commitWindow;
+	private final long segmentSize;
+	private final Tracer tracer;
+
+	// segments, by first sequence
+	private final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+
+	private final Object lock = new Object();
+
+	// records are appended to pending, while committer writes spare to disk
+	private ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+	private ByteBuffer spare = ByteBuffer.allocate(BUFFER_SIZE);
+
+	private long lastSequence = 0;
+	private long durableSequence = 0;
+
+	private FileChannel channel;
+	private long channelSize;
+
+	private volatile boolean running = false;
+	private volatile boolean failed = false;
+
+	private Thread committer;
+
+	LedgerJournal(File directory, long commitWindow, long segmentSize, Tracer tracer) {
+		this.directory = directory;
+		this.commitWindow = commitWindow;
+		this.segmentSize = segmentSize;
+		this.tracer = tracer;
+	}
+
+	// ------------------------------- Recovery -------------------------------
+
+	/**
+	 * Replays the records in the journal segments into the ledger, in order. A partial or corrupt record, as left by a
+	 * crash while writing, ends the replay of the segment.
+	 *
+	 * @param ledger the ledger to restore the records into
+	 * @param fromSequence the sequence the ledger state is already at (ie, from a snapshot). Records up to it are not
+	 *        restored, only their users are marked as pending to be written to database.
+	 * @return the number of records replayed
+	 */
+	long replay(BalanceLedger ledger, long fromSequence) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create journal directory " + directory);
+		}
+
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		for (File file : files) {
+			String name = file.getName();
+			segments.put(Long.valueOf(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+		}
+
+		long count = 0;
+		byte[] record = new byte[RECORD_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		CRC32 crc = new CRC32();
+		for (File file : segments.values()) {
+			long validLength = 0;
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+			try {
+				while (true) {
+					try {
+						in.readFully(record);
+					}
+					catch (EOFException e) {
+						break;
+					}
+					crc.reset();
+					crc.update(record, 0, RECORD_SIZE - 4);
+					buffer.clear();
+					if ((int) crc.getValue() != buffer.getInt(RECORD_SIZE - 4)) {
+						tracer.warning("[!!] Corrupt record found in journal segment " + file + " after " + count + " records.");
+						break;
+					}
+
+					long sequence = buffer.getLong();
+					buffer.getLong(); // timestamp
+					byte type = buffer.get();
+					int msisdnLength = buffer.get();
+					String msisdn = new String(record, buffer.position(), msisdnLength, CHARSET);
+					buffer.position(buffer.position() + MSISDN_SIZE);
+					buffer.getLong(); // amount
+					long balance = buffer.getLong();
+					long reserved = buffer.getLong();
+
+					if (type == DELETE) {
+						// the snapshot no longer has it, but the database may still have
+						ledger.remove(msisdn);
+					}
+					else if (sequence > fromSequence) {
+						ledger.restore(msisdn, balance, reserved);
+					}
+					else {
+						ledger.touch(msisdn);
+					}
+					lastSequence = sequence;
+					validLength += RECORD_SIZE;
+					count++;
+				}
+			}
+			finally {
+				in.close();
+			}
+
+			// drop the partial/corrupt tail left by a crash while writing, so it's not found on next replay
+			if (validLength < file.length()) {
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.setLength(validLength);
+				}
+				finally {
+					raf.close();
+				}
+			}
+		}
+		// if all segments were released, keep counting from the snapshot
+		lastSequence = Math.max(lastSequence, fromSequence);
+		durableSequence = lastSequence;
+
+		return count;
+	}
+
+	// ------------------------------- Appending ------------------------------
+
+	/**
+	 * Starts a new segment and the committer thread. To be called after {@link #replay(BalanceLedger, long)}.
+	 */
+	void start() throws IOException {
+		openSegment(lastSequence + 1);
+		running = true;
+		committer = new Thread(new Runnable() {
+			public void run() {
+				while (running) {
+					synchronized (lock) {
+						try {
+							lock.wait(commitWindow);
+						}
+						catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							return;
+						}
+					}
+					commit();
+				}
+			}
+		}, "CS-Ledger-Journal");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/**
+	 * Stops the committer thread, committing all pending records.
+	 */
+	void stop() {
+		running = false;
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+		try {
+			committer.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		commit();
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			tracer.warning("[!!] Failed to close journal segment.", e);
+		}
+	}
+
+	/**
+	 * Appends a mutation record to the journal. The record is not durable until {@link #awaitDurable(long)} returns.
+	 *
+	 * @return the sequence of the record
+	 */
+	long append(byte type, String msisdn, long amount, long balance, long reserved) {
+		byte[] msisdnBytes = msisdn.getBytes(CHARSET);
+		if (msisdnBytes.length > MSISDN_SIZE) {
+			throw new IllegalArgumentException("MSISDN '" + msisdn + "' too long for journal (max " + MSISDN_SIZE + " chars).");
+		}
+
+		synchronized (lock) {
+			// wait for committer to make room, if needed
+			while (pending.remaining() < RECORD_SIZE) {
+				lock.notifyAll();
+				try {
+					lock.wait();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while waiting for journal buffer.", e);
+				}
+			}
+
+			long sequence = ++lastSequence;
+			int start = pending.position();
+			pending.putLong(sequence);
+			pending.putLong(System.currentTimeMillis());
+			pending.put(type);
+			pending.put((byte) msisdnBytes.length);
+			pending.put(msisdnBytes);
+			pending.position(pending.position() + MSISDN_SIZE - msisdnBytes.length);
+			pending.putLong(amount);
+			pending.putLong(balance);
+			pending.putLong(reserved);
+
+			CRC32 crc = new CRC32();
+			crc.update(pending.array(), start, RECORD_SIZE - 4);
+			pending.putInt((int) crc.getValue());
+
+			return sequence;
+		}
+	}
+
+	/**
+	 * Waits until the record with the given sequence (and all before it) is synced to disk.
+	 *
+	 * @return true if durable, false if the journal failed or was stopped before that
+	 */
+	boolean awaitDurable(long sequence) {
+		synchronized (lock) {
+			while (durableSequence < sequence) {
+				if (failed || !running) {
+					return false;
+				}
+				try {
+					lock.wait();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * @return true if records can no longer be made durable, until restart
+	 */
+	boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * @return the sequence of the last appended record
+	 */
+	long getLastSequence() {
+		synchronized (lock) {
+			return lastSequence;
+		}
+	}
+
+	private void commit() {
+		ByteBuffer toWrite;
+		long upTo;
+		synchronized (lock) {
+			if (pending.position() == 0 || spare == null) {
+				return;
+			}
+			toWrite = pending;
+			pending = spare;
+			spare = null;
+			upTo = lastSequence;
+		}
+
+		try {
+			toWrite.flip();
+			while (toWrite.hasRemaining()) {
+				channelSize += channel.write(toWrite);
+			}
+			channel.force(false);
+		}
+		catch (IOException e) {
+			if (!failed) {
+				tracer.severe("[xx] Failed to write to ledger journal. Mutations are no longer durable until restart.", e);
+			}
+			failed = true;
+		}
+
+		synchronized (lock) {
+			toWrite.clear();
+			spare = toWrite;
+			if (!failed) {
+				durableSequence = upTo;
+			}
+			lock.notifyAll();
+		}
+
+		if (!failed && channelSize >= segmentSize) {
+			try {
+				channel.close();
+				openSegment(upTo + 1);
+			}
+			catch (IOException e) {
+				tracer.severe("[xx] Failed to rotate ledger journal segment.", e);
+				failed = true;
+			}
+		}
+	}
+
+	private void openSegment(long firstSequence) throws IOException {
+		File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		channel.position(channel.size());
+		channelSize = channel.size();
+		synchronized (segments) {
+			segments.put(firstSequence, file);
+		}
+		if (tracer.isFineEnabled()) {
+			tracer.fine("[><] Started ledger journal segment " + file);
+		}
+	}
+
+	// ------------------------------- Cleanup --------------------------------
+
+	/**
+	 * Deletes the segments whose records have all been persisted elsewhere (ie, database and snapshot).
+	 *
+	 * @param persistedSequence the sequence up to which all records are persisted
+	 */
+	void release(long persistedSequence) {
+		synchronized (segments) {
+			// a segment is fully persisted if the next one starts at or before persistedSequence + 1
+			Map.Entry<Long, File> current = segments.floorEntry(persistedSequence + 1);
+			if (current == null) {
+				return;
+			}
+			Map<Long, File> released = segments.headMap(current.getKey(), false);
+			for (File file : released.values()) {
+				if (!file.delete()) {
+					tracer.warning("[!!] Unable to delete released journal segment " + file);
+				}
+			}
+			released.clear();
+		}
+	}
+
+}
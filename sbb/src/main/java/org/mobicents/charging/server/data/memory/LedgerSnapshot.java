@@ -0,0 +1,225 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.memory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import javax.slee.facilities.Tracer;
+
+/**
+ * Compact, checksummed binary snapshot of all the balances and reservations in the in-memory ledger, taken at a given
+ * journal sequence. On startup the latest valid snapshot is loaded (memory-mapped) and only the journal records after
+ * its sequence need to be replayed.
+ * 
+ * Format: magic(4) version(4) sequence(8), then for each user msisdn-length(1) msisdn(n) balance(8) reserved(8), and
+ * finally count(8) and the crc32(4) of everything before it.
+ *
+ * @author ammendonca
+ */
+class LedgerSnapshot {
+
+	private static final int MAGIC = 0x43534E50; // "CSNP"
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 4 + 4 + 8;
+	private static final int TRAILER_SIZE = 8 + 4;
+
+	private static final String SNAPSHOT_PREFIX = "ledger-";
+	private static final String SNAPSHOT_SUFFIX = ".snapshot";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final Charset CHARSET = Charset.forName("US-ASCII");
+
+	/**
+	 * Writer for a new snapshot. It only replaces the previous snapshots once committed.
+	 */
+	static class Writer {
+
+		private final File directory;
+		private final File temp;
+		private final long sequence;
+
+		private final FileOutputStream file;
+		private final CheckedOutputStream checked;
+		private final DataOutputStream out;
+
+		private long count = 0;
+
+		private Writer(File directory, long sequence) throws IOException {
+			this.directory = directory;
+			this.sequence = sequence;
+			this.temp = new File(directory, getName(sequence) + TEMP_SUFFIX);
+			this.file = new FileOutputStream(temp);
+			this.checked = new CheckedOutputStream(new BufferedOutputStream(file, 1024 * 1024), new CRC32());
+			this.out = new DataOutputStream(checked);
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(sequence);
+		}
+
+		void write(String msisdn, long balance, long reserved) throws IOException {
+			byte[] msisdnBytes = msisdn.getBytes(CHARSET);
+			out.writeByte(msisdnBytes.length);
+			out.write(msisdnBytes);
+			out.writeLong(balance);
+			out.writeLong(reserved);
+			count++;
+		}
+
+		/**
+		 * Completes the snapshot, syncing it to disk and replacing the previous ones.
+		 *
+		 * @return the number of users in the snapshot
+		 */
+		long commit() throws IOException {
+			out.writeLong(count);
+			out.flush();
+			int crc = (int) checked.getChecksum().getValue();
+			out.writeInt(crc);
+			out.flush();
+			file.getFD().sync();
+			out.close();
+
+			File snapshot = new File(directory, getName(sequence));
+			if (!temp.renameTo(snapshot)) {
+				throw new IOException("Unable to rename " + temp + " to " + snapshot);
+			}
+
+			// the older ones are no longer needed
+			for (File old : list(directory)) {
+				if (!old.equals(snapshot) && !old.delete()) {
+					throw new IOException("Unable to delete old snapshot " + old);
+				}
+			}
+			return count;
+		}
+
+		void abort() {
+			try {
+				out.close();
+			}
+			catch (IOException e) {
+				// ignore, we're deleting it anyway
+			}
+			temp.delete();
+		}
+	}
+
+	static Writer create(File directory, long sequence) throws IOException {
+		return new Writer(directory, sequence);
+	}
+
+	/**
+	 * Loads the latest valid snapshot in the directory into the ledger.
+	 *
+	 * @return the journal sequence of the loaded snapshot, or -1 if no valid snapshot was found
+	 */
+	static long load(File directory, BalanceLedger ledger, Tracer tracer) throws IOException {
+		File[] snapshots = list(directory);
+		Arrays.sort(snapshots);
+		for (int i = snapshots.length - 1; i >= 0; i--) {
+			File snapshot = snapshots[i];
+			RandomAccessFile raf = new RandomAccessFile(snapshot, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				long size = channel.size();
+				if (size > Integer.MAX_VALUE || size < HEADER_SIZE + TRAILER_SIZE) {
+					tracer.warning("[!!] Unable to map ledger snapshot " + snapshot + " with size " + size + ". Ignoring it.");
+					continue;
+				}
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+				if (!isValid(buffer, (int) size)) {
+					tracer.warning("[!!] Ledger snapshot " + snapshot + " is corrupt. Ignoring it.");
+					continue;
+				}
+
+				buffer.position(8);
+				long sequence = buffer.getLong();
+				long count = buffer.getLong((int) size - TRAILER_SIZE);
+				ledger.ensureCapacity(count);
+
+				byte[] msisdnBytes = new byte[256];
+				for (long n = 0; n < count; n++) {
+					int length = buffer.get() & 0xFF;
+					buffer.get(msisdnBytes, 0, length);
+					ledger.put(new String(msisdnBytes, 0, length, CHARSET), buffer.getLong(), buffer.getLong());
+				}
+
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[><] Loaded " + count + " users from ledger snapshot " + snapshot + ".");
+				}
+				return sequence;
+			}
+			finally {
+				raf.close();
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isValid(ByteBuffer buffer, int size) {
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			return false;
+		}
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[64 * 1024];
+		buffer.position(0);
+		int remaining = size - 4;
+		while (remaining > 0) {
+			int length = Math.min(chunk.length, remaining);
+			buffer.get(chunk, 0, length);
+			crc.update(chunk, 0, length);
+			remaining -= length;
+		}
+		return (int) crc.getValue() == buffer.getInt(size - 4);
+	}
+
+	private static String getName(long sequence) {
+		return String.format("%s%020d%s", SNAPSHOT_PREFIX, sequence, SNAPSHOT_SUFFIX);
+	}
+
+	private static File[] list(File directory) {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX);
+			}
+		});
+		return files != null ? files : new File[0];
+	}
+
+}
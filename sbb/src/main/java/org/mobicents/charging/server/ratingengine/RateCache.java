@@ -0,0 +1,503 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.ratingengine;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.slee.facilities.Tracer;
+
+/**
+ * Cache of the rates obtained from the Rating Engine, in front of any {@link RatingEngineClient}. Rates change at most a
+ * few times a day, so they are kept per Service-Id, Unit Type, Subscription-Id Type and tariff band (the part of the
+ * day, by configured starting hours, the request was made at) for a time to live, instead of asking the Rating Engine
+ * for every unit type of every request. Failed lookups are also kept, for a shorter time, so that a failing Rating
+ * Engine is not asked again by every request.
+ *
+ * Registered as an MBean, for counters to be available and entries to be invalidated by management.
+ *
+ * @author ammendonca
+ */
+public final class RateCache implements RateCacheMBean {
+
+	public static final String OBJECT_NAME = "org.mobicents.charging.server:type=RateCache";
+
+	private static RateCache instance = null;
+
+	private static final int STRIPES = 16;
+
+	private static final class RateKey {
+		final long serviceId;
+		final long unitTypeId;
+		final int subscriptionIdType;
+		final int tariffBand;
+
+		RateKey(long serviceId, long unitTypeId, int subscriptionIdType, int tariffBand) {
+			this.serviceId = serviceId;
+			this.unitTypeId = unitTypeId;
+			this.subscriptionIdType = subscriptionIdType;
+			this.tariffBand = tariffBand;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = (int) (serviceId ^ (serviceId >>> 32));
+			result = 31 * result + (int) (unitTypeId ^ (unitTypeId >>> 32));
+			result = 31 * result + subscriptionIdType;
+			return 31 * result + tariffBand;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof RateKey)) {
+				return false;
+			}
+			RateKey other = (RateKey) obj;
+			return serviceId == other.serviceId && unitTypeId == other.unitTypeId && subscriptionIdType == other.subscriptionIdType && tariffBand == other.tariffBand;
+		}
+	}
+
+	private static final class CachedRate {
+		final long expiryTime;
+		final RatingInfo ratingInfo;
+
+		CachedRate(long expiryTime, RatingInfo ratingInfo) {
+			this.expiryTime = expiryTime;
+			this.ratingInfo = ratingInfo;
+		}
+	}
+
+	private volatile long timeToLive;
+	private volatile long negativeTimeToLive;
+	private final int stripeCapacity;
+	// hours of the day at which each tariff band starts, ascending
+	private final int[] tariffBandHours;
+
+	// access ordered, so the least recently used are first
+	private final LinkedHashMap<RateKey, CachedRate>[] stripes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong negativeHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private final Tracer tracer;
+
+	@SuppressWarnings("unchecked")
+	private RateCache(long timeToLive, long negativeTimeToLive, int capacity, int[] tariffBandHours, Tracer tracer) {
+		this.timeToLive = timeToLive;
+		this.negativeTimeToLive = negativeTimeToLive;
+		this.stripeCapacity = Math.max(capacity / STRIPES, 1);
+		this.tariffBandHours = tariffBandHours;
+		this.tracer = tracer;
+		this.stripes = new LinkedHashMap[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new LinkedHashMap<RateKey, CachedRate>(16, 0.75f, true);
+		}
+	}
+
+	/**
+	 * Starts the rate cache, if not yet started.
+	 *
+	 * @param timeToLive the time (ms) rates are kept for, 0 for not caching
+	 * @param negativeTimeToLive the time (ms) failed lookups are kept for, 0 for not caching them
+	 * @param capacity the maximum number of rates kept
+	 * @param tariffBands the hours of the day at which the tariff bands start, comma separated, empty for a single band
+	 * @param tracer the tracer to log to
+	 */
+	public static synchronized void start(long timeToLive, long negativeTimeToLive, int capacity, String tariffBands, Tracer tracer) {
+		if (instance == null && timeToLive > 0 && capacity > 0) {
+			int[] tariffBandHours = new int[0];
+			try {
+				if (tariffBands.trim().length() > 0) {
+					String[] hours = tariffBands.trim().split(",");
+					tariffBandHours = new int[hours.length];
+					for (int i = 0; i < hours.length; i++) {
+						tariffBandHours[i] = Integer.parseInt(hours[i].trim());
+					}
+					Arrays.sort(tariffBandHours);
+				}
+			}
+			catch (Exception e) {
+				tracer.warning("[!!] Error reading tariff bands '" + tariffBands + "'. Format should be: hour,hour,... A single band will be used.");
+				tariffBandHours = new int[0];
+			}
+			instance = new RateCache(timeToLive, negativeTimeToLive, capacity, tariffBandHours, tracer);
+			try {
+				MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+				ObjectName objectName = new ObjectName(OBJECT_NAME);
+				if (mbeanServer.isRegistered(objectName)) {
+					mbeanServer.unregisterMBean(objectName);
+				}
+				mbeanServer.registerMBean(instance, objectName);
+			}
+			catch (Exception e) {
+				tracer.warning("[!!] Unable to register rate cache MBean. It will not be available to management.", e);
+			}
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Started rate cache, keeping up to " + capacity + " rates for " + timeToLive + "ms (" + negativeTimeToLive + "ms if failed) in " + Math.max(tariffBandHours.length, 1) + " tariff band(s).");
+			}
+		}
+	}
+
+	/**
+	 * @return the rate cache, or null if not started
+	 */
+	public static synchronized RateCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Gets the rate for a service from the cache, asking the Rating Engine if not there or expired.
+	 *
+	 * @param client the Rating Engine client to ask on a miss
+	 * @param params the rating parameters, as for {@link RatingEngineClient#getRateForService(HashMap)}
+	 * @return the rating information, or null if the client answers asynchronously
+	 */
+	@SuppressWarnings("rawtypes")
+	public RatingInfo getRateForService(RatingEngineClient client, HashMap params) {
+		RateKey key = getKey(params);
+		RatingInfo cached = lookup(key, (String) params.get("SessionId"));
+		if (cached != null) {
+			return cached;
+		}
+
+		misses.incrementAndGet();
+		// the client may remove it
+		Long deadline = (Long) params.get("Deadline");
+		RatingInfo ratingInfo = client.getRateForService(params);
+		if (ratingInfo != null) {
+			store(key, ratingInfo, deadline);
+		}
+		return ratingInfo;
+	}
+
+	/**
+	 * Gets the rates for several services from the cache, asking the Rating Engine for those not there or expired in
+	 * a single batch.
+	 *
+	 * @param client the Rating Engine client to ask on a miss
+	 * @param params the parameters of each rating, as for {@link RatingEngineClient#getRatesForServices(HashMap[])}
+	 * @return the rating information of each, in the same order, or null if the client answers asynchronously
+	 */
+	@SuppressWarnings("rawtypes")
+	public RatingInfo[] getRatesForServices(RatingEngineClient client, HashMap[] params) {
+		RatingInfo[] ratingInfos = getCachedRates(params);
+		HashMap[] missParams = getMisses(params, ratingInfos);
+		if (missParams.length == 0) {
+			return ratingInfos;
+		}
+
+		// the client may remove it
+		Long deadline = (Long) missParams[0].get("Deadline");
+		RatingInfo[] missRatingInfos = client.getRatesForServices(missParams);
+		if (missRatingInfos == null) {
+			return null;
+		}
+		putRates(missParams, missRatingInfos, deadline);
+		return merge(ratingInfos, missRatingInfos);
+	}
+
+	/**
+	 * Gets the rates for several services from the cache only, for the Rating Engine to be asked for the misses
+	 * separately, such as asynchronously. Their results are then to be given to {@link #putRates(HashMap[], RatingInfo[], Long)}.
+	 *
+	 * @param params the parameters of each rating
+	 * @return the rating information of each, in the same order, null for those not cached or expired
+	 */
+	@SuppressWarnings("rawtypes")
+	public RatingInfo[] getCachedRates(HashMap[] params) {
+		RatingInfo[] ratingInfos = new RatingInfo[params.length];
+		for (int i = 0; i < params.length; i++) {
+			ratingInfos[i] = lookup(getKey(params[i]), (String) params[i].get("SessionId"));
+			if (ratingInfos[i] == null) {
+				misses.incrementAndGet();
+			}
+		}
+		return ratingInfos;
+	}
+
+	/**
+	 * Stores the rates obtained from the Rating Engine for several services.
+	 *
+	 * @param params the parameters of each rating
+	 * @param ratingInfos the rating information of each, in the same order
+	 * @param deadline the deadline the Rating Engine was given, if any, as its failures past it are not cached
+	 */
+	@SuppressWarnings("rawtypes")
+	public void putRates(HashMap[] params, RatingInfo[] ratingInfos, Long deadline) {
+		for (int i = 0; i < params.length && i < ratingInfos.length; i++) {
+			if (ratingInfos[i] != null) {
+				store(getKey(params[i]), ratingInfos[i], deadline);
+			}
+		}
+	}
+
+	/**
+	 * @param params the parameters of each rating
+	 * @param ratingInfos the rating information of each, in the same order, null for those missing
+	 * @return the parameters of the ratings missing, in the same order
+	 */
+	@SuppressWarnings("rawtypes")
+	public static HashMap[] getMisses(HashMap[] params, RatingInfo[] ratingInfos) {
+		int missCount = 0;
+		for (RatingInfo ratingInfo : ratingInfos) {
+			if (ratingInfo == null) {
+				missCount++;
+			}
+		}
+		HashMap[] missParams = new HashMap[missCount];
+		for (int i = 0, m = 0; i < params.length; i++) {
+			if (ratingInfos[i] == null) {
+				missParams[m++] = params[i];
+			}
+		}
+		return missParams;
+	}
+
+	/**
+	 * Fills in the rating information missing with that obtained for the misses.
+	 *
+	 * @param ratingInfos the rating information of each rating, null for those missing
+	 * @param missRatingInfos the rating information of the missing ones, in the same order, or null if none obtained
+	 * @return the rating information of each rating, filled in
+	 */
+	public static RatingInfo[] merge(RatingInfo[] ratingInfos, RatingInfo[] missRatingInfos) {
+		if (missRatingInfos != null) {
+			for (int i = 0, m = 0; i < ratingInfos.length && m < missRatingInfos.length; i++) {
+				if (ratingInfos[i] == null) {
+					ratingInfos[i] = missRatingInfos[m++];
+				}
+			}
+		}
+		return ratingInfos;
+	}
+
+	/**
+	 * @return a copy of the cached rating information, for the given session, or null if not cached or expired
+	 */
+	private RatingInfo lookup(RateKey key, String sessionId) {
+		LinkedHashMap<RateKey, CachedRate> stripe = getStripe(key);
+		long now = System.currentTimeMillis();
+
+		CachedRate cached;
+		synchronized (stripe) {
+			cached = stripe.get(key);
+			if (cached != null && cached.expiryTime <= now) {
+				stripe.remove(key);
+				cached = null;
+			}
+		}
+		if (cached == null) {
+			return null;
+		}
+		if (cached.ratingInfo.getResponseCode() == 0) {
+			hits.incrementAndGet();
+		}
+		else {
+			negativeHits.incrementAndGet();
+		}
+		return copy(cached.ratingInfo, sessionId);
+	}
+
+	private void store(RateKey key, RatingInfo ratingInfo, Long deadline) {
+		long now = System.currentTimeMillis();
+		long ttl;
+		if (ratingInfo.getResponseCode() == 0) {
+			ttl = timeToLive;
+		}
+		else if (deadline != null && now >= deadline) {
+			// failed for lack of time, the Rating Engine may be fine
+			ttl = 0;
+		}
+		else {
+			ttl = negativeTimeToLive;
+		}
+		if (ttl > 0) {
+			LinkedHashMap<RateKey, CachedRate> stripe = getStripe(key);
+			synchronized (stripe) {
+				stripe.put(key, new CachedRate(now + ttl, copy(ratingInfo, null)));
+				evict(stripe, now);
+			}
+		}
+	}
+
+	// ------------------------------ Management ------------------------------
+
+	public int getSize() {
+		int size = 0;
+		for (LinkedHashMap<RateKey, CachedRate> stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	public int getCapacity() {
+		return stripeCapacity * STRIPES;
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	public long getNegativeTimeToLive() {
+		return negativeTimeToLive;
+	}
+
+	public void setNegativeTimeToLive(long negativeTimeToLive) {
+		this.negativeTimeToLive = negativeTimeToLive;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getNegativeHits() {
+		return negativeHits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public double getHitRatio() {
+		long found = hits.get() + negativeHits.get();
+		long total = found + misses.get();
+		return total == 0 ? 0 : (double) found / total;
+	}
+
+	/**
+	 * Invalidates all the cached rates, such as after a tariff change.
+	 *
+	 * @return the number of rates invalidated
+	 */
+	public int invalidateAll() {
+		int removed = 0;
+		for (LinkedHashMap<RateKey, CachedRate> stripe : stripes) {
+			synchronized (stripe) {
+				removed += stripe.size();
+				stripe.clear();
+			}
+		}
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Invalidated all " + removed + " cached rates.");
+		}
+		return removed;
+	}
+
+	/**
+	 * Invalidates the cached rates of a service.
+	 *
+	 * @param serviceId the Service-Id
+	 * @return the number of rates invalidated
+	 */
+	public int invalidateService(long serviceId) {
+		int removed = 0;
+		for (LinkedHashMap<RateKey, CachedRate> stripe : stripes) {
+			synchronized (stripe) {
+				Iterator<RateKey> it = stripe.keySet().iterator();
+				while (it.hasNext()) {
+					if (it.next().serviceId == serviceId) {
+						it.remove();
+						removed++;
+					}
+				}
+			}
+		}
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Invalidated " + removed + " cached rates for Service-Id " + serviceId + ".");
+		}
+		return removed;
+	}
+
+	@Override
+	public String toString() {
+		return "RateCache[Size=" + getSize() + "; Hits=" + hits + "; NegativeHits=" + negativeHits + "; Misses=" + misses + "]";
+	}
+
+	private void evict(LinkedHashMap<RateKey, CachedRate> stripe, long now) {
+		Iterator<CachedRate> it = stripe.values().iterator();
+		int size = stripe.size();
+		while (it.hasNext()) {
+			CachedRate cached = it.next();
+			// least recently used first, expired ones further on are removed when looked up
+			if (size <= stripeCapacity && cached.expiryTime > now) {
+				break;
+			}
+			it.remove();
+			size--;
+		}
+	}
+
+	private LinkedHashMap<RateKey, CachedRate> getStripe(RateKey key) {
+		return stripes[(key.hashCode() & 0x7FFFFFFF) % STRIPES];
+	}
+
+	@SuppressWarnings("rawtypes")
+	private RateKey getKey(HashMap params) {
+		long serviceId = getLong(params.get("ServiceId"));
+		long unitTypeId = getLong(params.get("UnitTypeId"));
+		int subscriptionIdType = (int) getLong(params.get("SubscriptionIdType"));
+		Object time = params.get("BeginTime");
+		return new RateKey(serviceId, unitTypeId, subscriptionIdType, getTariffBand(time != null ? getLong(time) : System.currentTimeMillis()));
+	}
+
+	private int getTariffBand(long time) {
+		if (tariffBandHours.length == 0) {
+			return 0;
+		}
+		int hour = (int) (((time + TimeZone.getDefault().getOffset(time)) / 3600000L) % 24);
+		// before the first band starts it's still the last one, from the day before
+		int band = tariffBandHours.length - 1;
+		for (int i = 0; i < tariffBandHours.length && tariffBandHours[i] <= hour; i++) {
+			band = i;
+		}
+		return band;
+	}
+
+	private static long getLong(Object value) {
+		return value instanceof Number ? ((Number) value).longValue() : -1;
+	}
+
+	private static RatingInfo copy(RatingInfo ratingInfo, String sessionId) {
+		RatingInfo copy = new RatingInfo(ratingInfo.getResponseCode(), sessionId, ratingInfo.getActualTime(), ratingInfo.getCurrentTime(), ratingInfo.getRate(), ratingInfo.getRateDescription(), ratingInfo.getRatePromo());
+		copy.setRatePromo(ratingInfo.getRatePromo());
+		return copy;
+	}
+
+}
@@ -39,4 +39,14 @@ public interface RatingEngineClient {
 
 	@SuppressWarnings("rawtypes")
 	RatingInfo getRateForService(HashMap params);
+
+	/**
+	 * Gets the rates for several services and unit types, such as all those requested in a Credit-Control-Request, in
+	 * a single round trip to the Rating Engine.
+	 *
+	 * @param params the parameters of each rating, as for {@link #getRateForService(HashMap)}
+	 * @return the rating information of each, in the same order, or null if answered asynchronously
+	 */
+	@SuppressWarnings("rawtypes")
+	RatingInfo[] getRatesForServices(HashMap[] params);
 }
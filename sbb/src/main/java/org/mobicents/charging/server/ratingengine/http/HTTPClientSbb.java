@@ -23,10 +23,11 @@
 package org.mobicents.charging.server.ratingengine.http;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -38,8 +39,6 @@ import javax.slee.Sbb;
 import javax.slee.SbbContext;
 import javax.slee.facilities.Tracer;
 import javax.slee.resource.StartActivityException;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 import net.java.client.slee.resource.http.HttpClientActivity;
 import net.java.client.slee.resource.http.HttpClientActivityContextInterfaceFactory;
@@ -52,18 +51,13 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.util.EntityUtils;
 import org.mobicents.charging.server.BaseSbb;
 import org.mobicents.charging.server.DiameterChargingServer;
 import org.mobicents.charging.server.ratingengine.RatingEngineClient;
 import org.mobicents.charging.server.ratingengine.RatingInfo;
 import org.mobicents.slee.SbbContextExt;
-import org.w3c.dom.CharacterData;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 
 /**
  * SBB for Rating Engine Client implementation in HTTP
@@ -84,7 +78,15 @@ public abstract class HTTPClientSbb extends BaseSbb implements Sbb, RatingEngine
 
 	private String httpURLString;
 
-	private boolean sync = true;
+	private boolean sync = false;
+
+	private boolean batch = false;
+
+	// not sent to the Rating Engine, only bounds the time we wait for it
+	private static final String DEADLINE_PARAM = "Deadline";
+
+	// number of ratings in a batch request, whose parameters differing between ratings are suffixed with ".<index>"
+	private static final String RATING_COUNT_PARAM = "RatingCount";
 
 	/*
 	 * (non-Javadoc)
@@ -104,6 +106,10 @@ public abstract class HTTPClientSbb extends BaseSbb implements Sbb, RatingEngine
 			raSbbInterface = (HttpClientResourceAdaptorSbbInterface) ctx.lookup("slee/resources/http-client/sbbinterface");
 
 			httpURLString = (String) ctx.lookup("HTTPURL");
+
+			batch = (Boolean) ctx.lookup("HTTPBatch");
+
+			sync = (Boolean) ctx.lookup("HTTPSync");
 		}
 		catch (NamingException ne) {
 			tracer.severe("Could not set SBB context:", ne);
@@ -118,10 +124,53 @@ public abstract class HTTPClientSbb extends BaseSbb implements Sbb, RatingEngine
 		// NO OP
 	}
 
+	/**
+	 * Ratings asked with one HTTP request each, as the Rating Engine does not support batch requests, all sent at once.
+	 * Their results are collected as the responses come, so that the parent is called back only once, with all.
+	 */
+	@SuppressWarnings("rawtypes")
+	private static class SplitRatings {
+
+		private final HashMap[] params;
+		private final RatingInfo[] ratingInfos;
+		private int pending;
+
+		private SplitRatings(HashMap[] params) {
+			this.params = params;
+			this.ratingInfos = new RatingInfo[params.length];
+			this.pending = params.length;
+		}
+
+		/**
+		 * @return true if this was the last result missing
+		 */
+		private boolean setResult(int index, RatingInfo ratingInfo) {
+			ratingInfos[index] = ratingInfo;
+			return --pending == 0;
+		}
+	}
+
+	/**
+	 * The application data of each of the HTTP requests of {@link SplitRatings}.
+	 */
+	private static class SplitRating {
+
+		private final SplitRatings ratings;
+		private final int index;
+
+		private SplitRating(SplitRatings ratings, int index) {
+			this.ratings = ratings;
+			this.index = index;
+		}
+	}
+
 	// Event handler methods
 	public void onResponseEvent(ResponseEvent event, ActivityContextInterface aci) {
 		HttpResponse response = event.getHttpResponse();
-		if (tracer.isInfoEnabled()) {
+		if (response == null) {
+			tracer.severe("[xx] Failed to send HTTP Request to Rating Engine.", event.getException());
+		}
+		else if (tracer.isInfoEnabled()) {
 			tracer.info("[<<] Received HTTP Response. Status Code = " + response.getStatusLine().getStatusCode());
 			if (tracer.isFineEnabled()) {
 				try {
@@ -137,10 +186,23 @@ public abstract class HTTPClientSbb extends BaseSbb implements Sbb, RatingEngine
 		((HttpClientActivity) aci.getActivity()).endActivity();
 
 		// call back parent
-		HashMap params = (HashMap) event.getRequestApplicationData();
-		RatingInfo ratInfo = buildRatingInfo(response, params);
 		final DiameterChargingServer parent = (DiameterChargingServer) sbbContext.getSbbLocalObject().getParent();
-		parent.getRateForServiceResult(ratInfo);
+		Object requestData = event.getRequestApplicationData();
+		if (requestData instanceof HashMap[]) {
+			HashMap[] params = (HashMap[]) requestData;
+			parent.getRatesForServicesResult(params, response != null ? buildRatingInfos(response, params) : buildFailedRatingInfos(params));
+		}
+		else if (requestData instanceof SplitRating) {
+			SplitRating rating = (SplitRating) requestData;
+			HashMap params = rating.ratings.params[rating.index];
+			if (rating.ratings.setResult(rating.index, response != null ? buildRatingInfo(response, params) : new RatingInfo(-1, (String) params.get("SessionId")))) {
+				parent.getRatesForServicesResult(rating.ratings.params, rating.ratings.ratingInfos);
+			}
+		}
+		else {
+			HashMap params = (HashMap) requestData;
+			parent.getRateForServiceResult(response != null ? buildRatingInfo(response, params) : new RatingInfo(-1, (String) params.get("SessionId")));
+		}
 	}
 
 	//----------------------- HTTP Implementation ------------------------------------//
@@ -159,7 +221,18 @@ public abstract class HTTPClientSbb extends BaseSbb implements Sbb, RatingEngine
 		HttpClient client = raSbbInterface.getHttpClient();
 
 		long bmStart = System.currentTimeMillis();
+		Long deadline = (Long) params.remove(DEADLINE_PARAM);
 		HttpPost httpPost = buildHTTPRequest(params);
+		if (deadline != null) {
+			long remaining = deadline - bmStart;
+			if (remaining <= 0) {
+				tracer.warning("[xx] Deadline exceeded. Not sending HTTP Request to Rating Engine.");
+				return new RatingInfo(-1, sessionIdFromRequest);
+			}
+			// a stalled Rating Engine must not hold the answer past its deadline
+			HttpConnectionParams.setConnectionTimeout(httpPost.getParams(), (int) remaining);
+			HttpConnectionParams.setSoTimeout(httpPost.getParams(), (int) remaining);
+		}
 
 		// Synchronous call
 		HttpResponse response = null;
@@ -179,25 +252,159 @@ public abstract class HTTPClientSbb extends BaseSbb implements Sbb, RatingEngine
 	public RatingInfo getRateForServiceAsync(HashMap params) {
 		String sessionIdFromRequest = params.get("SessionId").toString();
 
+		if (!sendAsync(params, params)) {
+			return new RatingInfo(-1, sessionIdFromRequest);
+		}
+		tracer.info("[>>] Sent HTTP Request to Rating Client in asynchronous mode.");
+
+		return null;
+	}
+
+	public RatingInfo[] getRatesForServices(HashMap[] params) {
+		if (sync) {
+			return batch && params.length > 1 ? getRatesForServicesSync(params) : getRatesForServicesSplitSync(params);
+		}
+		else {
+			return batch && params.length > 1 ? getRatesForServicesAsync(params) : getRatesForServicesSplitAsync(params);
+		}
+	}
+
+	public RatingInfo[] getRatesForServicesSplitSync(HashMap[] params) {
+		// the Rating Engine is asked for each, as it may not support batch requests
+		RatingInfo[] ratingInfos = new RatingInfo[params.length];
+		for (int i = 0; i < params.length; i++) {
+			ratingInfos[i] = getRateForServiceSync(params[i]);
+		}
+		return ratingInfos;
+	}
+
+	public RatingInfo[] getRatesForServicesSplitAsync(HashMap[] params) {
+		// the Rating Engine is asked for each, as it may not support batch requests, but all at once
+		SplitRatings ratings = new SplitRatings(params);
+		for (int i = 0; i < params.length; i++) {
+			if (!sendAsync(params[i], new SplitRating(ratings, i))) {
+				if (i == 0) {
+					return buildFailedRatingInfos(params);
+				}
+				// the ones already sent will call back the parent, with these failed
+				for (int j = i; j < params.length; j++) {
+					ratings.setResult(j, new RatingInfo(-1, (String) params[j].get("SessionId")));
+				}
+				break;
+			}
+		}
+		tracer.info("[>>] Sent " + params.length + " HTTP Requests to Rating Client in asynchronous mode.");
+
+		return null;
+	}
+
+	public RatingInfo[] getRatesForServicesSync(HashMap[] params) {
+		HttpClient client = raSbbInterface.getHttpClient();
+
+		long bmStart = System.currentTimeMillis();
+		Long deadline = null;
+		for (HashMap itemParams : params) {
+			deadline = (Long) itemParams.remove(DEADLINE_PARAM);
+		}
+		HttpPost httpPost = buildHTTPRequest(buildBatchParams(params));
+		if (deadline != null) {
+			long remaining = deadline - bmStart;
+			if (remaining <= 0) {
+				tracer.warning("[xx] Deadline exceeded. Not sending HTTP Request to Rating Engine.");
+				return buildFailedRatingInfos(params);
+			}
+			// a stalled Rating Engine must not hold the answer past its deadline
+			HttpConnectionParams.setConnectionTimeout(httpPost.getParams(), (int) remaining);
+			HttpConnectionParams.setSoTimeout(httpPost.getParams(), (int) remaining);
+		}
+
+		// Synchronous call
+		HttpResponse response = null;
+		try {
+			tracer.info("[>>] Sending HTTP Request for " + params.length + " ratings to Rating Client in synchronous mode.");
+			response = client.execute(httpPost);
+		}
+		catch (IOException e) {
+			tracer.severe("[xx] Failed to send HTTP Request to Rating Engine.");
+			return buildFailedRatingInfos(params);
+		}
+		tracer.info("[%%] Response from Rating Engine took " + (System.currentTimeMillis() - bmStart) + " milliseconds.");
+
+		return buildRatingInfos(response, params);
+	}
+
+	public RatingInfo[] getRatesForServicesAsync(HashMap[] params) {
+		for (HashMap itemParams : params) {
+			itemParams.remove(DEADLINE_PARAM);
+		}
+		if (!sendAsync(buildBatchParams(params), params)) {
+			return buildFailedRatingInfos(params);
+		}
+		tracer.info("[>>] Sent HTTP Request for " + params.length + " ratings to Rating Client in asynchronous mode.");
+
+		return null;
+	}
+
+	/**
+	 * Sends an HTTP Request to the Rating Engine in a new HTTP Client Activity, without waiting for its response. It
+	 * comes later at {@link #onResponseEvent(ResponseEvent, ActivityContextInterface)}, with the application data.
+	 *
+	 * @param params the parameters of the request
+	 * @param requestData the application data to get back with the response
+	 * @return true if sent, false if the activity could not be created
+	 */
+	private boolean sendAsync(HashMap params, Object requestData) {
 		HttpClientActivity clientActivity = null;
 		try {
 			clientActivity = raSbbInterface.createHttpClientActivity(true, null);
 		} catch (StartActivityException e) {
 			tracer.severe("[xx] Failed creating HTTP Client Activity to send HTTP Request to Rating Engine.");
-			return new RatingInfo(-1, sessionIdFromRequest);
+			return false;
 		}
 
 		ActivityContextInterface clientAci = httpClientAci.getActivityContextInterface(clientActivity);
 		clientAci.attach(sbbContext.getSbbLocalObject());
 
+		// the parent supervises the deadline, answering on its own if we are late
+		params.remove(DEADLINE_PARAM);
 		params.put("startTime", System.currentTimeMillis());
 		HttpPost httpPost = buildHTTPRequest(params);
 
 		// Asynchronous call
-		clientActivity.execute(httpPost, params);
-		tracer.info("[>>] Sent HTTP Request to Rating Client in asynchronous mode.");
+		clientActivity.execute(httpPost, requestData);
 
-		return null;
+		return true;
+	}
+
+	/**
+	 * Merges the parameters of several ratings into those of a batch request. The ones with the same value for all
+	 * ratings (eg, SessionId) are sent once, the others are suffixed with ".<index>" of the rating.
+	 */
+	@SuppressWarnings("unchecked")
+	private HashMap buildBatchParams(HashMap[] params) {
+		HashMap batchParams = new HashMap();
+		batchParams.put(RATING_COUNT_PARAM, params.length);
+		HashSet<Object> keys = new HashSet<Object>();
+		for (HashMap itemParams : params) {
+			keys.addAll(itemParams.keySet());
+		}
+		for (Object key : keys) {
+			Object value = params[0].get(key);
+			boolean common = true;
+			for (int i = 1; common && i < params.length; i++) {
+				Object itemValue = params[i].get(key);
+				common = value == null ? itemValue == null : value.equals(itemValue);
+			}
+			if (common) {
+				batchParams.put(key, value);
+			}
+			else {
+				for (int i = 0; i < params.length; i++) {
+					batchParams.put(key + "." + i, params[i].get(key));
+				}
+			}
+		}
+		return batchParams;
 	}
 
 	private HttpPost buildHTTPRequest(HashMap params) {
@@ -234,71 +441,109 @@ public abstract class HTTPClientSbb extends BaseSbb implements Sbb, RatingEngine
 	}
 
 	private RatingInfo buildRatingInfo(HttpResponse response, HashMap params) {
-		String responseBody = "";
-
 		String diameterSessionId = (String) params.get("SessionId");
+
+		// The response body is an XML payload. Let's parse it as it's read.
+		RatingInfo ratingInfo;
+		InputStream content = null;
 		try {
-			responseBody = EntityUtils.toString(response.getEntity());
+			content = response.getEntity().getContent();
+			ratingInfo = RatingResponseParser.parse(content);
 		}
-		catch (Exception e) {
+		catch (IOException e) {
 			tracer.severe("[xx] Failed reading HTTP Rating Engine response body.", e);
 			return new RatingInfo(-1, diameterSessionId);
 		}
-		//tracer.info("Response Body = " + responseBody);
-
-		// The response body is an XML payload. Let's parse it using DOM.
-		int responseCode = -1;
-		String sessionId = diameterSessionId;
-		long actualTime = 0;
-		long currentTime = 0;
-		double rate = 0.0D;
-		String rateDescription = "";
-		String ratePromo = "";
-		try {
-			DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-			InputSource is = new InputSource();
-			is.setCharacterStream(new StringReader(responseBody));
-			Document doc = db.parse(is);
-
-			NodeList nodes = doc.getElementsByTagName("response");
-			Element element = (Element) nodes.item(0);
-
-			responseCode = Integer.parseInt(getCharacterDataFromElement((Element) element.getElementsByTagName("responseCode").item(0)));
-			sessionId = getCharacterDataFromElement((Element) element.getElementsByTagName("sessionId").item(0));
-			if (!diameterSessionId.equals(sessionId)){
-				tracer.warning("SessionID Mismatch! Something is wrong with the response from the Rating Engine. Expected '" + diameterSessionId + "', received '"+sessionId+"'");
+		catch (Exception e) {
+			tracer.warning("[xx] Malformed response from Rating Engine for request:\n" + params, e);
+			return new RatingInfo(-1, diameterSessionId);
+		}
+		finally {
+			if (content != null) {
+				try {
+					// releases the connection, even if not fully read
+					content.close();
+				}
+				catch (IOException e) {
+					// nothing else to do with it
+				}
 			}
-			actualTime = Long.parseLong(getCharacterDataFromElement((Element) element.getElementsByTagName("actualTime").item(0)));
-			currentTime = Long.parseLong(getCharacterDataFromElement((Element) element.getElementsByTagName("currentTime").item(0)));
-			rate = Double.parseDouble(getCharacterDataFromElement((Element) element.getElementsByTagName("rate").item(0)));
-			rateDescription = getCharacterDataFromElement((Element) element.getElementsByTagName("rateDescription").item(0));
-			ratePromo = getCharacterDataFromElement((Element) element.getElementsByTagName("ratePromo").item(0));
+		}
 
-			tracer.info(
-					"responseCode="+responseCode+"; "+
-							"sessionId="+sessionId+"; "+
-							"actualTime="+actualTime+"; "+
-							"currentTime="+currentTime+"; "+
-							"rate="+rate+"; "+
-							"rateDescription="+rateDescription+"; "+
-							"ratePromo="+ratePromo);
+		traceRatingInfo(ratingInfo, diameterSessionId);
+
+		return ratingInfo;
+	}
 
+	private RatingInfo[] buildRatingInfos(HttpResponse response, HashMap[] params) {
+		// The response body is an XML payload, with a response per rating. Let's parse it as it's read.
+		RatingInfo[] ratingInfos;
+		InputStream content = null;
+		try {
+			content = response.getEntity().getContent();
+			ratingInfos = RatingResponseParser.parseAll(content, params.length);
+			if (ratingInfos.length < params.length) {
+				tracer.severe("[xx] Rating Engine answered " + ratingInfos.length + " of " + params.length + " ratings in batch request. If it does not support batch requests, HTTPBatch must be false.");
+				RatingInfo[] allRatingInfos = new RatingInfo[params.length];
+				System.arraycopy(ratingInfos, 0, allRatingInfos, 0, ratingInfos.length);
+				ratingInfos = allRatingInfos;
+			}
+		}
+		catch (IOException e) {
+			tracer.severe("[xx] Failed reading HTTP Rating Engine response body.", e);
+			return buildFailedRatingInfos(params);
 		}
 		catch (Exception e) {
-			tracer.warning("[xx] Malformed response from Rating Engine for request:\n" + params + "\n\nResponse Received was:"+responseBody, e);
-			return new RatingInfo(-1, diameterSessionId);
+			tracer.warning("[xx] Malformed response from Rating Engine for batch request of " + params.length + " ratings.", e);
+			return buildFailedRatingInfos(params);
+		}
+		finally {
+			if (content != null) {
+				try {
+					// releases the connection, even if not fully read
+					content.close();
+				}
+				catch (IOException e) {
+					// nothing else to do with it
+				}
+			}
 		}
 
-		return new RatingInfo(responseCode, sessionId, actualTime, currentTime, rate, rateDescription, ratePromo);
+		for (int i = 0; i < ratingInfos.length; i++) {
+			String diameterSessionId = (String) params[i].get("SessionId");
+			if (ratingInfos[i] == null) {
+				tracer.warning("[xx] Missing or malformed response from Rating Engine for request:\n" + params[i]);
+				ratingInfos[i] = new RatingInfo(-1, diameterSessionId);
+			}
+			else {
+				traceRatingInfo(ratingInfos[i], diameterSessionId);
+			}
+		}
+		return ratingInfos;
+	}
+
+	private RatingInfo[] buildFailedRatingInfos(HashMap[] params) {
+		RatingInfo[] ratingInfos = new RatingInfo[params.length];
+		for (int i = 0; i < params.length; i++) {
+			ratingInfos[i] = new RatingInfo(-1, (String) params[i].get("SessionId"));
+		}
+		return ratingInfos;
 	}
 
-	private String getCharacterDataFromElement(Element e) {
-		Node child = e.getFirstChild();
-		if (child instanceof CharacterData) {
-			CharacterData cd = (CharacterData) child;
-			return cd.getData();
+	private void traceRatingInfo(RatingInfo ratingInfo, String diameterSessionId) {
+		if (!diameterSessionId.equals(ratingInfo.getSessionId())) {
+			tracer.warning("SessionID Mismatch! Something is wrong with the response from the Rating Engine. Expected '" + diameterSessionId + "', received '" + ratingInfo.getSessionId() + "'");
+		}
+		if (tracer.isInfoEnabled()) {
+			tracer.info(
+					"responseCode="+ratingInfo.getResponseCode()+"; "+
+							"sessionId="+ratingInfo.getSessionId()+"; "+
+							"actualTime="+ratingInfo.getActualTime()+"; "+
+							"currentTime="+ratingInfo.getCurrentTime()+"; "+
+							"rate="+ratingInfo.getRate()+"; "+
+							"rateDescription="+ratingInfo.getRateDescription()+"; "+
+							"ratePromo="+ratingInfo.getRatePromo());
 		}
-		return "?";
 	}
 
 }
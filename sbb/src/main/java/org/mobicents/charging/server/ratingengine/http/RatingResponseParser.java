@@ -0,0 +1,227 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.ratingengine.http;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.mobicents.charging.server.ratingengine.RatingInfo;
+
+/**
+ * Streaming parser for the Rating Engine response, read directly from the HTTP entity stream:
+ *
+ * <pre>
+ * &lt;response&gt;
+ *   &lt;responseCode&gt;0&lt;/responseCode&gt;
+ *   &lt;sessionId&gt;...&lt;/sessionId&gt;
+ *   &lt;actualTime&gt;...&lt;/actualTime&gt;
+ *   &lt;currentTime&gt;...&lt;/currentTime&gt;
+ *   &lt;rate&gt;1.0&lt;/rate&gt;
+ *   &lt;rateDescription&gt;...&lt;/rateDescription&gt;
+ *   &lt;ratePromo&gt;...&lt;/ratePromo&gt;
+ * &lt;/response&gt;
+ * </pre>
+ *
+ * No DOM is built and the factory is shared, so parsing a response only allocates the reader and the values. Only the
+ * first occurrence of each element inside the response is used, and parsing stops at the end of the response. Batch
+ * responses carry one such response per rating requested.
+ *
+ * @author ammendonca
+ */
+public final class RatingResponseParser {
+
+	// thread safe once configured
+	private static final XMLInputFactory factory = createFactory();
+
+	private static final int RESPONSE_CODE = 0;
+	private static final int SESSION_ID = 1;
+	private static final int ACTUAL_TIME = 2;
+	private static final int CURRENT_TIME = 3;
+	private static final int RATE = 4;
+	private static final int RATE_DESCRIPTION = 5;
+	private static final int RATE_PROMO = 6;
+
+	private RatingResponseParser() {
+	}
+
+	private static XMLInputFactory createFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		return factory;
+	}
+
+	/**
+	 * Parses a Rating Engine response.
+	 *
+	 * @param in the response body, not closed
+	 * @return the rating information
+	 * @throws XMLStreamException if the response is not well formed XML
+	 * @throws IllegalArgumentException if the response is missing a value, or a value is not a number
+	 */
+	public static RatingInfo parse(InputStream in) throws XMLStreamException {
+		XMLStreamReader reader = factory.createXMLStreamReader(in);
+		try {
+			if (!nextResponse(reader)) {
+				throw new IllegalArgumentException("No response in Rating Engine response.");
+			}
+			return toRatingInfo(readValues(reader));
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Parses a batch Rating Engine response, with a response element per rating requested, in the same order:
+	 * &lt;responses&gt;&lt;response&gt;...&lt;/response&gt;&lt;response&gt;...&lt;/response&gt;&lt;/responses&gt;
+	 *
+	 * @param in the response body, not closed
+	 * @param count the number of ratings requested
+	 * @return the rating information of each, null for those missing a value. Shorter than requested if the response
+	 *         has fewer response elements, such as from a Rating Engine not supporting batch requests
+	 * @throws XMLStreamException if the response is not well formed XML
+	 */
+	public static RatingInfo[] parseAll(InputStream in, int count) throws XMLStreamException {
+		RatingInfo[] ratingInfos = new RatingInfo[count];
+		int found = 0;
+		XMLStreamReader reader = factory.createXMLStreamReader(in);
+		try {
+			for (; found < count && nextResponse(reader); found++) {
+				try {
+					ratingInfos[found] = toRatingInfo(readValues(reader));
+				}
+				catch (IllegalArgumentException e) {
+					// this one is malformed, the others may still be fine
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		if (found < count) {
+			RatingInfo[] foundRatingInfos = new RatingInfo[found];
+			System.arraycopy(ratingInfos, 0, foundRatingInfos, 0, found);
+			return foundRatingInfos;
+		}
+		return ratingInfos;
+	}
+
+	/**
+	 * Moves the reader to the start of the next response element.
+	 *
+	 * @return true if found, false if the end of the document was reached
+	 */
+	private static boolean nextResponse(XMLStreamReader reader) throws XMLStreamException {
+		while (reader.hasNext()) {
+			if (reader.next() == XMLStreamConstants.START_ELEMENT && "response".equals(reader.getLocalName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the values of a response element, leaving the reader at its end.
+	 */
+	private static String[] readValues(XMLStreamReader reader) throws XMLStreamException {
+		String[] values = new String[7];
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				int index = getIndex(reader.getLocalName());
+				if (index >= 0 && values[index] == null) {
+					// leaves the reader at the end element
+					values[index] = reader.getElementText();
+				}
+				else {
+					depth++;
+				}
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+		return values;
+	}
+
+	private static RatingInfo toRatingInfo(String[] values) {
+		if (values[RESPONSE_CODE] == null) {
+			throw new IllegalArgumentException("No responseCode in Rating Engine response.");
+		}
+
+		RatingInfo ratingInfo = new RatingInfo(Integer.parseInt(values[RESPONSE_CODE].trim()), getText(values[SESSION_ID]), getLong(values[ACTUAL_TIME]),
+				getLong(values[CURRENT_TIME]), getDouble(values[RATE]), getText(values[RATE_DESCRIPTION]), null);
+		// not set by the constructor
+		ratingInfo.setRatePromo(getText(values[RATE_PROMO]));
+		return ratingInfo;
+	}
+
+	private static int getIndex(String name) {
+		switch (name) {
+		case "responseCode":
+			return RESPONSE_CODE;
+		case "sessionId":
+			return SESSION_ID;
+		case "actualTime":
+			return ACTUAL_TIME;
+		case "currentTime":
+			return CURRENT_TIME;
+		case "rate":
+			return RATE;
+		case "rateDescription":
+			return RATE_DESCRIPTION;
+		case "ratePromo":
+			return RATE_PROMO;
+		default:
+			return -1;
+		}
+	}
+
+	private static String getText(String value) {
+		// as the DOM parsing did for missing or empty elements
+		return value == null || value.length() == 0 ? "?" : value;
+	}
+
+	private static long getLong(String value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Missing numeric value in Rating Engine response.");
+		}
+		return Long.parseLong(value.trim());
+	}
+
+	private static double getDouble(String value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Missing numeric value in Rating Engine response.");
+		}
+		return Double.parseDouble(value.trim());
+	}
+
+}
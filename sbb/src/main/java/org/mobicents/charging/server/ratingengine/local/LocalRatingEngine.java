@@ -0,0 +1,154 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.ratingengine.local;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Properties;
+
+import javax.slee.facilities.Tracer;
+
+import org.mobicents.charging.server.ratingengine.RatingEngineClient;
+import org.mobicents.charging.server.ratingengine.RatingInfo;
+
+/**
+ * Rating Engine Client implementation rating in-process, shared by all the sessions, with the tariffs compiled from
+ * the tariffs.properties file into a {@link TariffPlan}. If there is no such file, everything is rated at 1.0.
+ *
+ * @author ammendonca
+ */
+public final class LocalRatingEngine implements RatingEngineClient {
+
+	private static final String TARIFFS_FILE = "tariffs.properties";
+
+	// no tariff applies, or the parameters to find it are missing
+	private static final int NO_TARIFF_RESPONSE_CODE = -1;
+
+	private static LocalRatingEngine instance = null;
+
+	private final Tracer tracer;
+
+	private volatile TariffPlan tariffPlan;
+
+	private LocalRatingEngine(Tracer tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Starts the local rating engine, if not yet started.
+	 *
+	 * @param tracer the tracer to log to
+	 * @return the local rating engine
+	 */
+	public static synchronized LocalRatingEngine start(Tracer tracer) {
+		if (instance == null) {
+			instance = new LocalRatingEngine(tracer);
+			instance.init();
+		}
+		return instance;
+	}
+
+	/**
+	 * @return the local rating engine, or null if not started
+	 */
+	public static synchronized LocalRatingEngine getInstance() {
+		return instance;
+	}
+
+	@Override
+	public void init() {
+		// TODO: Need to port this to database.
+		InputStream in = this.getClass().getClassLoader().getResourceAsStream(TARIFFS_FILE);
+		if (in == null) {
+			tracer.warning("[!!] No " + TARIFFS_FILE + " file found. Rating everything at 1.0!");
+			return;
+		}
+		try {
+			Properties props = new Properties();
+			props.load(in);
+			this.tariffPlan = TariffPlan.compile(props, tracer);
+		}
+		catch (Exception e) {
+			tracer.warning("[!!] Unable to load tariffs from " + TARIFFS_FILE + " file. Rating everything at 1.0!", e);
+		}
+		finally {
+			try {
+				in.close();
+			}
+			catch (Exception e) {
+				// nothing else to do with it
+			}
+		}
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public RatingInfo getRateForService(HashMap params) {
+		String sessionId = (String) params.get("SessionId");
+		TariffPlan tariffPlan = this.tariffPlan;
+		if (tariffPlan == null) {
+			RatingInfo ri = new RatingInfo(0, sessionId);
+			ri.setRate(1.0);
+			return ri;
+		}
+
+		Number serviceId = (Number) params.get("ServiceId");
+		Number unitTypeId = (Number) params.get("UnitTypeId");
+		Number units = (Number) params.get("UnitValue");
+		Number actualTime = (Number) params.get("ActualTime");
+		if (serviceId == null || unitTypeId == null) {
+			tracer.warning("[xx] SID<" + sessionId + "> Missing Service-Id or Unit-Type-Id to rate with.");
+			return new RatingInfo(NO_TARIFF_RESPONSE_CODE, sessionId);
+		}
+
+		long time = actualTime != null ? actualTime.longValue() : System.currentTimeMillis();
+		int hourOfWeek = tariffPlan.getHourOfWeek(time);
+		int subscriberClass = tariffPlan.getSubscriberClass((String) params.get("SubscriptionIdData"));
+		TariffPlan.Tariff tariff = tariffPlan.getTariff(serviceId.longValue(), unitTypeId.intValue(), subscriberClass, hourOfWeek);
+		if (tariff == null) {
+			tracer.warning("[xx] SID<" + sessionId + "> No tariff for Service-Id " + serviceId + ", Unit-Type-Id " + unitTypeId + " at hour " + hourOfWeek + " of the week.");
+			return new RatingInfo(NO_TARIFF_RESPONSE_CODE, sessionId);
+		}
+
+		RatingInfo ri = new RatingInfo(0, sessionId);
+		ri.setActualTime(time);
+		ri.setRate(tariff.getRate(hourOfWeek, units != null ? units.longValue() : 0));
+		ri.setRateDescription(tariff.getName());
+		if (tracer.isFineEnabled()) {
+			tracer.fine("[$$] SID<" + sessionId + "> Rated Service-Id " + serviceId + ", Unit-Type-Id " + unitTypeId + " at " + ri.getRate() + " with tariff '" + tariff.getName() + "'.");
+		}
+
+		return ri;
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public RatingInfo[] getRatesForServices(HashMap[] params) {
+		RatingInfo[] ratingInfos = new RatingInfo[params.length];
+		for (int i = 0; i < params.length; i++) {
+			ratingInfos[i] = getRateForService(params[i]);
+		}
+		return ratingInfos;
+	}
+
+}
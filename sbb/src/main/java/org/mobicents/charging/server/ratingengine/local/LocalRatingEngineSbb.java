@@ -31,11 +31,9 @@ import javax.slee.Sbb;
 import javax.slee.SbbContext;
 import javax.slee.facilities.Tracer;
 import java.util.HashMap;
-import java.util.Map;
-import java.util.Properties;
 
 /**
- * SBB for Rating Engine Client implementation sample. This always returns success.
+ * SBB for Rating Engine Client implementation sample. Delegates to the shared {@link LocalRatingEngine}.
  *
  * @author ammendonca
  */
@@ -50,56 +48,21 @@ public class LocalRatingEngineSbb extends BaseSbb implements Sbb, RatingEngineCl
 		this.tracer = sbbContext.getTracer("CS-RF-SMPL");
 	}
 
-	private HashMap<Integer, Integer> serviceIdUnits;
-
 	@Override
 	public void init() {
-		// Load service id units (Unit Determination)
-		// TODO: Need to port this to database.
-		try {
-			Properties props = new Properties();
-			props.load(this.getClass().getClassLoader().getResourceAsStream("serviceid-units.properties"));
-			serviceIdUnits = new HashMap<Integer, Integer>();
-			for (Object key : props.keySet()) {
-				String serviceId = ((String) key).trim();
-				String unitTypeID = props.getProperty(serviceId).trim();
-				serviceIdUnits.put(Integer.valueOf(serviceId),Integer.valueOf(unitTypeID));
-			}
-			if (tracer.isInfoEnabled()) {
-				tracer.info("[--] Loaded service id units from properties file. Dumping info.");
-			}
-			// dump info...
-			for (Object o : serviceIdUnits.entrySet()) {
-				Map.Entry entry = (Map.Entry) o;
-				String key = null;
-				String val = null;
-				if (entry.getKey() != null) {
-					key = entry.getKey().toString();
-				}
-				if (entry.getValue() != null) {
-					val = entry.getValue().toString();
-				}
-				if (tracer.isInfoEnabled()) {
-					tracer.info("[--] Service-ID:" + key + " => Unit-Type-ID:" + val);
-				}
-			}
-		}
-		catch (Exception e) {
-			tracer.warning("[!!] Unable to load service id units from properties file. Allowing everything!", e);
-			// FIXME: Need something to bypass or use default unit determination
-		}
+		LocalRatingEngine.start(tracer);
 	}
 
 	@Override
+	@SuppressWarnings("rawtypes")
 	public RatingInfo getRateForService(HashMap params) {
-		String sessionId = (String) params.get("SessionId");
-		if (tracer.isInfoEnabled()) {
-			tracer.info("[$$] SID<" + sessionId + "> Performing rating with the SIMPLE Rating Module.");
-		}
-		RatingInfo ri = new RatingInfo(0, sessionId);
-		ri.setRate(1.0);
+		return LocalRatingEngine.start(tracer).getRateForService(params);
+	}
 
-		return ri;
+	@Override
+	@SuppressWarnings("rawtypes")
+	public RatingInfo[] getRatesForServices(HashMap[] params) {
+		return LocalRatingEngine.start(tracer).getRatesForServices(params);
 	}
 
 }
@@ -0,0 +1,442 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.ratingengine.local;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import javax.slee.facilities.Tracer;
+
+/**
+ * Tariff plan of the local rating engine, compiled once from the tariffs properties into an immutable structure, so
+ * that a rate is decided without allocating and without locking. Each tariff is keyed by service id, unit type id and
+ * subscriber class, any of which may be '*', and is made of time bands (days of the week and hours of the day), each
+ * with volume tiers:
+ * 
+ * <pre>
+ * &lt;service-id&gt;.&lt;unit-type-id&gt;.&lt;subscriber-class&gt; = &lt;days&gt;/&lt;hours&gt;:&lt;rate&gt;[,&lt;units&gt;:&lt;rate&gt;...][; ...]
+ * class.&lt;subscriber-class&gt; = &lt;prefix&gt;[,&lt;prefix&gt;...]
+ * timezone = &lt;time zone id&gt;
+ * </pre>
+ * 
+ * Tariffs are kept in an open addressing hash table, probed from the most to the least specific key until one has a
+ * band for the hour of the week, which is then a table lookup. Volume tiers are binary searched. Subscriber classes are
+ * given by the longest prefix of the Subscription-Id-Data, binary searched among the sorted prefixes.
+ * 
+ * Volume tiers are per request: they apply to the units the client requested in each (Unit-Value), not to the usage
+ * accumulated in the session, nor to the units granted when quota dimensioning is on.
+ * 
+ * @author ammendonca
+ */
+public final class TariffPlan {
+
+	/**
+	 * Subscriber class of the subscribers not in any of the configured ones.
+	 */
+	public static final int NO_CLASS = -1;
+
+	private static final String CLASS_PREFIX = "class.";
+	private static final String TIMEZONE_KEY = "timezone";
+	private static final String ANY = "*";
+
+	private static final long ANY_SERVICE = 1L << 32;
+	private static final int ANY_UNIT_TYPE = 0xFF;
+	private static final int ANY_CLASS = 0xFF;
+
+	private static final int HOURS_PER_DAY = 24;
+	private static final int HOURS_PER_WEEK = 7 * HOURS_PER_DAY;
+	private static final long MILLIS_PER_HOUR = 3600000L;
+	// 1970-01-01 was a Thursday, 3 days after the Monday the week starts at
+	private static final int EPOCH_HOUR_OF_WEEK = 3 * HOURS_PER_DAY;
+
+	private static final String[] DAYS = { "MON", "TUE", "WED", "THU", "FRI", "SAT", "SUN" };
+
+	private static final long EMPTY_KEY = -1;
+
+	/**
+	 * A tariff, with the time band of each hour of the week and the volume tiers of each band.
+	 */
+	public static final class Tariff {
+
+		private final String name;
+		// -1 where no band applies
+		private final byte[] bandOfHour;
+		// ascending, from 0, for each band
+		private final long[][] tierUnits;
+		private final double[][] tierRates;
+
+		private Tariff(String name, byte[] bandOfHour, long[][] tierUnits, double[][] tierRates) {
+			this.name = name;
+			this.bandOfHour = bandOfHour;
+			this.tierUnits = tierUnits;
+			this.tierRates = tierRates;
+		}
+
+		/**
+		 * @return the tariff key, as configured
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @param hourOfWeek the hour of the week, as given by {@link TariffPlan#getHourOfWeek(long)}
+		 * @param units the units to rate
+		 * @return the rate of the highest volume tier reached by the units, in the band of the given hour
+		 */
+		public double getRate(int hourOfWeek, long units) {
+			int band = bandOfHour[hourOfWeek];
+			long[] bandTierUnits = tierUnits[band];
+			int low = 0;
+			int high = bandTierUnits.length - 1;
+			while (low < high) {
+				int mid = (low + high + 1) >>> 1;
+				if (bandTierUnits[mid] <= units) {
+					low = mid;
+				}
+				else {
+					high = mid - 1;
+				}
+			}
+			return tierRates[band][low];
+		}
+
+		private boolean appliesAt(int hourOfWeek) {
+			return bandOfHour[hourOfWeek] >= 0;
+		}
+	}
+
+	private final TimeZone timeZone;
+
+	// tariffs by key, in an open addressing hash table
+	private final long[] keys;
+	private final Tariff[] tariffs;
+	private final int shift;
+
+	// subscriber class prefixes, sorted, with the index of the longest other prefix of each (-1 if none) and its class
+	private final String[] prefixes;
+	private final int[] prefixParents;
+	private final int[] prefixClasses;
+
+	private TariffPlan(TimeZone timeZone, Map<Long, Tariff> tariffsByKey, TreeMap<String, Integer> classesByPrefix) {
+		this.timeZone = timeZone;
+
+		int capacity = Integer.highestOneBit(Math.max(tariffsByKey.size(), 1) * 4);
+		this.keys = new long[capacity];
+		this.tariffs = new Tariff[capacity];
+		this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+		Arrays.fill(keys, EMPTY_KEY);
+		for (Map.Entry<Long, Tariff> entry : tariffsByKey.entrySet()) {
+			int slot = slot(entry.getKey());
+			while (keys[slot] != EMPTY_KEY) {
+				slot = (slot + 1) & (capacity - 1);
+			}
+			keys[slot] = entry.getKey();
+			tariffs[slot] = entry.getValue();
+		}
+
+		this.prefixes = classesByPrefix.keySet().toArray(new String[classesByPrefix.size()]);
+		this.prefixParents = new int[prefixes.length];
+		this.prefixClasses = new int[prefixes.length];
+		for (int i = 0; i < prefixes.length; i++) {
+			prefixClasses[i] = classesByPrefix.get(prefixes[i]);
+			prefixParents[i] = findPrefix(prefixes[i], i - 1);
+		}
+	}
+
+	/**
+	 * Compiles the tariff plan from its properties. Malformed entries are logged and ignored.
+	 * 
+	 * @param props the tariffs, subscriber classes and time zone
+	 * @param tracer the tracer to log to
+	 * @return the compiled tariff plan
+	 */
+	public static TariffPlan compile(Properties props, Tracer tracer) {
+		String timeZoneId = props.getProperty(TIMEZONE_KEY);
+		TimeZone timeZone = timeZoneId != null ? TimeZone.getTimeZone(timeZoneId.trim()) : TimeZone.getDefault();
+
+		// Subscriber classes first, as tariffs refer to them
+		HashMap<String, Integer> classes = new HashMap<String, Integer>();
+		TreeMap<String, Integer> classesByPrefix = new TreeMap<String, Integer>();
+		for (String key : props.stringPropertyNames()) {
+			if (!key.startsWith(CLASS_PREFIX)) {
+				continue;
+			}
+			String className = key.substring(CLASS_PREFIX.length()).trim();
+			if (className.length() == 0 || className.equals(ANY) || classes.size() == ANY_CLASS) {
+				tracer.warning("[!!] Ignoring subscriber class '" + key + "'. It must be named, and up to " + ANY_CLASS + " are allowed.");
+				continue;
+			}
+			Integer classIndex = classes.size();
+			classes.put(className, classIndex);
+			for (String prefix : props.getProperty(key).split(",")) {
+				prefix = prefix.trim();
+				if (prefix.length() > 0) {
+					classesByPrefix.put(prefix, classIndex);
+				}
+			}
+		}
+
+		HashMap<Long, Tariff> tariffsByKey = new HashMap<Long, Tariff>();
+		for (String key : props.stringPropertyNames()) {
+			if (key.startsWith(CLASS_PREFIX) || key.equals(TIMEZONE_KEY)) {
+				continue;
+			}
+			String value = props.getProperty(key).trim();
+			try {
+				String[] keyParts = key.trim().split("\\.");
+				if (keyParts.length != 3) {
+					throw new IllegalArgumentException("Key must be <service-id>.<unit-type-id>.<subscriber-class>");
+				}
+				long serviceId = keyParts[0].equals(ANY) ? ANY_SERVICE : parseInRange(keyParts[0], ANY_SERVICE - 1);
+				int unitTypeId = keyParts[1].equals(ANY) ? ANY_UNIT_TYPE : (int) parseInRange(keyParts[1], ANY_UNIT_TYPE - 1);
+				int subscriberClass = ANY_CLASS;
+				if (!keyParts[2].equals(ANY)) {
+					Integer classIndex = classes.get(keyParts[2]);
+					if (classIndex == null) {
+						throw new IllegalArgumentException("Unknown subscriber class '" + keyParts[2] + "'");
+					}
+					subscriberClass = classIndex;
+				}
+				tariffsByKey.put(key(serviceId, unitTypeId, subscriberClass), parseTariff(key.trim(), value));
+			}
+			catch (Exception e) {
+				tracer.warning("[!!] Ignoring malformed tariff '" + key + " = " + value + "'. " + e.getMessage());
+			}
+		}
+
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[--] Compiled " + tariffsByKey.size() + " tariff(s) and " + classes.size() + " subscriber class(es), in time zone " + timeZone.getID() + ".");
+		}
+		return new TariffPlan(timeZone, tariffsByKey, classesByPrefix);
+	}
+
+	/**
+	 * @param subscriptionIdData the Subscription-Id-Data of the subscriber, or null if unknown
+	 * @return the class of the subscriber, by the longest prefix configured, or {@link #NO_CLASS} if none
+	 */
+	public int getSubscriberClass(String subscriptionIdData) {
+		if (subscriptionIdData == null || prefixes.length == 0) {
+			return NO_CLASS;
+		}
+		int i = findPrefix(subscriptionIdData, prefixes.length - 1);
+		return i >= 0 ? prefixClasses[i] : NO_CLASS;
+	}
+
+	/**
+	 * @param time the time of the rating, in milliseconds since the epoch
+	 * @return the hour of the week, in the time zone of the plan, from 0 at Monday 00h
+	 */
+	public int getHourOfWeek(long time) {
+		long hours = floorDiv(time + timeZone.getOffset(time), MILLIS_PER_HOUR);
+		return (int) floorMod(hours + EPOCH_HOUR_OF_WEEK, HOURS_PER_WEEK);
+	}
+
+	/**
+	 * Finds the most specific tariff with a band for the given hour of the week. A more specific service id comes
+	 * first, then unit type id, then subscriber class.
+	 * 
+	 * @param serviceId the service id
+	 * @param unitTypeId the unit type id
+	 * @param subscriberClass the subscriber class, as given by {@link #getSubscriberClass(String)}
+	 * @param hourOfWeek the hour of the week, as given by {@link #getHourOfWeek(long)}
+	 * @return the tariff, or null if none applies
+	 */
+	public Tariff getTariff(long serviceId, int unitTypeId, int subscriberClass, int hourOfWeek) {
+		// those out of range can only match '*'
+		int first = serviceId < 0 || serviceId >= ANY_SERVICE ? 4 : 0;
+		if (unitTypeId < 0 || unitTypeId >= ANY_UNIT_TYPE) {
+			unitTypeId = ANY_UNIT_TYPE;
+		}
+		if (subscriberClass < 0) {
+			subscriberClass = ANY_CLASS;
+		}
+		for (int i = first; i < 8; i++) {
+			Tariff tariff = get(key((i & 4) == 0 ? serviceId : ANY_SERVICE, (i & 2) == 0 ? unitTypeId : ANY_UNIT_TYPE, (i & 1) == 0 ? subscriberClass : ANY_CLASS));
+			if (tariff != null && tariff.appliesAt(hourOfWeek)) {
+				return tariff;
+			}
+		}
+		return null;
+	}
+
+	private Tariff get(long key) {
+		int slot = slot(key);
+		long slotKey;
+		while ((slotKey = keys[slot]) != EMPTY_KEY) {
+			if (slotKey == key) {
+				return tariffs[slot];
+			}
+			slot = (slot + 1) & (keys.length - 1);
+		}
+		return null;
+	}
+
+	private int slot(long key) {
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+	}
+
+	private static long key(long serviceId, int unitTypeId, int subscriberClass) {
+		return serviceId << 16 | unitTypeId << 8 | subscriberClass;
+	}
+
+	/**
+	 * @return the index of the longest prefix of the string among the prefixes up to the given index, or -1 if none
+	 */
+	private int findPrefix(String str, int last) {
+		int i = Arrays.binarySearch(prefixes, 0, last + 1, str);
+		if (i < 0) {
+			// the greatest one before it. Any prefix of the string is also a prefix of this one
+			i = -i - 2;
+		}
+		while (i >= 0 && !str.startsWith(prefixes[i])) {
+			i = prefixParents[i];
+		}
+		return i;
+	}
+
+	private static Tariff parseTariff(String name, String value) {
+		byte[] bandOfHour = new byte[HOURS_PER_WEEK];
+		Arrays.fill(bandOfHour, (byte) -1);
+		ArrayList<long[]> tierUnits = new ArrayList<long[]>();
+		ArrayList<double[]> tierRates = new ArrayList<double[]>();
+
+		for (String band : value.split(";")) {
+			band = band.trim();
+			int ratesStart = band.indexOf(':');
+			int hoursStart = band.indexOf('/');
+			if (ratesStart < 0 || hoursStart < 0 || hoursStart > ratesStart) {
+				throw new IllegalArgumentException("Band must be <days>/<hours>:<rate>[,<units>:<rate>...]");
+			}
+			if (tierUnits.size() == Byte.MAX_VALUE) {
+				throw new IllegalArgumentException("Up to " + Byte.MAX_VALUE + " bands are allowed");
+			}
+			boolean[] days = parseRanges(band.substring(0, hoursStart).trim(), 7, true);
+			boolean[] hours = parseRanges(band.substring(hoursStart + 1, ratesStart).trim(), HOURS_PER_DAY, false);
+
+			// earlier bands take precedence where they overlap
+			byte bandIndex = (byte) tierUnits.size();
+			for (int day = 0; day < 7; day++) {
+				for (int hour = 0; hour < HOURS_PER_DAY; hour++) {
+					int hourOfWeek = day * HOURS_PER_DAY + hour;
+					if (days[day] && hours[hour] && bandOfHour[hourOfWeek] < 0) {
+						bandOfHour[hourOfWeek] = bandIndex;
+					}
+				}
+			}
+
+			TreeMap<Long, Double> tiers = new TreeMap<Long, Double>();
+			String[] tierParts = band.substring(ratesStart + 1).split(",");
+			tiers.put(0L, parseRate(tierParts[0]));
+			for (int i = 1; i < tierParts.length; i++) {
+				int unitsEnd = tierParts[i].indexOf(':');
+				if (unitsEnd < 0) {
+					throw new IllegalArgumentException("Volume tier must be <units>:<rate>");
+				}
+				tiers.put(parseInRange(tierParts[i].substring(0, unitsEnd), Long.MAX_VALUE), parseRate(tierParts[i].substring(unitsEnd + 1)));
+			}
+			long[] units = new long[tiers.size()];
+			double[] rates = new double[tiers.size()];
+			int i = 0;
+			for (Map.Entry<Long, Double> tier : tiers.entrySet()) {
+				units[i] = tier.getKey();
+				rates[i++] = tier.getValue();
+			}
+			tierUnits.add(units);
+			tierRates.add(rates);
+		}
+
+		return new Tariff(name, bandOfHour, tierUnits.toArray(new long[tierUnits.size()][]), tierRates.toArray(new double[tierRates.size()][]));
+	}
+
+	/**
+	 * Parses a comma separated list of single values or start-end ranges, such as MON-FRI or 08-20,22-24. Day ranges
+	 * include their end, hour ranges do not. Ranges may wrap around, such as FRI-MON or 20-08.
+	 */
+	private static boolean[] parseRanges(String ranges, int size, boolean isDays) {
+		boolean[] result = new boolean[size];
+		if (ranges.equals(ANY)) {
+			Arrays.fill(result, true);
+			return result;
+		}
+		for (String range : ranges.split(",")) {
+			range = range.trim();
+			int separator = range.indexOf('-');
+			int start = parseRangeValue(separator < 0 ? range : range.substring(0, separator), size, isDays);
+			int end = separator < 0 ? start + 1 : parseRangeValue(range.substring(separator + 1), size, isDays) + (isDays ? 1 : 0);
+			if (end <= start) {
+				end += size;
+			}
+			for (int i = start; i < end; i++) {
+				result[i % size] = true;
+			}
+		}
+		return result;
+	}
+
+	private static int parseRangeValue(String value, int size, boolean isDays) {
+		value = value.trim();
+		if (isDays) {
+			for (int day = 0; day < DAYS.length; day++) {
+				if (DAYS[day].equalsIgnoreCase(value)) {
+					return day;
+				}
+			}
+			throw new IllegalArgumentException("Unknown day '" + value + "'");
+		}
+		// an hour range may end at 24
+		return (int) parseInRange(value, size);
+	}
+
+	private static double parseRate(String value) {
+		double rate = Double.parseDouble(value.trim());
+		if (rate < 0 || Double.isNaN(rate) || Double.isInfinite(rate)) {
+			throw new IllegalArgumentException("Invalid rate '" + value + "'");
+		}
+		return rate;
+	}
+
+	private static long parseInRange(String value, long max) {
+		long result = Long.parseLong(value.trim());
+		if (result < 0 || result > max) {
+			throw new IllegalArgumentException("Value '" + value + "' out of range [0," + max + "]");
+		}
+		return result;
+	}
+
+	private static long floorDiv(long x, long y) {
+		long result = x / y;
+		return (x % y != 0 && (x ^ y) < 0) ? result - 1 : result;
+	}
+
+	private static long floorMod(long x, long y) {
+		return x - floorDiv(x, y) * y;
+	}
+
+}
@@ -0,0 +1,248 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.session;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.slee.facilities.Tracer;
+
+import net.java.slee.resource.diameter.cca.events.avp.MultipleServicesCreditControlAvp;
+import net.java.slee.resource.diameter.ro.events.RoCreditControlAnswer;
+
+/**
+ * Cache of the recently sent Credit-Control-Answers, keyed by Session-Id and CC-Request-Number, so that retransmitted
+ * or failed over requests are answered the same way, instead of being charged again. Requests still being handled are
+ * also tracked, so that their duplicates are dropped, as the answer to the original will be sent.
+ *
+ * Entries are evicted once older than the time to live, or when the cache is full, oldest first.
+ *
+ * @author ammendonca
+ */
+public final class AnswerCache {
+
+	private static AnswerCache instance = null;
+
+	private static final int STRIPES = 16;
+
+	/**
+	 * What is needed to answer a duplicate request as the original one was.
+	 */
+	public static final class CachedAnswer {
+		private final long timestamp = System.currentTimeMillis();
+		private volatile boolean answered = false;
+		private volatile long resultCode;
+		private volatile MultipleServicesCreditControlAvp[] multipleServicesCreditControls;
+
+		/**
+		 * @return true if the original request was answered, false if still being handled
+		 */
+		public boolean isAnswered() {
+			return answered;
+		}
+
+		public long getResultCode() {
+			return resultCode;
+		}
+
+		public MultipleServicesCreditControlAvp[] getMultipleServicesCreditControls() {
+			return multipleServicesCreditControls;
+		}
+	}
+
+	private final long timeToLive;
+	private final int stripeCapacity;
+
+	// insertion ordered, so the oldest are first
+	private final LinkedHashMap<String, CachedAnswer>[] stripes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong pendingDuplicates = new AtomicLong();
+
+	@SuppressWarnings("unchecked")
+	private AnswerCache(long timeToLive, int capacity) {
+		this.timeToLive = timeToLive;
+		this.stripeCapacity = Math.max(capacity / STRIPES, 1);
+		this.stripes = new LinkedHashMap[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new LinkedHashMap<String, CachedAnswer>();
+		}
+	}
+
+	/**
+	 * Starts the answer cache, if not yet started.
+	 *
+	 * @param timeToLive the time (ms) answers are kept for, 0 for not caching
+	 * @param capacity the maximum number of answers kept
+	 * @param tracer the tracer to log to
+	 */
+	public static synchronized void start(long timeToLive, int capacity, Tracer tracer) {
+		if (instance == null && timeToLive > 0 && capacity > 0) {
+			instance = new AnswerCache(timeToLive, capacity);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Started answer cache, keeping up to " + capacity + " answers for " + timeToLive + "ms.");
+			}
+		}
+	}
+
+	/**
+	 * @return the answer cache, or null if not started
+	 */
+	public static synchronized AnswerCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Looks up a request, registering it as being handled if not seen before.
+	 *
+	 * @param sessionId the Session-Id of the request
+	 * @param requestNumber the CC-Request-Number of the request
+	 * @return the cached answer if it is a duplicate, answered or not yet, or null if it is a new request
+	 */
+	public CachedAnswer lookup(String sessionId, long requestNumber) {
+		String key = getKey(sessionId, requestNumber);
+		LinkedHashMap<String, CachedAnswer> stripe = getStripe(key);
+		synchronized (stripe) {
+			CachedAnswer cached = stripe.get(key);
+			if (cached == null) {
+				stripe.put(key, new CachedAnswer());
+				evict(stripe);
+				misses.incrementAndGet();
+				return null;
+			}
+			if (cached.isAnswered()) {
+				hits.incrementAndGet();
+			}
+			else {
+				pendingDuplicates.incrementAndGet();
+			}
+			return cached;
+		}
+	}
+
+	/**
+	 * Stores the answer sent to a request.
+	 *
+	 * @param sessionId the Session-Id of the request
+	 * @param answer the answer sent
+	 */
+	public void answered(String sessionId, RoCreditControlAnswer answer) {
+		String key = getKey(sessionId, answer.getCcRequestNumber());
+		LinkedHashMap<String, CachedAnswer> stripe = getStripe(key);
+		CachedAnswer cached;
+		synchronized (stripe) {
+			cached = stripe.get(key);
+			if (cached == null) {
+				// evicted meanwhile, or answered before being registered
+				cached = new CachedAnswer();
+				stripe.put(key, cached);
+				evict(stripe);
+			}
+		}
+		cached.resultCode = answer.getResultCode();
+		cached.multipleServicesCreditControls = answer.getMultipleServicesCreditControls();
+		cached.answered = true;
+	}
+
+	/**
+	 * Forgets a request not answered, such as when no answer is sent or it was not to be cached, so that its
+	 * retransmissions are handled as new requests instead of dropped. Answered requests are kept.
+	 *
+	 * @param sessionId the Session-Id of the request
+	 * @param requestNumber the CC-Request-Number of the request
+	 */
+	public void forget(String sessionId, long requestNumber) {
+		String key = getKey(sessionId, requestNumber);
+		LinkedHashMap<String, CachedAnswer> stripe = getStripe(key);
+		synchronized (stripe) {
+			CachedAnswer cached = stripe.get(key);
+			if (cached != null && !cached.isAnswered()) {
+				stripe.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of duplicate requests answered from the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of requests not found in the cache, ie, new requests
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of duplicate requests dropped, as the original was still being handled
+	 */
+	public long getPendingDuplicates() {
+		return pendingDuplicates.get();
+	}
+
+	/**
+	 * @return the number of answers (and requests being handled) in the cache
+	 */
+	public int size() {
+		int size = 0;
+		for (LinkedHashMap<String, CachedAnswer> stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "AnswerCache[Size=" + size() + "; Hits=" + hits + "; Misses=" + misses + "; PendingDuplicates=" + pendingDuplicates + "]";
+	}
+
+	private void evict(LinkedHashMap<String, CachedAnswer> stripe) {
+		long expired = System.currentTimeMillis() - timeToLive;
+		Iterator<CachedAnswer> it = stripe.values().iterator();
+		int size = stripe.size();
+		while (it.hasNext()) {
+			CachedAnswer cached = it.next();
+			if (size <= stripeCapacity && cached.timestamp > expired) {
+				break;
+			}
+			it.remove();
+			size--;
+		}
+	}
+
+	private LinkedHashMap<String, CachedAnswer> getStripe(String key) {
+		return stripes[(key.hashCode() & 0x7FFFFFFF) % STRIPES];
+	}
+
+	private static String getKey(String sessionId, long requestNumber) {
+		return sessionId + '#' + requestNumber;
+	}
+
+}
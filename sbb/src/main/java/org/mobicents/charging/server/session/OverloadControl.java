@@ -0,0 +1,215 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.session;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.slee.facilities.Tracer;
+
+/**
+ * Admission control for Credit-Control-Requests. Tracks the requests being handled and how long they take (which is
+ * mostly waiting for database and rating), and sheds new sessions when either goes above its watermark, so that the
+ * ones already established can still report usage. Leaving overload requires both to get below 80% of their
+ * watermark, so it does not flap around it. While no requests complete, such as when all new sessions are being shed,
+ * the latency decays with time, so that it does not stay in overload on account of the last slow requests.
+ *
+ * Registered as an MBean, for watermarks, state and counters to be available to management.
+ *
+ * @author ammendonca
+ */
+public final class OverloadControl implements OverloadControlMBean {
+
+	public static final String OBJECT_NAME = "org.mobicents.charging.server:type=OverloadControl";
+
+	private static OverloadControl instance = null;
+
+	// weight of the last request in the latency moving average
+	private static final double SMOOTHING = 0.1;
+
+	// time (ms) for the latency to halve while no requests complete
+	private static final long LATENCY_HALF_LIFE = 1000;
+
+	private volatile int maxInFlight;
+	private volatile long maxLatency;
+
+	private volatile boolean overloaded = false;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private volatile double latency = 0;
+	private volatile long latencyTime = System.currentTimeMillis();
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong shed = new AtomicLong();
+
+	private final Tracer tracer;
+
+	private OverloadControl(int maxInFlight, long maxLatency, Tracer tracer) {
+		this.maxInFlight = maxInFlight;
+		this.maxLatency = maxLatency;
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Starts the overload control, if not yet started.
+	 *
+	 * @param maxInFlight the maximum requests being handled before shedding new sessions, 0 for no limit
+	 * @param maxLatency the maximum average time (ms) to handle a request before shedding new sessions, 0 for no limit
+	 * @param tracer the tracer to log to
+	 */
+	public static synchronized void start(int maxInFlight, long maxLatency, Tracer tracer) {
+		if (instance == null) {
+			instance = new OverloadControl(maxInFlight, maxLatency, tracer);
+			try {
+				MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+				ObjectName objectName = new ObjectName(OBJECT_NAME);
+				if (mbeanServer.isRegistered(objectName)) {
+					mbeanServer.unregisterMBean(objectName);
+				}
+				mbeanServer.registerMBean(instance, objectName);
+			}
+			catch (Exception e) {
+				tracer.warning("[!!] Unable to register overload control MBean. It will not be available to management.", e);
+			}
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Started overload control with " + maxInFlight + " requests in flight and " + maxLatency + "ms latency watermarks.");
+			}
+		}
+	}
+
+	/**
+	 * @return the overload control, or null if not started
+	 */
+	public static synchronized OverloadControl getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Decides whether a request starting a new session is to be handled.
+	 *
+	 * @return true if it is admitted, false if it is to be rejected with DIAMETER_TOO_BUSY
+	 */
+	public boolean admitSession() {
+		if (overloaded) {
+			decayLatency();
+			update();
+		}
+		if (overloaded) {
+			shed.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Accounts a request as being handled. Must be followed by {@link #requestCompleted(long)}.
+	 */
+	public void requestStarted() {
+		admitted.incrementAndGet();
+		inFlight.incrementAndGet();
+		update();
+	}
+
+	/**
+	 * Accounts a request as handled.
+	 *
+	 * @param duration the time (ms) it took to handle it
+	 */
+	public void requestCompleted(long duration) {
+		inFlight.decrementAndGet();
+		// races may lose a sample, it's an average anyway
+		latency = SMOOTHING * duration + (1 - SMOOTHING) * latency;
+		latencyTime = System.currentTimeMillis();
+		update();
+	}
+
+	private void decayLatency() {
+		long now = System.currentTimeMillis();
+		long idle = now - latencyTime;
+		if (idle >= LATENCY_HALF_LIFE) {
+			latency = latency * Math.pow(0.5, (double) idle / LATENCY_HALF_LIFE);
+			latencyTime = now;
+		}
+	}
+
+	private void update() {
+		int currentInFlight = inFlight.get();
+		double currentLatency = latency;
+		if (!overloaded) {
+			if ((maxInFlight > 0 && currentInFlight > maxInFlight) || (maxLatency > 0 && currentLatency > maxLatency)) {
+				overloaded = true;
+				tracer.warning("[!!] Entering overload with " + currentInFlight + " requests in flight and " + (long) currentLatency + "ms latency. New sessions will be rejected.");
+			}
+		}
+		else if ((maxInFlight <= 0 || currentInFlight < maxInFlight * 0.8) && (maxLatency <= 0 || currentLatency < maxLatency * 0.8)) {
+			overloaded = false;
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Leaving overload with " + currentInFlight + " requests in flight and " + (long) currentLatency + "ms latency. " + shed.get() + " sessions rejected so far.");
+			}
+		}
+	}
+
+	// ------------------------------ Management ------------------------------
+
+	public String getState() {
+		return overloaded ? "OVERLOADED" : "NORMAL";
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public long getLatency() {
+		return (long) latency;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+		update();
+	}
+
+	public long getMaxLatency() {
+		return maxLatency;
+	}
+
+	public void setMaxLatency(long maxLatency) {
+		this.maxLatency = maxLatency;
+		update();
+	}
+
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	public long getShed() {
+		return shed.get();
+	}
+
+}
@@ -0,0 +1,210 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.session;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.slee.facilities.Tracer;
+
+import net.java.slee.resource.diameter.ro.RoServerSessionActivity;
+
+/**
+ * Supervises the Ro sessions, terminating those which are not updated before their validity time expires. Sessions are
+ * kept in a {@link TimingWheel} advanced by a single thread, so re-arming the supervision on every Credit-Control-Answer
+ * is a constant time relink, instead of cancelling and setting a container timer.
+ *
+ * @author ammendonca
+ */
+public final class SessionSupervisor {
+
+	private static SessionSupervisor instance = null;
+
+	private final TimingWheel wheel = new TimingWheel();
+	private final long tickDuration;
+	private final long startTime;
+
+	private final ConcurrentHashMap<String, SupervisedSession> sessions = new ConcurrentHashMap<String, SupervisedSession>();
+
+	private final Tracer tracer;
+
+	private class SupervisedSession extends TimingWheel.Timeout {
+		final String sessionId;
+		final RoServerSessionActivity activity;
+
+		SupervisedSession(String sessionId, RoServerSessionActivity activity) {
+			this.sessionId = sessionId;
+			this.activity = activity;
+		}
+
+		@Override
+		void expired() {
+			// unless renewed or superseded meanwhile
+			synchronized (wheel) {
+				if (isScheduled()) {
+					return;
+				}
+			}
+			if (!sessions.remove(sessionId, this)) {
+				return;
+			}
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[--] SID<" + sessionId + "> Forcing Activity Termination '" + activity + "' due to timeout expire.");
+			}
+			// TODO: allow for different options, such as sending a RAR request.
+			try {
+				activity.endActivity();
+			}
+			catch (Exception e) {
+				// most likely already ended
+				if (tracer.isFineEnabled()) {
+					tracer.fine("[--] SID<" + sessionId + "> Unable to end expired activity.", e);
+				}
+			}
+		}
+	}
+
+	private SessionSupervisor(long tickDuration, Tracer tracer) {
+		this.tickDuration = tickDuration;
+		this.tracer = tracer;
+		this.startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Starts the session supervision, if not yet started.
+	 *
+	 * @param tickDuration the resolution (ms) of the supervision
+	 * @param tracer the tracer to log to
+	 * @return the session supervisor
+	 */
+	public static synchronized SessionSupervisor start(long tickDuration, Tracer tracer) {
+		if (instance == null) {
+			final SessionSupervisor supervisor = new SessionSupervisor(tickDuration, tracer);
+			Thread ticker = new Thread("CS-Session-Supervisor") {
+				public void run() {
+					supervisor.run();
+				}
+			};
+			ticker.setDaemon(true);
+			ticker.start();
+			instance = supervisor;
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Started session supervision with " + tickDuration + "ms resolution.");
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * @return the session supervisor, or null if not started, in which case container timers are to be used
+	 */
+	public static synchronized SessionSupervisor getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Starts, or restarts, the supervision of a session. If not called again for it, or released, before the timeout
+	 * expires, the session activity is ended.
+	 *
+	 * @param activity the session activity
+	 * @param timeout the time (ms) after which the session is terminated
+	 */
+	public void supervise(RoServerSessionActivity activity, long timeout) {
+		String sessionId = activity.getSessionId();
+		SupervisedSession session = sessions.get(sessionId);
+		if (session == null) {
+			session = new SupervisedSession(sessionId, activity);
+			SupervisedSession existing = sessions.putIfAbsent(sessionId, session);
+			if (existing != null) {
+				session = existing;
+			}
+		}
+		long ticks = (timeout + tickDuration - 1) / tickDuration;
+		synchronized (wheel) {
+			wheel.schedule(session, ticks);
+		}
+	}
+
+	/**
+	 * Stops the supervision of a session, as it is terminating.
+	 *
+	 * @param sessionId the session id
+	 */
+	public void release(String sessionId) {
+		SupervisedSession session = sessions.remove(sessionId);
+		if (session != null) {
+			synchronized (wheel) {
+				wheel.cancel(session);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of sessions under supervision
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	private void run() {
+		ArrayList<TimingWheel.Timeout> expiredList = new ArrayList<TimingWheel.Timeout>();
+		while (true) {
+			try {
+				expiredList.clear();
+				synchronized (wheel) {
+					// catch up if late, all the ticks due until now
+					TimingWheel.Timeout expired = null;
+					long now = System.currentTimeMillis();
+					while (startTime + (wheel.getCurrentTick() + 1) * tickDuration <= now) {
+						expired = wheel.advance(expired);
+					}
+					while (expired != null) {
+						TimingWheel.Timeout next = expired.next;
+						expired.next = null;
+						expiredList.add(expired);
+						expired = next;
+					}
+				}
+				// terminate sessions outside the lock, so others can be supervised meanwhile
+				for (int i = 0; i < expiredList.size(); i++) {
+					expiredList.get(i).expired();
+				}
+
+				long sleep;
+				synchronized (wheel) {
+					sleep = startTime + (wheel.getCurrentTick() + 1) * tickDuration - System.currentTimeMillis();
+				}
+				if (sleep > 0) {
+					Thread.sleep(sleep);
+				}
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			catch (Exception e) {
+				tracer.severe("[xx] Unexpected failure on session supervision.", e);
+			}
+		}
+	}
+
+}
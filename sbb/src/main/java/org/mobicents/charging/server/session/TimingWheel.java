@@ -0,0 +1,190 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.session;
+
+/**
+ * Hierarchical timing wheel, with O(1) scheduling and cancelling of timeouts. Each level has 64 buckets, the first
+ * with one tick per bucket and each of the next ones with the whole span of the previous level per bucket. Timeouts in
+ * upper levels are moved down (cascaded) as time gets to their bucket, until they reach the first level and expire.
+ *
+ * Timeouts are intrusive list nodes, so scheduling and rescheduling do not allocate. Not thread-safe, callers must
+ * synchronize.
+ *
+ * @author ammendonca
+ */
+final class TimingWheel {
+
+	private static final int LEVEL_BITS = 6;
+	private static final int WHEEL_SIZE = 1 << LEVEL_BITS;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	private static final int LEVELS = 4;
+
+	// with 1s ticks, this is over 194 days. later timeouts are kept in the last bucket until they get in range
+	private static final long MAX_TICKS = 1L << (LEVEL_BITS * LEVELS);
+
+	/**
+	 * A timeout to be scheduled in the wheel. Extended with whatever is needed for handling its expiry.
+	 */
+	abstract static class Timeout {
+		long deadline;
+		Timeout prev;
+		Timeout next;
+
+		boolean isScheduled() {
+			return prev != null;
+		}
+
+		abstract void expired();
+	}
+
+	private static final class Bucket extends Timeout {
+		Bucket() {
+			// head of a circular list
+			prev = this;
+			next = this;
+		}
+
+		void expired() {
+			// never scheduled
+		}
+	}
+
+	private final Bucket[][] levels = new Bucket[LEVELS][WHEEL_SIZE];
+
+	private long currentTick = 0;
+	private int size = 0;
+
+	TimingWheel() {
+		for (int level = 0; level < LEVELS; level++) {
+			for (int i = 0; i < WHEEL_SIZE; i++) {
+				levels[level][i] = new Bucket();
+			}
+		}
+	}
+
+	/**
+	 * Schedules the timeout to expire after the given number of ticks, or reschedules it if already scheduled.
+	 */
+	void schedule(Timeout timeout, long ticks) {
+		if (timeout.isScheduled()) {
+			unlink(timeout);
+		}
+		else {
+			size++;
+		}
+		timeout.deadline = currentTick + Math.max(1, ticks);
+		place(timeout);
+	}
+
+	/**
+	 * @return true if it was scheduled and got cancelled, false if it was not scheduled
+	 */
+	boolean cancel(Timeout timeout) {
+		if (!timeout.isScheduled()) {
+			return false;
+		}
+		unlink(timeout);
+		size--;
+		return true;
+	}
+
+	/**
+	 * Moves time forward one tick, prepending the timeouts expiring at it to the given list, linked through their next
+	 * field. Callers must read the next one before handling each, as handling may schedule it again.
+	 *
+	 * @param expired the head of the expired timeouts list so far, null if none
+	 * @return the new head of the expired timeouts list, null if none
+	 */
+	Timeout advance(Timeout expired) {
+		currentTick++;
+
+		// cascade each upper level when the one below it wraps around
+		for (int level = 1; level < LEVELS; level++) {
+			if ((currentTick & ((1L << (LEVEL_BITS * level)) - 1)) != 0) {
+				break;
+			}
+			Bucket bucket = levels[level][(int) (currentTick >>> (LEVEL_BITS * level)) & WHEEL_MASK];
+			Timeout timeout = bucket.next;
+			while (timeout != bucket) {
+				Timeout next = timeout.next;
+				unlink(timeout);
+				place(timeout);
+				timeout = next;
+			}
+		}
+
+		Bucket bucket = levels[0][(int) currentTick & WHEEL_MASK];
+		Timeout timeout = bucket.next;
+		while (timeout != bucket) {
+			Timeout next = timeout.next;
+			unlink(timeout);
+			if (timeout.deadline <= currentTick) {
+				size--;
+				timeout.next = expired;
+				expired = timeout;
+			}
+			else {
+				// was beyond range, still not there
+				place(timeout);
+			}
+			timeout = next;
+		}
+		return expired;
+	}
+
+	long getCurrentTick() {
+		return currentTick;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void place(Timeout timeout) {
+		long deadline = timeout.deadline;
+		long delta = deadline - currentTick;
+		if (delta >= MAX_TICKS) {
+			deadline = currentTick + MAX_TICKS - 1;
+			delta = MAX_TICKS - 1;
+		}
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= (1L << (LEVEL_BITS * (level + 1)))) {
+			level++;
+		}
+		Bucket bucket = levels[level][(int) (deadline >>> (LEVEL_BITS * level)) & WHEEL_MASK];
+
+		// append to the bucket circular list
+		timeout.prev = bucket.prev;
+		timeout.next = bucket;
+		bucket.prev.next = timeout;
+		bucket.prev = timeout;
+	}
+
+	private static void unlink(Timeout timeout) {
+		timeout.prev.next = timeout.next;
+		timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+	}
+
+}